@@ -0,0 +1,115 @@
+package com.davidsoft.natural.chinese;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 答句压缩所用的预置字典的训练器。
+ *
+ * 每个答句块单独压缩，块内的文本很少，仅靠块内的重复几乎压缩不了；压缩和解压前都先装入同一个预置字典，
+ * 块中的文本就可以引用字典中的内容。字典由语料中反复出现的片段组成：统计每个{@link #GRAM_LENGTH}字节的片段出现在多少个答句中，
+ * 把答句切成{@link #SEGMENT_LENGTH}字节的段，每次选出所含的尚未被字典覆盖的常见片段最多的段加入字典，直到字典装满。
+ * 越有用的段放得越靠后，离压缩的数据越近，引用的距离越短。训练的结果只取决于输入，相同的语料总是得到相同的字典。
+ */
+final class AnswerDictionary {
+
+    //统计频度的片段长度(字节)
+    private static final int GRAM_LENGTH = 6;
+    //候选段的长度(字节)
+    private static final int SEGMENT_LENGTH = 32;
+
+    private AnswerDictionary() {
+    }
+
+    //取出sample中从position开始的片段，打包为一个long
+    private static long gramAt(byte[] sample, int position) {
+        long gram = 0;
+        for (int i = 0; i < GRAM_LENGTH; ++i) {
+            gram = (gram << 8) | (sample[position + i] & 0xFF);
+        }
+        return gram;
+    }
+
+    /**
+     * 由语料训练预置字典。
+     *
+     * @param samples 语料，即各个不同的答句的编码
+     * @param capacity 字典的最大字节数
+     * @return 字典，没有可用的内容时长度为0
+     */
+    static byte[] train(List<byte[]> samples, int capacity) {
+        //每个片段出现在多少个答句中。int[]为(答句数, 最后一次出现的答句)，同一答句中重复出现只计一次
+        HashMap<Long, int[]> frequencies = new HashMap<>();
+        for (int s = 0; s < samples.size(); ++s) {
+            byte[] sample = samples.get(s);
+            for (int i = 0; i + GRAM_LENGTH <= sample.length; ++i) {
+                int[] frequency = frequencies.computeIfAbsent(gramAt(sample, i), key -> new int[] {0, -1});
+                if (frequency[1] != s) {
+                    ++frequency[0];
+                    frequency[1] = s;
+                }
+            }
+        }
+
+        //候选段为(得分, 答句, 起点)，按得分降序，得分相同时按答句和起点升序
+        HashSet<Long> covered = new HashSet<>();
+        PriorityQueue<int[]> candidates = new PriorityQueue<>((a, b) -> a[0] != b[0] ? Integer.compare(b[0], a[0])
+                : a[1] != b[1] ? Integer.compare(a[1], b[1]) : Integer.compare(a[2], b[2]));
+        for (int s = 0; s < samples.size(); ++s) {
+            for (int begin = 0; begin < samples.get(s).length; begin += SEGMENT_LENGTH) {
+                int score = score(samples.get(s), begin, frequencies, covered);
+                if (score > 0) {
+                    candidates.add(new int[] {score, s, begin});
+                }
+            }
+        }
+
+        //贪心选取。已选的段覆盖的片段不再计分，因此取出的段要重新计分，仍不低于其它候选段时才选用
+        ArrayList<int[]> selected = new ArrayList<>();
+        int size = 0;
+        while (size < capacity && !candidates.isEmpty()) {
+            int[] candidate = candidates.poll();
+            byte[] sample = samples.get(candidate[1]);
+            int score = score(sample, candidate[2], frequencies, covered);
+            if (score <= 0) {
+                continue;
+            }
+            if (score < candidate[0] && !candidates.isEmpty() && score < candidates.peek()[0]) {
+                candidate[0] = score;
+                candidates.add(candidate);
+                continue;
+            }
+            int end = Math.min(candidate[2] + Math.min(SEGMENT_LENGTH, capacity - size), sample.length);
+            for (int i = candidate[2]; i + GRAM_LENGTH <= end; ++i) {
+                covered.add(gramAt(sample, i));
+            }
+            selected.add(new int[] {candidate[1], candidate[2], end});
+            size += end - candidate[2];
+        }
+
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (int i = selected.size() - 1; i >= 0; --i) {
+            int[] segment = selected.get(i);
+            dictionary.write(samples.get(segment[0]), segment[1], segment[2] - segment[1]);
+        }
+        return dictionary.toByteArray();
+    }
+
+    //计算从begin开始的段的得分，即其中尚未被覆盖的、出现在两个以上答句中的片段的频度之和
+    private static int score(byte[] sample, int begin, HashMap<Long, int[]> frequencies, HashSet<Long> covered) {
+        int end = Math.min(begin + SEGMENT_LENGTH, sample.length);
+        int score = 0;
+        for (int i = begin; i + GRAM_LENGTH <= end; ++i) {
+            long gram = gramAt(sample, i);
+            int frequency = frequencies.get(gram)[0];
+            if (frequency >= 2 && !covered.contains(gram)) {
+                score += frequency;
+            }
+        }
+        return score;
+    }
+}
@@ -0,0 +1,153 @@
+package com.davidsoft.natural.chinese;
+
+import java.util.Arrays;
+
+/**
+ * 预编译的答句模板。
+ *
+ * 答句中可以含有“{类名:成员名}”形式的占位符，由对话系统在回答时即时生成其内容：类名为“.Random”时取随机回应库中名为成员名的一条回应，
+ * 以“.”开头的其它类名表示调用com.davidsoft.natural.chinese.commands包中对应的{@link com.davidsoft.natural.ChatCommand}。
+ * 其它花括号(包括类名不以“.”开头的占位符)都原样保留。
+ *
+ * 编译样本库时每个答句只解析一次，含有占位符的答句被切分为依次排列的若干部分，每部分是一段原样输出的文字或一个占位符，
+ * 各部分以在答句中的字符范围存入样本库，见{@link ChatBankWriter}。没有占位符的答句没有模板，回答时不需要任何处理。
+ */
+public final class AnswerTemplate {
+
+    //部分的类型：原样输出的文字、随机回应、命令
+    public static final int PART_TEXT = 0;
+    public static final int PART_RANDOM = 1;
+    public static final int PART_COMMAND = 2;
+
+    //每个部分在样本库中占的整数个数：(类型, 起始位置, 分隔位置, 结束位置)。
+    //文字为答句的[起始, 结束)；占位符的类名为[起始, 分隔)，成员名为[分隔+1, 结束)
+    static final int PART_INTS = 4;
+
+    private final int[] types;
+    private final String[] texts;       //文字，或占位符的类名
+    private final String[] memberNames; //占位符的成员名，文字部分为null
+
+    //由答句和parse得到的各部分构造模板
+    AnswerTemplate(String answer, int[] parts) {
+        int partCount = parts.length / PART_INTS;
+        types = new int[partCount];
+        texts = new String[partCount];
+        memberNames = new String[partCount];
+        for (int i = 0; i < partCount; ++i) {
+            int base = i * PART_INTS;
+            types[i] = parts[base];
+            if (types[i] == PART_TEXT) {
+                texts[i] = answer.substring(parts[base + 1], parts[base + 3]);
+            }
+            else {
+                texts[i] = answer.substring(parts[base + 1], parts[base + 2]);
+                memberNames[i] = answer.substring(parts[base + 2] + 1, parts[base + 3]);
+            }
+        }
+    }
+
+    /**
+     * 解析答句。
+     *
+     * @param answer 答句
+     * @return 答句的模板，答句中没有占位符时返回{@code null}
+     */
+    public static AnswerTemplate compile(String answer) {
+        int[] parts = parse(answer);
+        return parts == null ? null : new AnswerTemplate(answer, parts);
+    }
+
+    /**
+     * 将答句切分为各个部分，每部分{@link #PART_INTS}个整数。相邻的文字合并为一部分。
+     *
+     * @param answer 答句
+     * @return 各部分依次排列的数组，答句中没有占位符时返回{@code null}
+     */
+    static int[] parse(String answer) {
+        int brace = answer.indexOf('{');
+        if (brace == -1) {
+            return null;
+        }
+        int[] parts = new int[PART_INTS * 4];
+        int partCount = 0;
+        boolean placeholder = false;
+        int textBegin = 0;
+        while (brace != -1) {
+            int separator = answer.indexOf(':', brace + 1);
+            int end = separator == -1 ? -1 : answer.indexOf('}', separator + 1);
+            if (end == -1) {
+                //不完整的占位符，其后都是文字
+                break;
+            }
+            int type = answer.startsWith(".Random", brace + 1) && separator == brace + 8 ? PART_RANDOM
+                    : answer.startsWith(".", brace + 1) ? PART_COMMAND : PART_TEXT;
+            if (type != PART_TEXT) {
+                if ((partCount + 2) * PART_INTS > parts.length) {
+                    parts = Arrays.copyOf(parts, parts.length * 2);
+                }
+                if (textBegin < brace) {
+                    partCount = putPart(parts, partCount, PART_TEXT, textBegin, brace, brace);
+                }
+                partCount = putPart(parts, partCount, type, brace + 1, separator, end);
+                placeholder = true;
+                textBegin = end + 1;
+            }
+            brace = answer.indexOf('{', end + 1);
+        }
+        if (!placeholder) {
+            return null;
+        }
+        if (textBegin < answer.length()) {
+            if ((partCount + 1) * PART_INTS > parts.length) {
+                parts = Arrays.copyOf(parts, parts.length + PART_INTS);
+            }
+            partCount = putPart(parts, partCount, PART_TEXT, textBegin, answer.length(), answer.length());
+        }
+        return Arrays.copyOf(parts, partCount * PART_INTS);
+    }
+
+    //写入一个部分，返回新的部分数
+    private static int putPart(int[] parts, int partCount, int type, int begin, int separator, int end) {
+        int base = partCount * PART_INTS;
+        parts[base] = type;
+        parts[base + 1] = begin;
+        parts[base + 2] = separator;
+        parts[base + 3] = end;
+        return partCount + 1;
+    }
+
+    public int getPartCount() {
+        return types.length;
+    }
+
+    /**
+     * 获得部分的类型。
+     *
+     * @param index 部分的序号
+     * @return {@link #PART_TEXT}、{@link #PART_RANDOM}或{@link #PART_COMMAND}
+     */
+    public int getPartType(int index) {
+        return types[index];
+    }
+
+    /**
+     * 获得文字部分的内容。
+     */
+    public String getText(int index) {
+        return texts[index];
+    }
+
+    /**
+     * 获得占位符的类名，如“.Random”、“.system.DateTime”。
+     */
+    public String getClassName(int index) {
+        return texts[index];
+    }
+
+    /**
+     * 获得占位符的成员名。
+     */
+    public String getMemberName(int index) {
+        return memberNames[index];
+    }
+}
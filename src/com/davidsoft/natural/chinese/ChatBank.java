@@ -4,458 +4,3082 @@ import com.davidsoft.natural.SimpleWordReader;
 import com.davidsoft.natural.WordReader;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static com.davidsoft.natural.chinese.ChatBankWriter.*;
 
 /**
  * 对话样本库。
  *
  * 本类负责对话样本库的加载和查询，维持着对话样本库的数据结构。
+ * 对话样本库的数据全部存放在一块新格式(见{@link ChatBankWriter})的缓冲区中，所有查询都在缓冲区上原地进行。
+ * 默认情况下该缓冲区是文件的内存映射，因此加载耗时与样本库的规模无关，且同一台机器上的多个进程可以共享同一份页缓存。
  */
-public final class ChatBank {
+public final class ChatBank implements SearchableChatBank {
 
     //对象管理
 
-    private static ChatBank instance = null;
+    //当前实例。重新加载时整体替换为新的对象，已经取得旧实例的调用者不受影响，旧实例在无人引用后由垃圾回收释放
+    private static volatile ChatBank instance = null;
+    private static final Object instanceLock = new Object();
 
     /**
-     * ChatBank(本类)需要以单例模式创建对象。调用此函数以获取唯一的实例。
+     * ChatBank(本类)需要以单例模式创建对象。调用此函数以获取当前的实例。
+     * 调用{@link #reload}后本函数将返回新的实例，因此一次检索过程中应只调用一次本函数，并始终使用同一个实例。
      *
      * @return 一个ChatBank对象的实例。
      */
     public static ChatBank getInstance() {
-        if (instance == null) {
-            try {
-                FileInputStream fileIn = new FileInputStream("ChineseChats");
-                instance = new ChatBank(fileIn);
-                fileIn.close();
-            }
-            catch (IOException e) {
-                instance = null;
+        ChatBank bank = instance;
+        if (bank == null) {
+            synchronized (instanceLock) {
+                bank = instance;
+                if (bank == null) {
+                    try {
+                        bank = load(new File("ChineseChats"));
+                        instance = bank;
+                    }
+                    catch (IOException e) {
+                        bank = null;
+                    }
+                }
             }
         }
-        return instance;
+        return bank;
     }
 
-    //对话样本库的数据结构
+    /**
+     * 一次重新加载的统计结果。
+     */
+    public final static class ReloadReport {
+        private final int generation;
+        private final long loadNanos;
+        private final long remapNanos;
+        private final long imageHighWater;
+        private final long heapHighWater;
+        private final int wordCount;
+        private final int droppedWordCount;
 
-    //样本库中用到的所有词。升序存储以供二分查找
-    private String[] words;
+        private ReloadReport(int generation, long loadNanos, long remapNanos, long imageHighWater, long heapHighWater, int wordCount, int droppedWordCount) {
+            this.generation = generation;
+            this.loadNanos = loadNanos;
+            this.remapNanos = remapNanos;
+            this.imageHighWater = imageHighWater;
+            this.heapHighWater = heapHighWater;
+            this.wordCount = wordCount;
+            this.droppedWordCount = droppedWordCount;
+        }
 
-    //一个问答对
-    public final static class ChatPair {
-        private WordFrequencyVectors sentences; //问句，词频向量组形式
-        private String answer;                  //答句
+        /**
+         * 获得新实例的代数。
+         */
+        public int getGeneration() {
+            return generation;
+        }
 
-        public WordFrequencyVectors getSentences() {
-            return sentences;
+        /**
+         * 获得从开始加载到新实例生效的总耗时(纳秒)。
+         */
+        public long getLatencyNanos() {
+            return loadNanos + remapNanos;
         }
 
-        public String getAnswer() {
-            return answer;
+        /**
+         * 获得加载新样本库的耗时(纳秒)。
+         */
+        public long getLoadNanos() {
+            return loadNanos;
         }
-    }
 
-    //多个问答对构成一个对话
-    public final static class Chat {
-        private ChatPair[] chatPairs;
+        /**
+         * 获得建立词编号映射的耗时(纳秒)。
+         */
+        public long getRemapNanos() {
+            return remapNanos;
+        }
 
-        public ChatPair getChatPair(int position) {
-            return chatPairs[position];
+        /**
+         * 获得重新加载期间新旧两个样本库的数据同时驻留时占用的字节数。
+         */
+        public long getImageHighWater() {
+            return imageHighWater;
         }
-    }
 
-    //多个对话构成对话样本库
-    private Chat[] chats;
+        /**
+         * 获得重新加载期间堆内存使用量的峰值(字节)，无法取得时为-1。
+         */
+        public long getHeapHighWater() {
+            return heapHighWater;
+        }
+
+        /**
+         * 获得旧样本库中的词数。
+         */
+        public int getWordCount() {
+            return wordCount;
+        }
+
+        /**
+         * 获得旧样本库中在新样本库里已不存在的词数，会话上下文中的这些词将被丢弃。
+         */
+        public int getDroppedWordCount() {
+            return droppedWordCount;
+        }
 
-    //对话样本库的索引
+        @Override
+        public String toString() {
+            return String.format("第%d代，耗时%.2fms(加载%.2fms，词编号映射%.2fms)，样本库数据峰值%d字节，堆内存峰值%d字节，旧词%d个中有%d个已不存在",
+                    generation, getLatencyNanos() / 1e6, loadNanos / 1e6, remapNanos / 1e6, imageHighWater, heapHighWater, wordCount, droppedWordCount);
+        }
+    }
 
-    //答句的索引。
-    //wordAnswerIndex[i]是一个数组，是包含了词i的所有问句所对应的答句，数组元素类型是整数对，a代表对话编号，b代表对话内答句的位置。
-    public PairInt[][] wordAnswerIndex;
+    private static ExecutorService reloadExecutor = null;
 
     /**
-     * 构造一个对话样本库。请使用{@link ChatBank#getInstance}静态方法获得对话样本库的实例。
+     * 重新加载对话样本库，等同于以{@link LoadMode#MAPPED}方式调用{@link #reload(File, LoadMode)}。
      */
-    private ChatBank(InputStream in) throws IOException {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(40960);
-        byteBuffer.order(ByteOrder.BIG_ENDIAN);
-        int read;
+    public static ReloadReport reload(File file) throws IOException {
+        return reload(file, LoadMode.MAPPED);
+    }
 
-        //read all word and index
-        byteBuffer.rewind();
-        byteBuffer.put((byte) in.read());
-        byteBuffer.put((byte) in.read());
-        byteBuffer.put((byte) in.read());
-        byteBuffer.put((byte) in.read());
-        byteBuffer.rewind();
-        words = new String[byteBuffer.getInt()];
-        wordAnswerIndex = new PairInt[words.length][];
-        for (int i = 0; i < words.length; ++i) {
-            byteBuffer.rewind();
-            while ((read = in.read()) != 0) {
-                byteBuffer.put((byte) read);
-            }
-            words[i] = new String(byteBuffer.array(), 0, byteBuffer.position(), "GBK");
-            byteBuffer.rewind();
-            byteBuffer.put((byte) in.read());
-            byteBuffer.put((byte) in.read());
-            byteBuffer.put((byte) in.read());
-            byteBuffer.put((byte) in.read());
-            byteBuffer.rewind();
-            wordAnswerIndex[i] = new PairInt[byteBuffer.getInt()];
-            for (int j = 0; j < wordAnswerIndex[i].length; ++j) {
-                byteBuffer.rewind();
-                byteBuffer.put((byte) in.read());
-                byteBuffer.put((byte) in.read());
-                byteBuffer.put((byte) in.read());
-                byteBuffer.put((byte) in.read());
-                byteBuffer.rewind();
-                wordAnswerIndex[i][j] = new PairInt(byteBuffer.getInt(), in.read());
+    /**
+     * 重新加载对话样本库并原子地替换当前实例。
+     *
+     * 新样本库在调用线程中加载完毕后才会替换当前实例，加载期间以及替换之后，已经取得旧实例的检索过程仍在旧实例上完成。
+     * 会话中保存的词编号可以通过{@link #remapWord}换算到新实例上。多次重新加载依次进行。
+     * 新实例沿用旧实例的检索设置，见{@link #setDocumentFrequencyCeiling}、{@link #setBigramCandidates}和{@link #setBigramBoost}。
+     * 以{@link LoadMode#MAPPED}方式加载时，更新样本库文件应写入新文件后改名替换，而不应原地改写，以免破坏旧实例的映射。
+     *
+     * @param file 对话样本库文件
+     * @param mode 加载方式
+     * @return 本次重新加载的统计结果
+     *
+     * @throws IOException 当读取文件发生IO异常或文件格式不正确时，此时当前实例保持不变
+     */
+    public static ReloadReport reload(File file, LoadMode mode) throws IOException {
+        synchronized (instanceLock) {
+            List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                    pool.resetPeakUsage();
+                    heapPools.add(pool);
+                }
             }
-        }
 
-        //read chat data
-        byteBuffer.rewind();
-        byteBuffer.put((byte) in.read());
-        byteBuffer.put((byte) in.read());
-        byteBuffer.put((byte) in.read());
-        byteBuffer.put((byte) in.read());
-        byteBuffer.rewind();
-        chats = new Chat[byteBuffer.getInt()];
-        for (int i = 0; i < chats.length; ++i) {
-            chats[i] = new Chat();
-            chats[i].chatPairs = new ChatPair[in.read()];
-            for (int j = 0; j < chats[i].chatPairs.length; ++j) {
-                WordFrequencyVector[] wordFrequencyVectors = new WordFrequencyVector[in.read()];
-                int sentenceLength = 0;
-                for (int k = 0; k < wordFrequencyVectors.length; ++k) {
-                    byteBuffer.rewind();
-                    while ((read = in.read()) != 0) {
-                        byteBuffer.put((byte) read);
-                    }
-                    String originalSentence = new String(byteBuffer.array(), 0, byteBuffer.position(), "GBK");
-                    sentenceLength += originalSentence.length();
-                    HashMap<Integer, Integer> vector = new HashMap<>();
-                    while ((read = in.read()) != 0) {
-                        byteBuffer.rewind();
-                        byteBuffer.put((byte) in.read());
-                        byteBuffer.put((byte) in.read());
-                        byteBuffer.put((byte) in.read());
-                        byteBuffer.put((byte) in.read());
-                        byteBuffer.rewind();
-                        vector.put(byteBuffer.getInt(), read);
-                    }
-                    byteBuffer.rewind();
-                    byteBuffer.put((byte) in.read());
-                    byteBuffer.put((byte) in.read());
-                    byteBuffer.put((byte) in.read());
-                    byteBuffer.put((byte) in.read());
-                    byteBuffer.rewind();
-                    int module2 = byteBuffer.getInt();
+            long begin = System.nanoTime();
+            ChatBank bank = load(file, mode);
+            long loaded = System.nanoTime();
 
-                    wordFrequencyVectors[k] = new WordFrequencyVector(originalSentence, vector, module2);
-                }
-                byteBuffer.rewind();
-                while ((read = in.read()) != 0) {
-                    byteBuffer.put((byte) read);
+            ChatBank old = instance;
+            int dropped = 0;
+            if (old == null) {
+                bank.generation = 0;
+            }
+            else {
+                int[] map = new int[old.wordCount];
+                for (int i = 0; i < map.length; ++i) {
+                    map[i] = bank.getWordNumber(old.getWord(i));
+                    if (map[i] < 0) {
+                        map[i] = -1;
+                        ++dropped;
+                    }
                 }
-                chats[i].chatPairs[j] = new ChatPair();
-                chats[i].chatPairs[j].sentences = new WordFrequencyVectors(wordFrequencyVectors, sentenceLength);
-                chats[i].chatPairs[j].answer = new String(byteBuffer.array(), 0, byteBuffer.position(), "GBK");
+                bank.generation = old.generation + 1;
+                bank.wordRemap = WordRemap.append(bank.generation, map, old.wordRemap);
+                bank.copySearchSettings(old);
+            }
+            long remapped = System.nanoTime();
+            instance = bank;
+
+            long heapHighWater = heapPools.isEmpty() ? -1 : 0;
+            for (MemoryPoolMXBean pool : heapPools) {
+                heapHighWater += pool.getPeakUsage().getUsed();
             }
+            return new ReloadReport(bank.generation, loaded - begin, remapped - loaded,
+                    (old == null ? 0 : old.image.capacity()) + bank.image.capacity(), heapHighWater,
+                    old == null ? 0 : old.wordCount, dropped);
         }
     }
 
-    private ChatBank() {}
-
     /**
-     * 通过给定词获得其编号。
+     * 在后台线程中重新加载对话样本库，调用者不必等待加载完成。
      *
-     * @param word 词
-     * @return 词的编号。若不存在该次则返回-1。
+     * @param file 对话样本库文件
+     * @param mode 加载方式
+     * @return 重新加载完成后得到统计结果；若加载失败则以IOException异常结束，当前实例保持不变。
      */
-    public int getWordNumber(String word) {
-        //二分法查找
-        int left = 0;
-        int right = words.length;
-        int middle;
-        int compare;
-        while (left < right) {
-            middle = (left + right) / 2;
-            compare = word.compareTo(words[middle]);
-            if (compare > 0) {
-                left = middle + 1;
-            }
-            else {
-                if (compare < 0) {
-                    right = middle;
-                }
-                else {
-                    return middle;
-                }
+    public static CompletableFuture<ReloadReport> reloadInBackground(File file, LoadMode mode) {
+        ExecutorService executor;
+        synchronized (ChatBank.class) {
+            if (reloadExecutor == null) {
+                reloadExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "ChatBank-reload");
+                    thread.setDaemon(true);
+                    return thread;
+                });
             }
+            executor = reloadExecutor;
         }
-        return Utils.isNumeric(word) ? -2 : -1;
+        CompletableFuture<ReloadReport> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(reload(file, mode));
+            }
+            catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
     }
 
     /**
-     * 通过词编号获得词。
+     * 获得本样本库的代数。首次加载的实例为第0代，此后每重新加载一次加1；未经{@link #reload}安装的样本库总是第0代。
      *
-     * @param wordNumber 词编号
-     * @return 词
+     * @return 代数
      */
-    public String getWord(int wordNumber) {
-        return words[wordNumber];
+    @Override
+    public int getGeneration() {
+        return generation;
     }
 
     /**
-     * 获得包含给定词的所有问句所对应的答句。
+     * 将之前某一代样本库中的词编号换算为本样本库中的词编号。
      *
-     * @param wordNumber 词编号
-     * @return 一个PairInt数组，表示所有答句。PairInt.a代表对话编号，PairInt.b代表对话内答句的位置。
+     * @param wordNumber 旧的词编号
+     * @param fromGeneration 旧样本库的代数
+     * @return 本样本库中的词编号。若该词已不存在，或旧样本库的代数过于久远已无法换算，则返回-1。
      */
-    public PairInt[] getChatNumbersContainWord(int wordNumber) {
-        return wordAnswerIndex[wordNumber];
+    @Override
+    public int remapWord(int wordNumber, int fromGeneration) {
+        return WordRemap.remap(wordRemap, generation, wordNumber, fromGeneration);
     }
 
     /**
-     * 通过对话编号获得对话。
+     * 对话样本库的加载方式。
+     */
+    public enum LoadMode {
+        MAPPED,     //将文件映射到内存，按需由操作系统调入。加载耗时与样本库规模无关
+        PRELOAD     //在加载时将文件按块并行读入堆外内存并逐块校验，此后的查询不再产生缺页和磁盘IO
+    }
+
+    /**
+     * 从文件加载对话样本库，等同于以{@link LoadMode#MAPPED}方式调用{@link #load(File, LoadMode)}。
      *
-     * @param chatNumber 对话编号
-     * @return 对话
+     * @param file 对话样本库文件
+     * @return 对话样本库
+     *
+     * @throws IOException 当读取文件发生IO异常或文件格式不正确时
      */
-    public Chat getChat(int chatNumber) {
-        return chats[chatNumber];
+    public static ChatBank load(File file) throws IOException {
+        return load(file, LoadMode.MAPPED);
     }
 
+    /**
+     * 从文件加载对话样本库。新格式的文件将按{@code mode}指定的方式加载；旧格式的文件将被读入并在内存中转换为新格式。
+     *
+     * @param file 对话样本库文件
+     * @param mode 加载方式
+     * @return 对话样本库
+     *
+     * @throws IOException 当读取文件发生IO异常或文件格式不正确时
+     */
+    public static ChatBank load(File file, LoadMode mode) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            if (channel.size() >= HEADER_SIZE) {
+                ByteBuffer magic = ByteBuffer.allocate(4);
+                channel.read(magic, 0);
+                magic.rewind();
+                if (magic.getInt() == MAGIC) {
+                    if (mode == LoadMode.PRELOAD) {
+                        return preload(channel);
+                    }
+                    ByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    image.order(ByteOrder.BIG_ENDIAN);
+                    return new ChatBank(image);
+                }
+            }
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return new ChatBank(convertLegacy(in));
+        }
+    }
 
-    private static class WordFrequencyVectorString extends WordFrequencyVector {
-        private HashMap<String, Integer> stringVector;
-        private WordFrequencyVectorString(String originalSentence, HashMap<String, Integer> stringVector) {
-            super(originalSentence, null, calcModule2(stringVector));
-            this.stringVector = stringVector;
+    //将文件从position开始的内容读满buffer
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
         }
-        private static int calcModule2(HashMap<String, Integer> stringVector) {
-            int module2 = 0;
-            for (int value : stringVector.values()) {
-                module2 += (value * value);
+    }
+
+    //并行执行所有任务，任一任务失败则抛出其异常
+    private static void invokeAllTasks(List<Callable<Void>> tasks) throws IOException {
+        for (Future<Void> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+            try {
+                future.get();
             }
-            return module2;
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            catch (ExecutionException e) {
+                //ForkJoinPool可能会将任务抛出的异常再包装几层
+                Throwable cause = e.getCause();
+                while (cause != null && !(cause instanceof IOException)) {
+                    cause = cause.getCause();
+                }
+                if (cause != null) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    //按块并行读入整个文件并校验
+    private static ChatBank preload(FileChannel channel) throws IOException {
+        if (channel.size() > Integer.MAX_VALUE) {
+            throw new IOException("对话样本库文件过大。");
+        }
+        ByteBuffer image = ByteBuffer.allocateDirect((int) channel.size());
+        image.order(ByteOrder.BIG_ENDIAN);
+
+        //文件头和段目录很小，先读入以获得块的划分
+        int dataOffset = DIRECTORY_OFFSET + SECTION_COUNT * 8;
+        ByteBuffer header = image.duplicate();
+        header.limit(Math.min(dataOffset, image.capacity()));
+        readFully(channel, header, 0);
+
+        //每个任务读取文件中连续的一段，读取的粒度与块大致相当
+        int taskCount = Math.max(1, ForkJoinPool.commonPool().getParallelism() * 4);
+        int sliceSize = Math.max(1 << 16, (image.capacity() - header.limit()) / taskCount + 1);
+        ArrayList<Callable<Void>> tasks = new ArrayList<>();
+        for (int begin = header.limit(); begin < image.capacity(); begin += sliceSize) {
+            int sliceBegin = begin;
+            int sliceEnd = (int) Math.min((long) begin + sliceSize, image.capacity());
+            tasks.add(() -> {
+                ByteBuffer slice = image.duplicate();
+                slice.limit(sliceEnd);
+                slice.position(sliceBegin);
+                readFully(channel, slice, sliceBegin);
+                return null;
+            });
         }
+        invokeAllTasks(tasks);
+
+        ChatBank chatBank = new ChatBank(image);
+        chatBank.verifyChunks();
+        return chatBank;
     }
 
     /**
-     * 通过源文件编译对话样本库。
-     *
-     * @param sourceFiles 源文件列表
-     * @param out 编译结果的输出流
+     * 并行校验样本库中所有的块。
      *
-     * @throws IOException 当向输出流{@code out}写入数据发生IO异常时
+     * @throws IOException 当有块的校验和不正确时
      */
-    public static void compileSourceFiles(File[] sourceFiles, WordBank wordBank, SynonymBank synonymBank, OutputStream out) throws IOException {
-        FileInputStream fileIn;
-        Scanner fileScanner;
-        String string;
-        SentenceSegmenter sentenceSegmenter;
-        SentenceSegmenter.ContextType lastContextType;
-        WordSegmenter wordSegmenter = new WordSegmenter(wordBank);
-        WordReader wordReader;
-
-        int chatPairPosition = 0;
+    public void verifyChunks() throws IOException {
+        ArrayList<Callable<Void>> tasks = new ArrayList<>();
+        int chunkCount = getWordChunkCount(image);
+        for (int i = 0; i < chunkCount; ++i) {
+            int chunk = i;
+            tasks.add(() -> {
+                if (wordChunkChecksum(image, sections, chunk) != getTableInt(SECTION_WORD_CHUNK, WORD_CHUNK_INTS, chunk, 3)) {
+                    throw new IOException("对话样本库文件已损坏：第" + chunk + "个词块校验失败。");
+                }
+                return null;
+            });
+        }
+        chunkCount = getChatChunkCount(image);
+        for (int i = 0; i < chunkCount; ++i) {
+            int chunk = i;
+            tasks.add(() -> {
+                if (chatChunkChecksum(image, sections, chunk) != getTableInt(SECTION_CHAT_CHUNK, CHAT_CHUNK_INTS, chunk, 7)) {
+                    throw new IOException("对话样本库文件已损坏：第" + chunk + "个对话块校验失败。");
+                }
+                return null;
+            });
+        }
+        invokeAllTasks(tasks);
+    }
 
-        TreeMap<String, ArrayList<PairInt>> wordsIndexs = new TreeMap<>();
-        ArrayList<PairInt> indexs;
+    //对话样本库的数据结构
 
-        ArrayList<Chat> chats = new ArrayList<>();
-        Chat chat;
-        ArrayList<ChatPair> chatPairsBuilder = new ArrayList<>();
-        ChatPair chatPair;
-        ArrayList<WordFrequencyVectorString> sentenceVectorsBuilder = new ArrayList<>();
+    //新格式的样本库数据
+    private final ByteBuffer image;
+    private final Charset textCharset;
 
-        //读取文件
-        for (File file : sourceFiles) {
-            try {
-                System.out.println("正在处理 " + file.getPath());
-                fileIn = new FileInputStream(file);
-                fileScanner = new Scanner(fileIn, "GBK");
-
-                //初始化新的段落
-                chatPairsBuilder.clear();
-
-                while (fileScanner.hasNext()) {
-                    string = fileScanner.nextLine();
-                    if (string.length() == 0) {
-                        //本段已结束
-                        if (chatPairPosition > 0) {
-                            chat = new Chat();
-                            chat.chatPairs = new ChatPair[chatPairsBuilder.size()];
-                            chatPairsBuilder.toArray(chat.chatPairs);
-                            chats.add(chat);
-                        }
-                        chatPairPosition = 0;
-                        chatPairsBuilder.clear();
-                        continue;
-                    }
+    private final int wordCount;
+    private final int chatCount;
+    private final int pairCount;
+    private final int sentenceCount;
+    private final int rawTextSize;
 
-                    sentenceVectorsBuilder.clear();
+    //各段在image中的起始位置
+    private final int[] sections;
 
-                    //读取问句
-                    sentenceSegmenter = new SentenceSegmenter(new FormattedReader(new StringReader(string)));
+    //本样本库成为当前实例时的代数，以及由之前各代的词编号换算到本代的映射
+    private int generation;
+    private WordRemap wordRemap;
+    //词散列表的容量
+    private final int wordHashCapacity;
 
-                    //构造问答对
-                    chatPair = new ChatPair();
+    //一个问答对。从样本库中取得的问答对只在首次用到问句或答句时才从缓冲区中解码
+    public final static class ChatPair {
+        private ChatBank chatBank;              //所属的样本库，编译时构造的问答对为null
+        private int pairNumber;                 //在样本库中的编号
+        private WordFrequencyVectors sentences; //问句，词频向量组形式
+        private String answer;                  //答句
+        private String[] bigrams;               //问句中的二元词组，前后两个词以BIGRAM_SEPARATOR连接。只有编译时构造的问答对才有
 
-                    //构造问题内容
-                    if (fileScanner.hasNext()) {
-                        chatPair.answer = fileScanner.nextLine();
-                    }
-                    else {
-                        chatPair.answer = "";
-                    }
+        private ChatPair(WordFrequencyVectors sentences, String answer, String[] bigrams) {
+            this.sentences = sentences;
+            this.answer = answer;
+            this.bigrams = bigrams;
+        }
 
-                    if (chatPair.answer.length() == 0) {
-                        //本段已结束
-                        if (chatPairPosition > 0) {
-                            chat = new Chat();
-                            chat.chatPairs = new ChatPair[chatPairsBuilder.size()];
-                            chatPairsBuilder.toArray(chat.chatPairs);
-                            chats.add(chat);
-                        }
-                        chatPairPosition = 0;
-                        chatPairsBuilder.clear();
-                        continue;
-                    }
+        private ChatPair(ChatBank chatBank, int pairNumber) {
+            this.chatBank = chatBank;
+            this.pairNumber = pairNumber;
+        }
 
-                    //分句
-                    int sentenceLength = 0;
-                    while ((string = sentenceSegmenter.nextSentence()) != null) {
-                        lastContextType = sentenceSegmenter.getLastContextType();
-                        //跳过引用、括号中的内容
-                        if (lastContextType == SentenceSegmenter.ContextType.IN_BRACKET || lastContextType == SentenceSegmenter.ContextType.IN_QUOTE) {
-                            continue;
-                        }
-                        //分词、数字转换和同义词转换
-                        wordReader = new SynonymReplaceReader(new SimpleWordReader(wordSegmenter.segment(string)), synonymBank);
-                        //构造子句
-                        HashMap<String, Integer> vector = new HashMap<>();
-                        sentenceLength += string.length();
-                        String originalSentence = string;
-                        while (wordReader.hasNext()) {
-                            string = wordReader.nextWord();
-                            //添加索引
-                            indexs = wordsIndexs.get(string);
-                            if (indexs == null) {
-                                indexs = new ArrayList<>();
-                                wordsIndexs.put(string, indexs);
-                            }
-                            indexs.add(new PairInt(chats.size(), chatPairPosition));
-                            //构造向量
-                            Integer frequency = vector.get(string);
-                            if (frequency == null) {
-                                frequency = 0;
-                            }
-                            vector.put(string, frequency + 1);
-                        }
+        public WordFrequencyVectors getSentences() {
+            if (sentences == null) {
+                sentences = chatBank.readSentences(pairNumber);
+            }
+            return sentences;
+        }
 
-                        //计算模平方同时将该分句加入集合
-                        sentenceVectorsBuilder.add(new WordFrequencyVectorString(originalSentence, vector));
-                    }
-                    WordFrequencyVector[] vectors = new WordFrequencyVector[sentenceVectorsBuilder.size()];
-                    sentenceVectorsBuilder.toArray(vectors);
-                    chatPair.sentences = new WordFrequencyVectors(vectors, sentenceLength);
-
-                    //将该问答对加入集合
-                    chatPairsBuilder.add(chatPair);
-
-                    ++chatPairPosition;
-                }
-                //本段已结束
-                if (chatPairPosition > 0) {
-                    chat = new Chat();
-                    chat.chatPairs = new ChatPair[chatPairsBuilder.size()];
-                    chatPairsBuilder.toArray(chat.chatPairs);
-                    chats.add(chat);
-                }
-                chatPairPosition = 0;
-                chatPairsBuilder.clear();
-                fileIn.close();
-            }
-            catch (Exception e) {
-                System.out.println("Exception occurred when processing " + file.getPath());
-                System.out.println("chartPosition = " + chats.size());
-                System.out.println("chatPairPosition = " + chatPairPosition);
-                e.printStackTrace();
-                return;
+        public String getAnswer() {
+            if (answer == null) {
+                answer = chatBank.getAnswer(pairNumber);
             }
+            return answer;
+        }
+
+        /**
+         * 获得答句的模板，见{@link AnswerTemplate}。模板在编译时已经解析好并存放在样本库中。
+         *
+         * @return 答句的模板，答句中没有占位符时返回{@code null}，此时答句可以直接使用
+         */
+        public AnswerTemplate getAnswerTemplate() {
+            return chatBank == null ? AnswerTemplate.compile(getAnswer()) : chatBank.getAnswerTemplate(pairNumber, getAnswer());
         }
+    }
 
-        //词库变数组
-        ChatBank chatBank = new ChatBank();
-        chatBank.words = new String[wordsIndexs.size()];
-        wordsIndexs.keySet().toArray(chatBank.words);
+    //从样本库中取得的子句。向量元素不复制到堆上，而是直接在缓冲区中按词编号升序排列的(词, 频度)表上访问；原始句子只在需要时才解码
+    private final static class BankWordFrequencyVector extends WordFrequencyVector {
+        private ChatBank chatBank;
+        private int sentenceNumber;
+        private int vectorBegin;    //该子句的向量元素在向量表中的范围
+        private int vectorEnd;
+        private String originalSentence;
 
-        System.out.print("正在写入文件...");
+        //子句的文本由sentenceNumber给出，向量由其所在问句中对应的问句子句questionSentenceNumber给出
+        private BankWordFrequencyVector(ChatBank chatBank, int sentenceNumber, int questionSentenceNumber) {
+            super(chatBank.getTableInt(SECTION_SENTENCE_TEXT, SENTENCE_TEXT_INTS, sentenceNumber, 2), null,
+                    chatBank.getTableInt(SECTION_SENTENCE_MODULE, 1, questionSentenceNumber, 0));
+            this.chatBank = chatBank;
+            this.sentenceNumber = sentenceNumber;
+            vectorBegin = chatBank.getTableInt(SECTION_SENTENCE_VECTOR, 1, questionSentenceNumber, 0);
+            vectorEnd = chatBank.getTableInt(SECTION_SENTENCE_VECTOR, 1, questionSentenceNumber + 1, 0);
+        }
 
-        //写入文件
-        ByteBuffer byteBuffer = ByteBuffer.allocate(4);
-        byteBuffer.order(ByteOrder.BIG_ENDIAN);
-
-        //词的个数
-        byteBuffer.rewind();
-        byteBuffer.putInt(wordsIndexs.size());
-        out.write(byteBuffer.array());
-        for (Map.Entry<String, ArrayList<PairInt>> entry : wordsIndexs.entrySet()) {
-            //词内容
-            out.write(entry.getKey().getBytes("GBK"));
-            out.write(0);
-            //索引大小
-            byteBuffer.rewind();
-            byteBuffer.putInt(entry.getValue().size());
-            out.write(byteBuffer.array());
-            for (PairInt pairInt : entry.getValue()) {
-                //段号
-                byteBuffer.rewind();
-                byteBuffer.putInt(pairInt.a);
-                out.write(byteBuffer.array());
-                //段内问答对号
-                out.write(pairInt.b);
-            }
-        }
-        //段数
-        byteBuffer.rewind();
-        byteBuffer.putInt(chats.size());
-        out.write(byteBuffer.array());
-        for (Chat chatI : chats) {
-            //问答对数
-            out.write(chatI.chatPairs.length);
-            for (ChatPair chatPairI : chatI.chatPairs) {
-                //问题内容的子句数
-                out.write(chatPairI.sentences.getVectors().length);
-                for (WordFrequencyVector vectorI : chatPairI.sentences.getVectors()) {
-                    //子句内容
-                    out.write(vectorI.getOriginalSentence().getBytes("GBK"));
-                    out.write(0);
-                    //子句向量
-                    for (Map.Entry<String, Integer> entry : ((WordFrequencyVectorString)vectorI).stringVector.entrySet()) {
-                        out.write(entry.getValue());
-                        byteBuffer.rewind();
-                        byteBuffer.putInt(chatBank.getWordNumber(entry.getKey()));
-                        out.write(byteBuffer.array());
-                    }
-                    out.write(0);
-                    //向量平方和
-                    byteBuffer.rewind();
-                    byteBuffer.putInt(vectorI.getModule2());
-                    out.write(byteBuffer.array());
+        @Override
+        public int getWordCount() {
+            return vectorEnd - vectorBegin;
+        }
+
+        @Override
+        public int getWordAt(int index) {
+            return chatBank.getTableInt(SECTION_VECTOR, 2, vectorBegin + index, 0);
+        }
+
+        @Override
+        public int getFrequencyAt(int index) {
+            return chatBank.getTableInt(SECTION_VECTOR, 2, vectorBegin + index, 1);
+        }
+
+        @Override
+        public int getFrequency(int word) {
+            //二分法查找
+            int left = vectorBegin;
+            int right = vectorEnd;
+            int middle;
+            int compare;
+            while (left < right) {
+                middle = (left + right) >>> 1;
+                compare = chatBank.getTableInt(SECTION_VECTOR, 2, middle, 0);
+                if (word > compare) {
+                    left = middle + 1;
+                }
+                else if (word < compare) {
+                    right = middle;
                 }
+                else {
+                    return chatBank.getTableInt(SECTION_VECTOR, 2, middle, 1);
+                }
+            }
+            return 0;
+        }
 
-                //回答内容
-                out.write(chatPairI.answer.getBytes("GBK"));
-                out.write(0);
+        @Override
+        public HashMap<Integer, Integer> getVector() {
+            //仅为兼容保留，每次调用都会在堆上生成新的集合
+            HashMap<Integer, Integer> vector = new HashMap<>();
+            for (int i = vectorBegin; i < vectorEnd; ++i) {
+                vector.put(chatBank.getTableInt(SECTION_VECTOR, 2, i, 0), chatBank.getTableInt(SECTION_VECTOR, 2, i, 1));
             }
+            return vector;
         }
-        System.out.println("完成！");
+
+        @Override
+        public String getOriginalSentence() {
+            if (originalSentence == null) {
+                originalSentence = chatBank.getText(
+                        chatBank.getTableInt(SECTION_SENTENCE_TEXT, SENTENCE_TEXT_INTS, sentenceNumber, 0),
+                        chatBank.getTableInt(SECTION_SENTENCE_TEXT, SENTENCE_TEXT_INTS, sentenceNumber, 1));
+            }
+            return originalSentence;
+        }
+    }
+
+    //已解码答句或答句块的缓存，按最近最少使用的原则淘汰
+    private final static class AnswerCache<V> extends LinkedHashMap<Integer, V> {
+        private static final long serialVersionUID = 1L;
+
+        private int capacity;
+
+        private AnswerCache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, V> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    //答句缓存的默认容量
+    private static final int DEFAULT_ANSWER_CACHE_CAPACITY = 256;
+
+    private final AnswerCache<String> answerCache = new AnswerCache<>(DEFAULT_ANSWER_CACHE_CAPACITY);
+
+    //生成候选集时的文档频率上限，见setDocumentFrequencyCeiling。documentFrequencyLimit是换算成的问答对个数
+    private volatile double documentFrequencyCeiling = 1;
+    private volatile int documentFrequencyLimit = Integer.MAX_VALUE;
+
+    //是否优先以二元词组生成候选集，以及含有检索二元词组的候选项的加分比例，见setBigramCandidates和setBigramBoost
+    private volatile boolean bigramCandidates = false;
+    private volatile double bigramBoost = 0;
+
+    //答句块缓存的默认容量
+    private static final int DEFAULT_ANSWER_BLOCK_CACHE_CAPACITY = 8;
+
+    //已解压的答句块，答句未压缩时不使用
+    private final AnswerCache<byte[]> answerBlockCache = new AnswerCache<>(DEFAULT_ANSWER_BLOCK_CACHE_CAPACITY);
+
+    //答句压缩的预置字典和块数，答句未压缩时字典为null
+    private final byte[] answerDictionary;
+    private final int answerBlockCount;
+
+    //答句块的读取统计：读取次数、命中缓存次数、解压次数、解压总耗时(纳秒)
+    private final AtomicLong answerBlockRequests = new AtomicLong();
+    private final AtomicLong answerBlockHits = new AtomicLong();
+    private final AtomicLong answerBlockDecodes = new AtomicLong();
+    private final AtomicLong answerDecodeNanos = new AtomicLong();
+
+    /**
+     * 答句存储的统计结果。
+     */
+    public final static class AnswerStoreStatistics {
+        private final int blockSize;
+        private final int blockCount;
+        private final long rawSize;
+        private final long compressedSize;
+        private final long dictionarySize;
+        private final long requestCount;
+        private final long hitCount;
+        private final long decodeCount;
+        private final long decodeNanos;
+
+        private AnswerStoreStatistics(int blockSize, int blockCount, long rawSize, long compressedSize, long dictionarySize,
+                                      long requestCount, long hitCount, long decodeCount, long decodeNanos) {
+            this.blockSize = blockSize;
+            this.blockCount = blockCount;
+            this.rawSize = rawSize;
+            this.compressedSize = compressedSize;
+            this.dictionarySize = dictionarySize;
+            this.requestCount = requestCount;
+            this.hitCount = hitCount;
+            this.decodeCount = decodeCount;
+            this.decodeNanos = decodeNanos;
+        }
+
+        /**
+         * 获得答句块大小，答句未压缩时为0。
+         */
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        /**
+         * 获得答句块的个数。
+         */
+        public int getBlockCount() {
+            return blockCount;
+        }
+
+        /**
+         * 获得不同答句的总字节数。
+         */
+        public long getRawSize() {
+            return rawSize;
+        }
+
+        /**
+         * 获得答句压缩后的字节数，不含预置字典。
+         */
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * 获得预置字典的字节数。
+         */
+        public long getDictionarySize() {
+            return dictionarySize;
+        }
+
+        /**
+         * 获得压缩比，即不同答句的总字节数与压缩后的字节数(含预置字典)之比。答句未压缩时为1。
+         */
+        public double getCompressionRatio() {
+            return compressedSize + dictionarySize == 0 ? 1.0 : (double) rawSize / (compressedSize + dictionarySize);
+        }
+
+        /**
+         * 获得读取答句块的次数。
+         */
+        public long getRequestCount() {
+            return requestCount;
+        }
+
+        /**
+         * 获得答句块缓存的命中率，没有读取过时为0。
+         */
+        public double getHitRate() {
+            return requestCount == 0 ? 0 : (double) hitCount / requestCount;
+        }
+
+        /**
+         * 获得解压答句块的次数。
+         */
+        public long getDecodeCount() {
+            return decodeCount;
+        }
+
+        /**
+         * 获得解压一个答句块的平均耗时(纳秒)，没有解压过时为0。
+         */
+        public double getAverageDecodeNanos() {
+            return decodeCount == 0 ? 0 : (double) decodeNanos / decodeCount;
+        }
+
+        @Override
+        public String toString() {
+            if (blockSize == 0) {
+                return "答句未压缩";
+            }
+            return String.format("块大小%d字节，共%d块，%d字节 → %d字节(含字典%d字节)，压缩比%.2f；读取%d次，缓存命中率%.1f%%，解压%d次，平均耗时%.1fμs",
+                    blockSize, blockCount, rawSize, compressedSize + dictionarySize, dictionarySize, getCompressionRatio(),
+                    requestCount, getHitRate() * 100, decodeCount, getAverageDecodeNanos() / 1e3);
+        }
+    }
+
+    //多个问答对构成一个对话
+    public final static class Chat {
+        private ChatBank chatBank;
+        private int firstPair;  //该对话第一个问答对在样本库中的编号
+        private int pairCount;
+
+        private Chat(ChatBank chatBank, int firstPair, int pairCount) {
+            this.chatBank = chatBank;
+            this.firstPair = firstPair;
+            this.pairCount = pairCount;
+        }
+
+        public ChatPair getChatPair(int position) {
+            if (position < 0 || position >= pairCount) {
+                throw new IndexOutOfBoundsException("position = " + position + ", pairCount = " + pairCount);
+            }
+            return chatBank.readChatPair(firstPair + position);
+        }
+
+        public int getChatPairCount() {
+            return pairCount;
+        }
+    }
+
+    /**
+     * 问句矩阵。以压缩稀疏行(CSR)的形式把所有问句的向量存放在几张连续的表中，第i行就是问句编号为i的问句向量，
+     * 即该问句所有子句的词频向量之和。行内按词编号升序排列，因此与同样按词编号排序的检索向量计算夹角余弦只需一次顺序归并，
+     * 不经过任何集合和对象。问句相同的问答对共用一行，问答对的行号由{@link #getQuestionOfPair}给出。
+     * 样本库的问句矩阵就是文件中的SECTION_QUESTION_ROW和SECTION_QUESTION_TERM两段，不占用堆内存，也不需要在加载或检索时生成。
+     */
+    public final static class QuestionMatrix {
+        private final ByteBuffer data;
+        private final int rowCount;
+        private final int rowBase;      //行表的位置，每行一个(首元素编号, 模平方)，末尾另有一个结尾项
+        private final int termBase;     //元素表的位置，每个元素一个(词编号, 频度)
+        private final int pairBase;     //各问答对的问句编号，即行号
+
+        private QuestionMatrix(ByteBuffer data, int rowCount, int rowBase, int termBase, int pairBase) {
+            this.data = data;
+            this.rowCount = rowCount;
+            this.rowBase = rowBase;
+            this.termBase = termBase;
+            this.pairBase = pairBase;
+        }
+
+        /**
+         * 获得矩阵的行数，即不同问句的个数。
+         */
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * 获得问答对的问句编号，即其问句向量所在的行号。
+         */
+        public int getQuestionOfPair(int chatPairNumber) {
+            return data.getInt(pairBase + chatPairNumber * 4);
+        }
+
+        /**
+         * 获得第row行第一个元素的下标。
+         */
+        public int getRowStart(int row) {
+            return data.getInt(rowBase + row * 8);
+        }
+
+        /**
+         * 获得第row行最后一个元素之后的下标。
+         */
+        public int getRowEnd(int row) {
+            return data.getInt(rowBase + row * 8 + 8);
+        }
+
+        /**
+         * 获得下标为index的元素的词编号。
+         */
+        public int getTermId(int index) {
+            return data.getInt(termBase + index * 8);
+        }
+
+        /**
+         * 获得下标为index的元素的频度。
+         */
+        public float getFrequency(int index) {
+            return data.getInt(termBase + index * 8 + 4);
+        }
+
+        /**
+         * 获得第row行的模平方。
+         */
+        public int getModule2(int row) {
+            return data.getInt(rowBase + row * 8 + 4);
+        }
+
+        /**
+         * 计算第row行与一个检索向量的夹角余弦。
+         *
+         * @param row 行号，即问句编号
+         * @param words 检索向量中的词，按升序排列
+         * @param weights 检索向量中各词的权值
+         * @param wordCount 检索向量中词的个数
+         * @param module2 检索向量的模平方
+         * @return 夹角余弦
+         */
+        public double calculateCosine(int row, int[] words, double[] weights, int wordCount, double module2) {
+            ByteBuffer data = this.data;
+            double sum = 0;
+            int i = termBase + data.getInt(rowBase + row * 8) * 8;
+            int end = termBase + data.getInt(rowBase + row * 8 + 8) * 8;
+            int j = 0;
+            while (i < end && j < wordCount) {
+                int termId = data.getInt(i);
+                int word = words[j];
+                if (termId < word) {
+                    i += 8;
+                }
+                else if (termId > word) {
+                    ++j;
+                }
+                else {
+                    sum += weights[j] * data.getInt(i + 4);
+                    i += 8;
+                    ++j;
+                }
+            }
+            return sum / Math.sqrt(module2 * data.getInt(rowBase + row * 8 + 4));
+        }
+    }
+
+    private final QuestionMatrix questionMatrix;
+
+    //一次检索中已算出的问句得分。相同的问句只计算一次夹角余弦，其得分由引用它的所有问答对共用
+    final static class ScoreCache {
+        private final int[] keys;       //开放寻址散列表，空槽为-1
+        private final double[] scores;
+        private final int mask;
+        private int slot;               //最近一次find找到的槽位，或应当插入的槽位
+
+        //size为最多放入的键的个数
+        ScoreCache(int size) {
+            int capacity = Integer.highestOneBit(Math.max(size, 1)) << 2;
+            keys = new int[capacity];
+            Arrays.fill(keys, -1);
+            scores = new double[capacity];
+            mask = capacity - 1;
+        }
+
+        //查找非负的键key，找到时返回true，此后可由get取得其得分；否则返回false，此后可由put放入其得分
+        boolean find(int key) {
+            slot = (key * 0x9E3779B9) & mask;
+            while (keys[slot] != -1) {
+                if (keys[slot] == key) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        double get() {
+            return scores[slot];
+        }
+
+        void put(int key, double score) {
+            keys[slot] = key;
+            scores[slot] = score;
+        }
+    }
+
+    //生成词编号经过termMap换算的问句矩阵。换算后各行重新按词编号排序，矩阵存放在一块新的堆外内存中
+    QuestionMatrix buildQuestionMatrix(int[] termMap) {
+        int rowCount = questionMatrix.getRowCount();
+        int termCount = questionMatrix.getRowStart(rowCount);
+        ByteBuffer data = ByteBuffer.allocateDirect((rowCount + 1) * 8 + termCount * 8 + pairCount * 4);
+        data.order(ByteOrder.BIG_ENDIAN);
+        int termBase = (rowCount + 1) * 8;
+        int pairBase = termBase + termCount * 8;
+        long[] row = new long[16];
+        for (int question = 0; question <= rowCount; ++question) {
+            data.putInt(question * 8, questionMatrix.getRowStart(question));
+            data.putInt(question * 8 + 4, question < rowCount ? questionMatrix.getModule2(question) : 0);
+        }
+        for (int question = 0; question < rowCount; ++question) {
+            int begin = questionMatrix.getRowStart(question);
+            int count = questionMatrix.getRowEnd(question) - begin;
+            if (row.length < count) {
+                row = new long[Math.max(count, row.length * 2)];
+            }
+            //换算后的词编号不一定保持原来的顺序，把(词, 频度)打包成long重新排序
+            for (int i = 0; i < count; ++i) {
+                row[i] = ((long) termMap[questionMatrix.getTermId(begin + i)] << 32)
+                        | (getTableInt(SECTION_QUESTION_TERM, 2, begin + i, 1) & 0xFFFFFFFFL);
+            }
+            Arrays.sort(row, 0, count);
+            for (int i = 0; i < count; ++i) {
+                data.putLong(termBase + (begin + i) * 8, row[i]);
+            }
+        }
+        for (int pair = 0; pair < pairCount; ++pair) {
+            data.putInt(pairBase + pair * 4, questionMatrix.getQuestionOfPair(pair));
+        }
+        return new QuestionMatrix(data, rowCount, 0, termBase, pairBase);
+    }
+
+    /**
+     * 获得问句矩阵。
+     *
+     * @return 问句矩阵，倒排表给出的问答对编号经{@link QuestionMatrix#getQuestionOfPair}换算为行号。
+     */
+    public QuestionMatrix getQuestionMatrix() {
+        return questionMatrix;
+    }
+
+    /**
+     * 在一块新格式的缓冲区上构造一个对话样本库。请使用{@link ChatBank#getInstance}静态方法获得对话样本库的实例。
+     */
+    private ChatBank(ByteBuffer image) throws IOException {
+        this.image = image;
+        if (image.getInt(0) != MAGIC) {
+            throw new IOException("不是对话样本库文件。");
+        }
+        if (image.getInt(4) != VERSION) {
+            throw new IOException("不支持的对话样本库版本：" + image.getInt(4));
+        }
+        wordCount = image.getInt(8);
+        chatCount = image.getInt(12);
+        pairCount = image.getInt(16);
+        sentenceCount = image.getInt(20);
+        rawTextSize = image.getInt(24);
+        if (image.getInt(28) != SECTION_COUNT) {
+            throw new IOException("对话样本库文件已损坏。");
+        }
+        sections = readSectionOffsets(image);
+        for (int i = 0; i < SECTION_COUNT; ++i) {
+            if (sections[i] < 0 || sections[i] + image.getInt(DIRECTORY_OFFSET + i * 8 + 4) > image.capacity()) {
+                throw new IOException("对话样本库文件已损坏。");
+            }
+        }
+        textCharset = Charset.forName(TEXT_ENCODING);
+        wordHashCapacity = image.getInt(DIRECTORY_OFFSET + SECTION_WORD_HASH * 8 + 4) / 8;
+        if (Integer.bitCount(wordHashCapacity) != 1 || wordHashCapacity <= wordCount) {
+            throw new IOException("对话样本库文件已损坏。");
+        }
+        int bigramBytes = image.getInt(DIRECTORY_OFFSET + SECTION_BIGRAM * 8 + 4);
+        if (bigramBytes % 16 != 0 || bigramBytes == 16 && image.getInt(DIRECTORY_OFFSET + SECTION_BIGRAM_POSTING * 8 + 4) != 0) {
+            throw new IOException("对话样本库文件已损坏。");
+        }
+        int questionCount = image.getInt(DIRECTORY_OFFSET + SECTION_QUESTION_SENTENCE * 8 + 4) / 4 - 1;
+        if (questionCount < 0 || image.getInt(DIRECTORY_OFFSET + SECTION_QUESTION_ROW * 8 + 4) != (questionCount + 1) * 8
+                || image.getInt(DIRECTORY_OFFSET + SECTION_PAIR_QUESTION * 8 + 4) != pairCount * 4
+                || image.getInt(DIRECTORY_OFFSET + SECTION_QUESTION_TERM * 8 + 4) != getTableInt(SECTION_QUESTION_ROW, 2, questionCount, 0) * 8) {
+            throw new IOException("对话样本库文件已损坏。");
+        }
+        questionMatrix = new QuestionMatrix(image, questionCount,
+                sections[SECTION_QUESTION_ROW], sections[SECTION_QUESTION_TERM], sections[SECTION_PAIR_QUESTION]);
+        if (image.getInt(DIRECTORY_OFFSET + SECTION_ANSWER_TEMPLATE * 8 + 4) % 12 != 0
+                || image.getInt(DIRECTORY_OFFSET + SECTION_TEMPLATE_PART * 8 + 4) % (AnswerTemplate.PART_INTS * 4) != 0) {
+            throw new IOException("对话样本库文件已损坏。");
+        }
+        int answerBlockBytes = image.getInt(DIRECTORY_OFFSET + SECTION_ANSWER_BLOCK * 8 + 4);
+        if (answerBlockBytes == 0) {
+            answerDictionary = null;
+            answerBlockCount = 0;
+        }
+        else {
+            if (answerBlockBytes < 12 || (answerBlockBytes - 4) % 8 != 0) {
+                throw new IOException("对话样本库文件已损坏。");
+            }
+            answerBlockCount = (answerBlockBytes - 4) / 8 - 1;
+            //字典很小，且每次解压都要用到，复制一份
+            answerDictionary = new byte[image.getInt(DIRECTORY_OFFSET + SECTION_ANSWER_DICTIONARY * 8 + 4)];
+            ByteBuffer dictionary = image.duplicate();
+            dictionary.position(sections[SECTION_ANSWER_DICTIONARY]);
+            dictionary.get(answerDictionary);
+        }
+    }
+
+    //读取旧格式的对话样本库并转换为新格式
+    private static ByteBuffer convertLegacy(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ChatBankWriter writer = new ChatBankWriter();
+
+        //read all word and index
+        //旧格式以(对话编号, 对话内位置)表示倒排项，需在读完对话后才能换算为问答对编号，因此先暂存
+        int wordCount = dataIn.readInt();
+        String[] words = new String[wordCount];
+        long[][] postings = new long[wordCount][];
+        for (int i = 0; i < wordCount; ++i) {
+            words[i] = readLegacyString(dataIn, buffer);
+            postings[i] = new long[dataIn.readInt()];
+            for (int j = 0; j < postings[i].length; ++j) {
+                long chat = dataIn.readInt();
+                postings[i][j] = (chat << 32) | dataIn.readUnsignedByte();
+            }
+        }
+
+        //read chat data
+        int chatCount = dataIn.readInt();
+        int[] chatFirstPairs = new int[chatCount];
+        int pairNumber = 0;
+        for (int i = 0; i < chatCount; ++i) {
+            writer.beginChat();
+            chatFirstPairs[i] = pairNumber;
+            int pairCount = dataIn.readUnsignedByte();
+            for (int j = 0; j < pairCount; ++j) {
+                int sentenceCount = dataIn.readUnsignedByte();
+                String[] sentences = new String[sentenceCount];
+                int[][] vectorWords = new int[sentenceCount][];
+                int[][] frequencies = new int[sentenceCount][];
+                int[] module2s = new int[sentenceCount];
+                for (int k = 0; k < sentenceCount; ++k) {
+                    sentences[k] = readLegacyString(dataIn, buffer);
+                    TreeMap<Integer, Integer> vector = new TreeMap<>();
+                    int frequency;
+                    while ((frequency = dataIn.readUnsignedByte()) != 0) {
+                        vector.put(dataIn.readInt(), frequency);
+                    }
+                    module2s[k] = dataIn.readInt();
+                    vectorWords[k] = new int[vector.size()];
+                    frequencies[k] = new int[vector.size()];
+                    int position = 0;
+                    for (Map.Entry<Integer, Integer> entry : vector.entrySet()) {
+                        vectorWords[k][position] = entry.getKey();
+                        frequencies[k][position] = entry.getValue();
+                        ++position;
+                    }
+                }
+                writer.addChatPair(sentences, vectorWords, frequencies, module2s, readLegacyString(dataIn, buffer));
+                ++pairNumber;
+            }
+        }
+
+        for (int i = 0; i < wordCount; ++i) {
+            int[] chatPairs = new int[postings[i].length];
+            for (int j = 0; j < chatPairs.length; ++j) {
+                chatPairs[j] = chatFirstPairs[(int) (postings[i][j] >>> 32)] + (int) postings[i][j];
+            }
+            writer.addWord(words[i], chatPairs);
+        }
+        return writer.toByteBuffer();
+    }
+
+    //读取旧格式中以0结尾的GBK字符串
+    private static String readLegacyString(DataInputStream in, ByteArrayOutputStream buffer) throws IOException {
+        int read;
+        buffer.reset();
+        while ((read = in.readUnsignedByte()) != 0) {
+            buffer.write(read);
+        }
+        return buffer.toString(TEXT_ENCODING);
+    }
+
+    //读取某个定长表中第index项的第field个整数
+    private int getTableInt(int section, int recordInts, int index, int field) {
+        return image.getInt(sections[section] + (index * recordInts + field) * 4);
+    }
+
+    //读取文本段中的文本
+    private String getText(int offset, int length) {
+        byte[] bytes = new byte[length];
+        int base = sections[SECTION_TEXT] + offset;
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = image.get(base + i);
+        }
+        return new String(bytes, textCharset);
+    }
+
+    //读取由(偏移, 长度)表中第index项所指的文本
+    private String getTableText(int section, int index) {
+        return getText(getTableInt(section, 2, index, 0), getTableInt(section, 2, index, 1));
+    }
+
+    //构造编号为pairNumber的问答对
+    private ChatPair readChatPair(int pairNumber) {
+        return new ChatPair(this, pairNumber);
+    }
+
+    //读出编号为pairNumber的问答对的问句。子句的向量仍留在缓冲区中，原始句子暂不解码
+    private WordFrequencyVectors readSentences(int pairNumber) {
+        int sentenceBegin = getTableInt(SECTION_PAIR_SENTENCE, 1, pairNumber, 0);
+        int sentenceEnd = getTableInt(SECTION_PAIR_SENTENCE, 1, pairNumber + 1, 0);
+        int questionSentenceBegin = getTableInt(SECTION_QUESTION_SENTENCE, 1, getTableInt(SECTION_PAIR_QUESTION, 1, pairNumber, 0), 0);
+        WordFrequencyVector[] wordFrequencyVectors = new WordFrequencyVector[sentenceEnd - sentenceBegin];
+        int sentenceLength = 0;
+        for (int i = sentenceBegin; i < sentenceEnd; ++i) {
+            wordFrequencyVectors[i - sentenceBegin] = new BankWordFrequencyVector(this, i, questionSentenceBegin + i - sentenceBegin);
+            sentenceLength += wordFrequencyVectors[i - sentenceBegin].getOriginalSentenceLength();
+        }
+        return new WordFrequencyVectors(wordFrequencyVectors, sentenceLength);
+    }
+
+    //获得编号为pairNumber的问答对的答句，优先从缓存中获取
+    private String getAnswer(int pairNumber) {
+        String answer;
+        synchronized (answerCache) {
+            answer = answerCache.get(pairNumber);
+        }
+        if (answer == null) {
+            answer = answerDictionary == null ? getTableText(SECTION_PAIR_ANSWER, pairNumber)
+                    : getCompressedAnswer(getTableInt(SECTION_PAIR_ANSWER, 2, pairNumber, 0), getTableInt(SECTION_PAIR_ANSWER, 2, pairNumber, 1));
+            synchronized (answerCache) {
+                answerCache.put(pairNumber, answer);
+            }
+        }
+        return answer;
+    }
+
+    //获得编号为pairNumber的问答对的答句模板。模板目录按问答对编号升序排列，二分查找；不在目录中的答句没有占位符
+    private AnswerTemplate getAnswerTemplate(int pairNumber, String answer) {
+        int left = 0;
+        int right = image.getInt(DIRECTORY_OFFSET + SECTION_ANSWER_TEMPLATE * 8 + 4) / 12;
+        while (left < right) {
+            int middle = (left + right) >>> 1;
+            int compare = getTableInt(SECTION_ANSWER_TEMPLATE, 3, middle, 0);
+            if (compare < pairNumber) {
+                left = middle + 1;
+            }
+            else if (compare > pairNumber) {
+                right = middle;
+            }
+            else {
+                int firstPart = getTableInt(SECTION_ANSWER_TEMPLATE, 3, middle, 1);
+                int[] parts = new int[getTableInt(SECTION_ANSWER_TEMPLATE, 3, middle, 2) * AnswerTemplate.PART_INTS];
+                for (int i = 0; i < parts.length; ++i) {
+                    parts[i] = getTableInt(SECTION_TEMPLATE_PART, 1, firstPart * AnswerTemplate.PART_INTS + i, 0);
+                }
+                return new AnswerTemplate(answer, parts);
+            }
+        }
+        return null;
+    }
+
+    //读取答句块目录中第block项的第field个整数
+    private int getAnswerBlockInt(int block, int field) {
+        return image.getInt(sections[SECTION_ANSWER_BLOCK] + 4 + (block * 2 + field) * 4);
+    }
+
+    //读取答句流中的一个答句。答句不跨块，只需解压其所在的一块
+    private String getCompressedAnswer(int offset, int length) {
+        if (length == 0) {
+            return "";
+        }
+        int left = 0;
+        int right = answerBlockCount - 1;
+        while (left < right) {
+            int middle = (left + right + 1) >>> 1;
+            if (getAnswerBlockInt(middle, 0) <= offset) {
+                left = middle;
+            }
+            else {
+                right = middle - 1;
+            }
+        }
+        byte[] block = getAnswerBlock(left);
+        return new String(block, offset - getAnswerBlockInt(left, 0), length, textCharset);
+    }
+
+    //获得解压后的答句块，优先从缓存中获取
+    private byte[] getAnswerBlock(int blockNumber) {
+        answerBlockRequests.incrementAndGet();
+        byte[] block;
+        synchronized (answerBlockCache) {
+            block = answerBlockCache.get(blockNumber);
+        }
+        if (block != null) {
+            answerBlockHits.incrementAndGet();
+            return block;
+        }
+
+        long begin = System.nanoTime();
+        int dataBegin = getAnswerBlockInt(blockNumber, 1);
+        //原始Deflate格式的输入末尾需要多一个空字节
+        byte[] data = new byte[getAnswerBlockInt(blockNumber + 1, 1) - dataBegin + 1];
+        ByteBuffer range = image.duplicate();
+        range.position(sections[SECTION_ANSWER_DATA] + dataBegin);
+        range.get(data, 0, data.length - 1);
+        block = new byte[getAnswerBlockInt(blockNumber + 1, 0) - getAnswerBlockInt(blockNumber, 0)];
+        Inflater inflater = new Inflater(true);
+        try {
+            if (answerDictionary.length > 0) {
+                inflater.setDictionary(answerDictionary);
+            }
+            inflater.setInput(data);
+            int length = 0;
+            while (length < block.length) {
+                int inflated = inflater.inflate(block, length, block.length - length);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new DataFormatException();
+                }
+                length += inflated;
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IllegalStateException("对话样本库文件已损坏：第" + blockNumber + "个答句块无法解压。", e);
+        }
+        finally {
+            inflater.end();
+        }
+        answerDecodeNanos.addAndGet(System.nanoTime() - begin);
+        answerBlockDecodes.incrementAndGet();
+        synchronized (answerBlockCache) {
+            answerBlockCache.put(blockNumber, block);
+        }
+        return block;
+    }
+
+    /**
+     * 设置已解压答句块缓存的容量。容量为0时不缓存。答句未压缩时没有作用。
+     *
+     * @param capacity 最多缓存的答句块个数
+     */
+    public void setAnswerBlockCacheCapacity(int capacity) {
+        synchronized (answerBlockCache) {
+            answerBlockCache.capacity = Math.max(0, capacity);
+            if (answerBlockCache.size() > answerBlockCache.capacity) {
+                answerBlockCache.clear();
+            }
+        }
+    }
+
+    /**
+     * 判断本样本库的答句是否分块压缩存放。
+     *
+     * @return 答句压缩时返回true
+     */
+    public boolean isAnswerCompressed() {
+        return answerDictionary != null;
+    }
+
+    //获得答句块大小，答句未压缩时为0
+    int getAnswerBlockSize() {
+        return answerDictionary == null ? 0 : image.getInt(sections[SECTION_ANSWER_BLOCK]);
+    }
+
+    /**
+     * 获得答句存储的统计结果，包括压缩比、答句块缓存的命中率和解压的平均耗时。
+     *
+     * @return 统计结果
+     */
+    public AnswerStoreStatistics getAnswerStoreStatistics() {
+        if (answerDictionary == null) {
+            return new AnswerStoreStatistics(0, 0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        return new AnswerStoreStatistics(getAnswerBlockSize(), answerBlockCount, getAnswerBlockInt(answerBlockCount, 0),
+                getAnswerBlockInt(answerBlockCount, 1), answerDictionary.length, answerBlockRequests.get(),
+                answerBlockHits.get(), answerBlockDecodes.get(), answerDecodeNanos.get());
+    }
+
+    /**
+     * 设置已解码答句缓存的容量。容量为0时不缓存。
+     *
+     * @param capacity 最多缓存的答句个数
+     */
+    public void setAnswerCacheCapacity(int capacity) {
+        synchronized (answerCache) {
+            answerCache.capacity = Math.max(0, capacity);
+            if (answerCache.size() > answerCache.capacity) {
+                answerCache.clear();
+            }
+        }
+    }
+
+    /**
+     * 通过给定词获得其编号。查找经过词的散列表进行，耗时与词库规模无关，且不生成任何对象。
+     *
+     * @param word 词
+     * @return 词的编号。若不存在该次则返回-1。
+     */
+    @Override
+    public int getWordNumber(String word) {
+        //在散列表中线性探测，散列值相同时再与词表中的词逐字比较
+        int hash = word.hashCode();
+        int slot = wordHashSlot(hash, wordHashCapacity);
+        int wordNumber;
+        while ((wordNumber = getTableInt(SECTION_WORD_HASH, 2, slot, 1)) != -1) {
+            if (getTableInt(SECTION_WORD_HASH, 2, slot, 0) == hash && wordEquals(wordNumber, word)) {
+                return wordNumber;
+            }
+            slot = (slot + 1) & (wordHashCapacity - 1);
+        }
+        return Utils.isNumeric(word) ? -2 : -1;
+    }
+
+    //读取词表中position处的变长整数，返回值的低32位为整数值，高32位为其后的位置
+    private long readWordVarint(int position) {
+        int b = image.get(position++);
+        int value = b & 0x7F;
+        int shift = 7;
+        while (b < 0) {
+            b = image.get(position++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return ((long) position << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    //判断词表中编号为wordNumber的词是否与word相同，不生成任何对象
+    private boolean wordEquals(int wordNumber, String word) {
+        int wordLength = word.length();
+        int position = sections[SECTION_WORD_ARENA] + getTableInt(SECTION_WORD_BLOCK, 1, wordNumber / WORD_BLOCK_SIZE, 0);
+        //matched为当前词与word相同的前缀长度
+        int matched = 0;
+        for (int i = wordNumber - wordNumber % WORD_BLOCK_SIZE; ; ++i) {
+            long varint = readWordVarint(position);
+            int prefix = (int) varint;
+            varint = readWordVarint((int) (varint >>> 32));
+            int suffix = (int) varint;
+            position = (int) (varint >>> 32);
+            //若与前一个词相同的前缀超出了已匹配的部分，则当前词在matched处仍与word不同，matched不变
+            if (prefix <= matched) {
+                matched = prefix;
+                while (matched - prefix < suffix && matched < wordLength
+                        && image.getChar(position + (matched - prefix) * 2) == word.charAt(matched)) {
+                    ++matched;
+                }
+            }
+            if (i == wordNumber) {
+                return matched == wordLength && prefix + suffix == wordLength;
+            }
+            position += suffix * 2;
+        }
+    }
+
+    /**
+     * 通过词编号获得词。
+     *
+     * @param wordNumber 词编号
+     * @return 词
+     */
+    @Override
+    public String getWord(int wordNumber) {
+        if (wordNumber < 0 || wordNumber >= wordCount) {
+            throw new IndexOutOfBoundsException("wordNumber = " + wordNumber + ", wordCount = " + wordCount);
+        }
+        //从所在组的第一个词开始逐个还原
+        int position = sections[SECTION_WORD_ARENA] + getTableInt(SECTION_WORD_BLOCK, 1, wordNumber / WORD_BLOCK_SIZE, 0);
+        char[] chars = new char[16];
+        int length = 0;
+        for (int i = wordNumber - wordNumber % WORD_BLOCK_SIZE; i <= wordNumber; ++i) {
+            long varint = readWordVarint(position);
+            int prefix = (int) varint;
+            varint = readWordVarint((int) (varint >>> 32));
+            int suffix = (int) varint;
+            position = (int) (varint >>> 32);
+            length = prefix + suffix;
+            if (chars.length < length) {
+                chars = Arrays.copyOf(chars, Math.max(length, chars.length * 2));
+            }
+            for (int j = 0; j < suffix; ++j) {
+                chars[prefix + j] = image.getChar(position);
+                position += 2;
+            }
+        }
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * 获得样本库中词的总数。
+     *
+     * @return 词的总数
+     */
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    /**
+     * 倒排表迭代器。直接在缓冲区中解码一个词的倒排表，依次给出包含该词的问答对编号，不生成任何对象，可以通过{@link #reset}反复使用。
+     * 倒排表按块存放，{@link #read}每次将一整块解码到调用者的数组中，是最快的遍历方式；{@link #next}在内部按块解码后逐项给出。
+     * 同一次遍历中不能混用这两种方式。同一个迭代器不能同时被多个线程使用。
+     */
+    public final static class PostingIterator {
+
+        /**
+         * {@link #read}每次最多给出的项数。
+         */
+        public static final int BLOCK_SIZE = POSTING_BLOCK_SIZE;
+
+        private final ChatBank chatBank;
+        private final ByteBuffer data;  //样本库缓冲区的副本，按块批量读取时需要移动其位置
+        private int position;   //下一块在data中的位置
+        private int index;      //已解码的项数
+        private int count;      //倒排表的项数
+        private int last;       //最后解码的一项
+        private final int[] block = new int[BLOCK_SIZE];
+        private final byte[] bytes = new byte[BLOCK_SIZE * 4];     //一块差值的原始字节
+        private int blockIndex;
+        private int blockSize;
+        private int chatPair;
+
+        private PostingIterator(ChatBank chatBank) {
+            this.chatBank = chatBank;
+            data = chatBank.image.duplicate();
+        }
+
+        /**
+         * 开始遍历另一个词的倒排表。
+         *
+         * @param wordNumber 词编号
+         */
+        public void reset(int wordNumber) {
+            int begin = chatBank.getTableInt(SECTION_WORD_POSTING, 2, wordNumber, 1);
+            reset(chatBank.sections[SECTION_POSTING] + chatBank.getTableInt(SECTION_WORD_POSTING, 2, wordNumber, 0),
+                    chatBank.getTableInt(SECTION_WORD_POSTING, 2, wordNumber + 1, 1) - begin);
+        }
+
+        //开始遍历二元词组表中第bigram项的倒排表
+        void resetBigram(int bigram) {
+            int begin = chatBank.getTableInt(SECTION_BIGRAM, 4, bigram, 3);
+            reset(chatBank.sections[SECTION_BIGRAM_POSTING] + chatBank.getTableInt(SECTION_BIGRAM, 4, bigram, 2),
+                    chatBank.getTableInt(SECTION_BIGRAM, 4, bigram + 1, 3) - begin);
+        }
+
+        private void reset(int position, int count) {
+            this.position = position;
+            this.count = count;
+            index = 0;
+            blockIndex = 0;
+            blockSize = 0;
+        }
+
+        /**
+         * 将下一块解码到给定的数组中。
+         *
+         * @param buffer 数组，从{@code offset}开始至少要能容纳{@link #BLOCK_SIZE}项与倒排表剩余项数中较小的一个
+         * @param offset 第一项存放的位置
+         * @return 本次给出的项数，倒排表已遍历完时为0
+         */
+        public int read(int[] buffer, int offset) {
+            if (index == count) {
+                return 0;
+            }
+            ByteBuffer data = this.data;
+            int p = position;
+            int k = offset;
+            int value = last;
+            if (index == 0) {
+                //第一项是变长整数
+                int b = data.get(p++);
+                value = b & 0x7F;
+                int shift = 7;
+                while (b < 0) {
+                    b = data.get(p++);
+                    value |= (b & 0x7F) << shift;
+                    shift += 7;
+                }
+                buffer[k++] = value;
+                ++index;
+            }
+            int n = Math.min(count, (index / BLOCK_SIZE + 1) * BLOCK_SIZE) - index;
+            if (n > 0) {
+                //一块的差值一次读入数组，每种字节数各用一个循环，循环内只有下标随循环变量变化，以便JIT编译器消除数组的边界检查
+                byte[] bytes = this.bytes;
+                int width = data.get(p++);
+                data.position(p);
+                data.get(bytes, 0, n * width);
+                switch (width) {
+                    case 1:
+                        for (int i = 0; i < n; ++i) {
+                            value += bytes[i] & 0xFF;
+                            buffer[k + i] = value;
+                        }
+                        break;
+                    case 2:
+                        for (int i = 0; i < n; ++i) {
+                            value += (bytes[i * 2] & 0xFF) | (bytes[i * 2 + 1] & 0xFF) << 8;
+                            buffer[k + i] = value;
+                        }
+                        break;
+                    case 3:
+                        for (int i = 0; i < n; ++i) {
+                            value += (bytes[i * 3] & 0xFF) | (bytes[i * 3 + 1] & 0xFF) << 8 | (bytes[i * 3 + 2] & 0xFF) << 16;
+                            buffer[k + i] = value;
+                        }
+                        break;
+                    default:    //4
+                        for (int i = 0; i < n; ++i) {
+                            value += (bytes[i * 4] & 0xFF) | (bytes[i * 4 + 1] & 0xFF) << 8 | (bytes[i * 4 + 2] & 0xFF) << 16
+                                    | bytes[i * 4 + 3] << 24;
+                            buffer[k + i] = value;
+                        }
+                        break;
+                }
+                p += n * width;
+                k += n;
+                index += n;
+            }
+            position = p;
+            last = value;
+            return k - offset;
+        }
+
+        /**
+         * 移动到下一项。
+         *
+         * @return 若还有下一项则返回{@code true}，否则返回{@code false}。
+         */
+        public boolean next() {
+            if (blockIndex == blockSize) {
+                blockSize = read(block, 0);
+                blockIndex = 0;
+                if (blockSize == 0) {
+                    return false;
+                }
+            }
+            chatPair = block[blockIndex++];
+            return true;
+        }
+
+        /**
+         * 获得当前项的问答对编号。
+         */
+        public int getChatPairNumber() {
+            return chatPair;
+        }
+    }
+
+    /**
+     * 创建一个在本样本库上使用的倒排表迭代器。
+     *
+     * @return 倒排表迭代器
+     */
+    public PostingIterator newPostingIterator() {
+        return new PostingIterator(this);
+    }
+
+    /**
+     * 获得包含给定词的问答对的个数。
+     *
+     * @param wordNumber 词编号
+     * @return 倒排表的长度
+     */
+    public int getPostingCount(int wordNumber) {
+        return getTableInt(SECTION_WORD_POSTING, 2, wordNumber + 1, 1) - getTableInt(SECTION_WORD_POSTING, 2, wordNumber, 1);
+    }
+
+    /**
+     * 获得词的文档频率，即问句中含有该词的问答对的个数。倒排表中的问答对编号已去重，因此文档频率就是倒排表的长度。
+     *
+     * @param wordNumber 词编号
+     * @return 文档频率
+     */
+    public int getDocumentFrequency(int wordNumber) {
+        return getPostingCount(wordNumber);
+    }
+
+    /**
+     * 获得所有词的文档频率表。
+     *
+     * @return 按词编号排列的文档频率
+     */
+    public int[] getDocumentFrequencies() {
+        int[] frequencies = new int[getWordCount()];
+        for (int i = 0; i < frequencies.length; ++i) {
+            frequencies[i] = getPostingCount(i);
+        }
+        return frequencies;
+    }
+
+    /**
+     * 设置生成候选集时的文档频率上限。“我”、“你”、“的”这样的常用词几乎出现在每个问句中，检索向量中只要有一个这样的词，
+     * 候选集就会包含大部分问答对。文档频率超过上限的词不再用于生成候选集，但仍然参与计算夹角余弦；检索向量中所有的词都超过上限时不做限制。
+     * 默认不做限制。
+     *
+     * @param ceiling 上限占问答对总数的比例，取值范围为(0, 1]，为1时不做限制
+     */
+    public void setDocumentFrequencyCeiling(double ceiling) {
+        if (!(ceiling > 0 && ceiling <= 1)) {
+            throw new IllegalArgumentException("ceiling = " + ceiling);
+        }
+        documentFrequencyCeiling = ceiling;
+        documentFrequencyLimit = ceiling >= 1 ? Integer.MAX_VALUE : (int) (ceiling * getChatPairCount());
+    }
+
+    /**
+     * 获得生成候选集时的文档频率上限，见{@link #setDocumentFrequencyCeiling}。
+     *
+     * @return 上限占问答对总数的比例
+     */
+    public double getDocumentFrequencyCeiling() {
+        return documentFrequencyCeiling;
+    }
+
+    //按本样本库的文档频率上限选出生成候选集的词，见selectCandidateWords
+    private boolean[] getCandidateWords(int[] words, int wordCount) {
+        int limit = documentFrequencyLimit;
+        if (limit == Integer.MAX_VALUE) {
+            return null;
+        }
+        int[] frequencies = new int[wordCount];
+        for (int i = 0; i < wordCount; ++i) {
+            frequencies[i] = getPostingCount(words[i]);
+        }
+        return selectCandidateWords(frequencies, wordCount, limit);
+    }
+
+    //按文档频率上限选出生成候选集的词，frequencies[i]为检索向量中第i个词的文档频率，返回的数组中超过上限的词对应的项为false。
+    //不做限制或检索向量中所有的词都超过上限时返回null，表示所有的词都用于生成候选集，以免候选集为空
+    static boolean[] selectCandidateWords(int[] frequencies, int wordCount, int limit) {
+        boolean[] candidateWords = new boolean[wordCount];
+        boolean any = false;
+        for (int i = 0; i < wordCount; ++i) {
+            candidateWords[i] = frequencies[i] <= limit;
+            any |= candidateWords[i];
+        }
+        return any && limit != Integer.MAX_VALUE ? candidateWords : null;
+    }
+
+    /**
+     * 本样本库是否建立了二元词组索引。由旧格式转换而来的样本库没有二元词组索引。
+     *
+     * @return 建立了二元词组索引时返回{@code true}
+     */
+    public boolean hasBigramIndex() {
+        return image.getInt(DIRECTORY_OFFSET + SECTION_BIGRAM * 8 + 4) > 0;
+    }
+
+    /**
+     * 获得二元词组的个数。二元词组是问句的同一子句中前后相邻的两个词。
+     *
+     * @return 二元词组的个数，没有二元词组索引时为0
+     */
+    public int getBigramCount() {
+        return Math.max(image.getInt(DIRECTORY_OFFSET + SECTION_BIGRAM * 8 + 4) / 16 - 1, 0);
+    }
+
+    //在二元词组表中二分查找，返回其序号，不存在时返回-1
+    int findBigram(int firstWord, int secondWord) {
+        long bigram = ((long) firstWord << 32) | secondWord;
+        int left = 0;
+        int right = getBigramCount();
+        while (left < right) {
+            int middle = (left + right) >>> 1;
+            long compare = ((long) getTableInt(SECTION_BIGRAM, 4, middle, 0) << 32) | getTableInt(SECTION_BIGRAM, 4, middle, 1);
+            if (compare < bigram) {
+                left = middle + 1;
+            }
+            else if (compare > bigram) {
+                right = middle;
+            }
+            else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    //二元词组表中第bigram项的倒排表长度
+    int getBigramPostingCountAt(int bigram) {
+        return getTableInt(SECTION_BIGRAM, 4, bigram + 1, 3) - getTableInt(SECTION_BIGRAM, 4, bigram, 3);
+    }
+
+    //二元词组表中第bigram项的前一个词和后一个词
+    int getBigramFirstWord(int bigram) {
+        return getTableInt(SECTION_BIGRAM, 4, bigram, 0);
+    }
+
+    int getBigramSecondWord(int bigram) {
+        return getTableInt(SECTION_BIGRAM, 4, bigram, 1);
+    }
+
+    /**
+     * 获得问句中含有给定二元词组的问答对的个数。
+     *
+     * @param firstWord 前一个词的编号
+     * @param secondWord 后一个词的编号
+     * @return 问答对的个数，没有该二元词组时为0
+     */
+    public int getBigramPostingCount(int firstWord, int secondWord) {
+        int bigram = findBigram(firstWord, secondWord);
+        return bigram < 0 ? 0 : getBigramPostingCountAt(bigram);
+    }
+
+    /**
+     * 设置是否优先以二元词组生成候选集。开启时，检索问句中的二元词组只要有一个在样本库中出现过，候选集就只由含有这些二元词组的问答对
+     * 以及上下文对话中的问答对组成，比由单个词生成的候选集小得多；否则仍由单个词生成候选集。没有二元词组索引的样本库总是由单个词生成候选集。
+     * 只含有检索问句中的单个词、不含其二元词组的问答对不会成为候选，最佳的答句可能因此被漏掉，因此默认关闭，需要较小的候选集时再开启。
+     *
+     * @param enabled 为{@code true}时优先以二元词组生成候选集
+     */
+    public void setBigramCandidates(boolean enabled) {
+        bigramCandidates = enabled;
+    }
+
+    public boolean isBigramCandidates() {
+        return bigramCandidates;
+    }
+
+    /**
+     * 设置二元词组的加分比例。以二元词组生成候选集时，候选项的得分乘以(1 + 加分比例 × 含有的检索二元词组数 / 检索二元词组数)。默认为0，即不加分。
+     *
+     * @param boost 加分比例，不能为负数
+     */
+    public void setBigramBoost(double boost) {
+        if (!(boost >= 0)) {
+            throw new IllegalArgumentException("boost = " + boost);
+        }
+        bigramBoost = boost;
+    }
+
+    public double getBigramBoost() {
+        return bigramBoost;
+    }
+
+    //沿用另一个样本库的检索设置。文档频率上限按本样本库的问答对数重新换算
+    private void copySearchSettings(ChatBank other) {
+        setDocumentFrequencyCeiling(other.documentFrequencyCeiling);
+        bigramCandidates = other.bigramCandidates;
+        bigramBoost = other.bigramBoost;
+    }
+
+    /**
+     * 获得所有倒排表压缩后的总字节数。
+     *
+     * @return 倒排段的字节数
+     */
+    public int getPostingSize() {
+        return image.getInt(DIRECTORY_OFFSET + SECTION_POSTING * 8 + 4);
+    }
+
+    /**
+     * 获得包含给定词的所有问答对的编号。
+     *
+     * @param wordNumber 词编号
+     * @return 升序排列的问答对编号
+     */
+    public int[] getPostings(int wordNumber) {
+        int[] postings = new int[getPostingCount(wordNumber)];
+        PostingIterator iterator = newPostingIterator();
+        iterator.reset(wordNumber);
+        for (int i = 0; iterator.next(); ++i) {
+            postings[i] = iterator.getChatPairNumber();
+        }
+        return postings;
+    }
+
+    /**
+     * 获得包含给定词的所有问句所对应的答句。此函数会为每一项生成对象，检索时请使用{@link #newPostingIterator}或{@link #getPostings}。
+     *
+     * @param wordNumber 词编号
+     * @return 一个PairInt数组，表示所有答句。PairInt.a代表对话编号，PairInt.b代表对话内答句的位置。
+     */
+    public PairInt[] getChatNumbersContainWord(int wordNumber) {
+        int[] postings = getPostings(wordNumber);
+        PairInt[] chatNumbers = new PairInt[postings.length];
+        for (int i = 0; i < postings.length; ++i) {
+            int chat = getChatNumberOfPair(postings[i]);
+            chatNumbers[i] = new PairInt(chat, postings[i] - getTableInt(SECTION_CHAT_PAIR, 1, chat, 0));
+        }
+        return chatNumbers;
+    }
+
+    /**
+     * 通过问答对编号获得问答对。问答对编号是问答对在整个样本库中的序号，同一对话中的问答对编号是连续的。
+     *
+     * @param chatPairNumber 问答对编号
+     * @return 问答对
+     */
+    @Override
+    public ChatPair getChatPair(int chatPairNumber) {
+        return readChatPair(chatPairNumber);
+    }
+
+    /**
+     * 获得问答对所属的对话编号。
+     *
+     * @param chatPairNumber 问答对编号
+     * @return 对话编号
+     */
+    public int getChatNumberOfPair(int chatPairNumber) {
+        return getTableInt(SECTION_PAIR_CHAT, 1, chatPairNumber, 0);
+    }
+
+    /**
+     * 检索与检索向量夹角余弦最大的问句，参见{@link SearchableChatBank#search}。
+     * 候选集优先由二元词组生成，见{@link #setBigramCandidates}。
+     */
+    @Override
+    public SearchResult search(int[] words, double[] weights, int wordCount, double module2, int[] bigrams, int bigramCount, int chatContext, int chatPairContext) {
+        return search(words, weights, wordCount, module2, bigrams, bigramCount, chatContext, chatPairContext, null);
+    }
+
+    //每生成一个词的候选项、每计算CANCEL_CHECK_INTERVAL个夹角余弦检查一次cancelled，其值为true时放弃检索并返回null
+    private static final int CANCEL_CHECK_INTERVAL = 256;
+
+    SearchResult search(int[] words, double[] weights, int wordCount, double module2, int[] bigrams, int bigramCount, int chatContext, int chatPairContext,
+                        AtomicBoolean cancelled) {
+        return search(words, weights, wordCount, module2, bigrams, bigramCount, useBigramCandidates(bigrams, bigramCount), null,
+                chatContext, chatPairContext, cancelled);
+    }
+
+    /**
+     * 按本样本库的设置判断是否以二元词组生成候选集，即开启了该功能且检索二元词组中至少有一个在本样本库中出现过。
+     *
+     * @param bigrams 检索二元词组，每个二元词组依次为(前一个词, 后一个词)两个词编号
+     * @param bigramCount 检索二元词组的个数
+     */
+    boolean useBigramCandidates(int[] bigrams, int bigramCount) {
+        if (!bigramCandidates) {
+            return false;
+        }
+        for (int i = 0; i < bigramCount; ++i) {
+            if (getBigramPostingCount(bigrams[i * 2], bigrams[i * 2 + 1]) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 将以二元词组生成的候选项排序去重。每个候选项存为“问答对编号×2+是否来自二元词组的倒排表”，
+     * 排序后同一问答对的各项相邻，据此数出它含有的检索二元词组数。
+     *
+     * @param alterSet 候选项，去重后依次存放问答对编号
+     * @param alterCount 候选项的个数
+     * @param matchCounts 依次存放各问答对含有的检索二元词组数，长度不小于alterCount
+     * @return 去重后的问答对个数
+     */
+    static int collapseBigramCandidates(int[] alterSet, int alterCount, int[] matchCounts) {
+        Arrays.sort(alterSet, 0, alterCount);
+        int distinctCount = 0;
+        for (int i = 0; i < alterCount; ++i) {
+            int chatPair = alterSet[i] >>> 1;
+            if (distinctCount == 0 || alterSet[distinctCount - 1] != chatPair) {
+                alterSet[distinctCount] = chatPair;
+                matchCounts[distinctCount++] = 0;
+            }
+            matchCounts[distinctCount - 1] += alterSet[i] & 1;
+        }
+        return distinctCount;
+    }
+
+    /**
+     * 检索与检索向量夹角余弦最大的问句。{@code useBigrams}为{@code true}且本样本库有二元词组索引时，候选集为含有检索二元词组的问答对
+     * 以及上下文对话中的问答对(上下文对话中与检索向量无关的问答对得分为0，不会被选中，加入候选集与否不影响结果)；否则为至少含有检索向量中
+     * 一个词的问答对，文档频率超过上限的词不用于生成候选集。
+     * {@code candidateWords}不为null时由调用者决定哪些词用于生成候选集(第i项为false的词不用)，例如分片样本库按所有分片的文档频率之和决定；
+     * 为null时按本样本库的文档频率上限决定。
+     */
+    SearchResult search(int[] words, double[] weights, int wordCount, double module2, int[] bigrams, int bigramCount, boolean useBigrams,
+                        boolean[] candidateWords, int chatContext, int chatPairContext, AtomicBoolean cancelled) {
+        //准备候选集，排序去重后按编号递增
+        int[] alterSet;
+        int[] matchCounts = null;
+        int distinctCount;
+        PostingIterator postingIterator = newPostingIterator();
+        if (useBigrams && hasBigramIndex()) {
+            int[] found = new int[bigramCount];
+            int foundCount = 0;
+            int alterCount = 0;
+            for (int i = 0; i < bigramCount; ++i) {
+                int bigram = findBigram(bigrams[i * 2], bigrams[i * 2 + 1]);
+                if (bigram >= 0) {
+                    found[foundCount++] = bigram;
+                    alterCount += getBigramPostingCountAt(bigram);
+                }
+            }
+            int contextBegin = chatContext < 0 ? 0 : getFirstPairOfChat(chatContext);
+            int contextEnd = chatContext < 0 ? 0 : getFirstPairOfChat(chatContext + 1);
+            alterSet = new int[alterCount + contextEnd - contextBegin];
+            alterCount = 0;
+            for (int i = 0; i < foundCount; ++i) {
+                if (cancelled != null && cancelled.get()) {
+                    return null;
+                }
+                postingIterator.resetBigram(found[i]);
+                int begin = alterCount;
+                int read;
+                while ((read = postingIterator.read(alterSet, alterCount)) > 0) {
+                    alterCount += read;
+                }
+                for (int j = begin; j < alterCount; ++j) {
+                    alterSet[j] = alterSet[j] << 1 | 1;
+                }
+            }
+            for (int i = contextBegin; i < contextEnd; ++i) {
+                alterSet[alterCount++] = i << 1;
+            }
+            matchCounts = new int[alterCount];
+            distinctCount = collapseBigramCandidates(alterSet, alterCount, matchCounts);
+        }
+        else {
+            //文档频率超过上限的词不用于生成候选集
+            if (candidateWords == null) {
+                candidateWords = getCandidateWords(words, wordCount);
+            }
+            int alterCount = 0;
+            for (int i = 0; i < wordCount; ++i) {
+                if (candidateWords == null || candidateWords[i]) {
+                    alterCount += getPostingCount(words[i]);
+                }
+            }
+            alterSet = new int[alterCount];
+            alterCount = 0;
+            for (int i = 0; i < wordCount; ++i) {
+                if (cancelled != null && cancelled.get()) {
+                    return null;
+                }
+                if (candidateWords != null && !candidateWords[i]) {
+                    continue;
+                }
+                postingIterator.reset(words[i]);
+                int read;
+                while ((read = postingIterator.read(alterSet, alterCount)) > 0) {
+                    alterCount += read;
+                }
+            }
+            Arrays.sort(alterSet);
+            distinctCount = alterCount == 0 ? 0 : 1;
+            for (int i = 1; i < alterCount; ++i) {
+                if (alterSet[i] != alterSet[distinctCount - 1]) {
+                    alterSet[distinctCount++] = alterSet[i];
+                }
+            }
+        }
+        double boost = matchCounts == null || bigramCount == 0 ? 0 : bigramBoost / bigramCount;
+
+        //计算夹角余弦最大值。问句相同的问答对只计算一次
+        QuestionMatrix matrix = getQuestionMatrix();
+        ScoreCache scoreCache = new ScoreCache(distinctCount);
+        double max = 0;
+        int maxPosition = -1;
+        for (int i = 0; i < distinctCount; ++i) {
+            if (cancelled != null && i % CANCEL_CHECK_INTERVAL == CANCEL_CHECK_INTERVAL - 1 && cancelled.get()) {
+                return null;
+            }
+            int chatPairNumber = alterSet[i];
+            int question = matrix.getQuestionOfPair(chatPairNumber);
+            double cosine;
+            if (scoreCache.find(question)) {
+                cosine = scoreCache.get();
+            }
+            else {
+                cosine = matrix.calculateCosine(question, words, weights, wordCount, module2);
+                scoreCache.put(question, cosine);
+            }
+            //含有检索二元词组的问句加分
+            if (boost > 0) {
+                cosine *= 1 + boost * matchCounts[i];
+            }
+            //与chatPairContext属于同一对话的其它句子将具有更高的权值：
+            if (getChatNumberOfPair(chatPairNumber) == chatContext && chatPairNumber != chatPairContext) {
+                cosine *= 5;
+            }
+            if (cosine > max) {
+                maxPosition = chatPairNumber;
+                max = cosine;
+            }
+        }
+        return new SearchResult(maxPosition, maxPosition == -1 ? -1 : getChatNumberOfPair(maxPosition), max, distinctCount);
+    }
+
+    /**
+     * 获得对话的内容键。内容相同的对话具有相同的内容键，可以据此在不同的样本库之间识别同一个对话。
+     *
+     * @param chatNumber 对话编号
+     * @return 内容键
+     */
+    public long getChatKey(int chatNumber) {
+        return image.getLong(sections[SECTION_CHAT_KEY] + chatNumber * 8);
+    }
+
+    /**
+     * 查找内容键为给定值的所有对话。
+     *
+     * @param chatKey 内容键
+     * @return 对话编号，不存在时返回长度为0的数组
+     */
+    public int[] findChatsByKey(long chatKey) {
+        //在按内容键排序的对话编号表中二分查找第一个不小于chatKey的位置
+        int left = 0;
+        int right = chatCount;
+        while (left < right) {
+            int middle = (left + right) >>> 1;
+            if (getChatKey(getTableInt(SECTION_KEY_ORDER, 1, middle, 0)) < chatKey) {
+                left = middle + 1;
+            }
+            else {
+                right = middle;
+            }
+        }
+        int end = left;
+        while (end < chatCount && getChatKey(getTableInt(SECTION_KEY_ORDER, 1, end, 0)) == chatKey) {
+            ++end;
+        }
+        int[] chats = new int[end - left];
+        for (int i = 0; i < chats.length; ++i) {
+            chats[i] = getTableInt(SECTION_KEY_ORDER, 1, left + i, 0);
+        }
+        return chats;
+    }
+
+    /**
+     * 获得本样本库中墓碑的个数。墓碑只出现在增量样本库中，表示要从更早的样本库中删除的对话。
+     *
+     * @return 墓碑的个数
+     */
+    public int getTombstoneCount() {
+        return image.getInt(DIRECTORY_OFFSET + SECTION_TOMBSTONE * 8 + 4) / 8;
+    }
+
+    /**
+     * 获得第index个墓碑，即要删除的对话的内容键。
+     *
+     * @param index 下标，取值范围为[0, {@link #getTombstoneCount})
+     * @return 内容键，按升序排列
+     */
+    public long getTombstone(int index) {
+        return image.getLong(sections[SECTION_TOMBSTONE] + index * 8);
+    }
+
+    //获得对话的第一个问答对的编号，chatNumber为对话数时返回问答对数
+    int getFirstPairOfChat(int chatNumber) {
+        return getTableInt(SECTION_CHAT_PAIR, 1, chatNumber, 0);
+    }
+
+    /**
+     * 通过对话编号获得对话。
+     *
+     * @param chatNumber 对话编号
+     * @return 对话
+     */
+    public Chat getChat(int chatNumber) {
+        int firstPair = getTableInt(SECTION_CHAT_PAIR, 1, chatNumber, 0);
+        return new Chat(this, firstPair, getTableInt(SECTION_CHAT_PAIR, 1, chatNumber + 1, 0) - firstPair);
+    }
+
+    /**
+     * 获得样本库中对话的总数。
+     *
+     * @return 对话的总数
+     */
+    public int getChatCount() {
+        return chatCount;
+    }
+
+    /**
+     * 将样本库以新格式写入输出流。旧格式的样本库在加载时已转换为新格式，因此也可以借此转换文件格式。
+     *
+     * @param out 输出流
+     *
+     * @throws IOException 当向输出流{@code out}写入数据发生IO异常时
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffer source = image.duplicate();
+        source.clear();
+        byte[] buffer = new byte[65536];
+        while (source.hasRemaining()) {
+            int length = Math.min(buffer.length, source.remaining());
+            source.get(buffer, 0, length);
+            out.write(buffer, 0, length);
+        }
+        out.flush();
+    }
+
+    //在生成器生成的缓冲区上构造一个对话样本库
+    static ChatBank fromWriter(ChatBankWriter writer) throws IOException {
+        return new ChatBank(writer.toByteBuffer());
+    }
+
+    /**
+     * 获得样本库中问答对的总数。
+     *
+     * @return 问答对的总数
+     */
+    public int getChatPairCount() {
+        return pairCount;
+    }
+
+    /**
+     * 获得样本库中问句子句的总数。
+     *
+     * @return 子句的总数
+     */
+    public int getSentenceCount() {
+        return sentenceCount;
+    }
+
+    /**
+     * 获得文本池的字节数。相同的子句和答句在文本池中只存放一次；答句压缩时文本池中只有子句。
+     *
+     * @return 文本池的字节数
+     */
+    public int getTextSize() {
+        return image.getInt(DIRECTORY_OFFSET + SECTION_TEXT * 8 + 4);
+    }
+
+    /**
+     * 获得去重前所有文本的总字节数。与{@link #getTextSize}之比即文本的去重比。
+     *
+     * @return 去重前的文本总字节数
+     */
+    public int getRawTextSize() {
+        return rawTextSize;
+    }
+
+
+    private static class WordFrequencyVectorString extends WordFrequencyVector {
+        private HashMap<String, Integer> stringVector;
+        private WordFrequencyVectorString(String originalSentence, HashMap<String, Integer> stringVector) {
+            super(originalSentence, null, calcModule2(stringVector));
+            this.stringVector = stringVector;
+        }
+        private static int calcModule2(HashMap<String, Integer> stringVector) {
+            int module2 = 0;
+            for (int value : stringVector.values()) {
+                module2 += (value * value);
+            }
+            return module2;
+        }
+    }
+
+    //编译时构造的问句向量中的词，供DuplicateFilter计算对话的特征
+    static Set<String> getSourceWords(WordFrequencyVector vector) {
+        return ((WordFrequencyVectorString) vector).stringVector.keySet();
+    }
+
+    //源文件中的一个对话，依次存放各问答对的问句和答句，尚未分句和分词
+    private final static class SourceChat {
+        private final File file;        //所在的源文件
+        private final String[] lines;   //问句和答句交替排列
+
+        private SourceChat(File file, List<String> lines) {
+            this.file = file;
+            this.lines = lines.toArray(new String[0]);
+        }
+    }
+
+    //每个分词任务最多处理的对话数，以及每个建立倒排表的任务最多处理的对话数
+    private static final int PARSE_TASK_CHATS = 16;
+    private static final int INDEX_TASK_CHATS = 256;
+
+    //将[begin, end)范围内的对话分句和分词。结果按对话的序号放入chats，与任务的执行顺序无关
+    private final static class ParseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SourceChat[] sourceChats;
+        private final ChatPair[][] chats;
+        private final int begin;
+        private final int end;
+        private final SegmentationMemo segmentationMemo;
+        private final SynonymBank synonymBank;
+
+        private ParseTask(SourceChat[] sourceChats, ChatPair[][] chats, int begin, int end, SegmentationMemo segmentationMemo, SynonymBank synonymBank) {
+            this.sourceChats = sourceChats;
+            this.chats = chats;
+            this.begin = begin;
+            this.end = end;
+            this.segmentationMemo = segmentationMemo;
+            this.synonymBank = synonymBank;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin <= PARSE_TASK_CHATS) {
+                //分词缓存和同义词库可以被各任务共享
+                for (int i = begin; i < end; ++i) {
+                    SourceChat sourceChat = sourceChats[i];
+                    try {
+                        chats[i] = new ChatPair[sourceChat.lines.length / 2];
+                        for (int j = 0; j < chats[i].length; ++j) {
+                            chats[i][j] = parseChatPair(sourceChat.lines[j * 2], sourceChat.lines[j * 2 + 1], segmentationMemo, synonymBank);
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        throw new IllegalStateException("Exception occurred when processing " + sourceChat.file.getPath()
+                                + ", chartPosition = " + i, e);
+                    }
+                }
+                return;
+            }
+            int middle = (begin + end) >>> 1;
+            invokeAll(new ParseTask(sourceChats, chats, begin, middle, segmentationMemo, synonymBank),
+                    new ParseTask(sourceChats, chats, middle, end, segmentationMemo, synonymBank));
+        }
+    }
+
+    //将对话写入编译缓存文件(见CompileCache)：对话数，每个对话的问答对数，每个问答对的子句数、各子句(原句, 向量元素数, 各(词, 频度))、答句、二元词组数和各二元词组
+    static void writeCachedChats(DataOutputStream out, List<ChatPair[]> chats) throws IOException {
+        out.writeInt(chats.size());
+        for (ChatPair[] chatI : chats) {
+            out.writeInt(chatI.length);
+            for (ChatPair chatPairI : chatI) {
+                WordFrequencyVector[] vectors = chatPairI.sentences.getVectors();
+                out.writeInt(vectors.length);
+                for (WordFrequencyVector vector : vectors) {
+                    writeCachedString(out, vector.getOriginalSentence());
+                    HashMap<String, Integer> stringVector = ((WordFrequencyVectorString) vector).stringVector;
+                    out.writeInt(stringVector.size());
+                    for (Map.Entry<String, Integer> entry : stringVector.entrySet()) {
+                        writeCachedString(out, entry.getKey());
+                        out.writeInt(entry.getValue());
+                    }
+                }
+                writeCachedString(out, chatPairI.answer);
+                out.writeInt(chatPairI.bigrams.length);
+                for (String bigram : chatPairI.bigrams) {
+                    writeCachedString(out, bigram);
+                }
+            }
+        }
+    }
+
+    //从缓存文件读出对话，格式见writeCachedChats
+    static ArrayList<ChatPair[]> readCachedChats(ByteBuffer in) throws IOException {
+        int chatCount = in.getInt();
+        ArrayList<ChatPair[]> chats = new ArrayList<>(chatCount);
+        for (int i = 0; i < chatCount; ++i) {
+            ChatPair[] chatI = new ChatPair[in.getInt()];
+            for (int j = 0; j < chatI.length; ++j) {
+                WordFrequencyVector[] vectors = new WordFrequencyVector[in.getInt()];
+                int sentenceLength = 0;
+                for (int k = 0; k < vectors.length; ++k) {
+                    String originalSentence = readCachedString(in);
+                    int size = in.getInt();
+                    HashMap<String, Integer> vector = new HashMap<>();
+                    for (int l = 0; l < size; ++l) {
+                        String word = readCachedString(in);
+                        vector.put(word, in.getInt());
+                    }
+                    vectors[k] = new WordFrequencyVectorString(originalSentence, vector);
+                    sentenceLength += originalSentence.length();
+                }
+                String answer = readCachedString(in);
+                int bigramCount = in.getInt();
+                if (bigramCount < 0 || bigramCount > in.remaining() / 4) {
+                    throw new IOException("编译缓存已损坏。");
+                }
+                String[] bigrams = new String[bigramCount];
+                for (int k = 0; k < bigramCount; ++k) {
+                    bigrams[k] = readCachedString(in);
+                }
+                chatI[j] = new ChatPair(new WordFrequencyVectors(vectors, sentenceLength), answer, bigrams);
+            }
+            chats.add(chatI);
+        }
+        return chats;
+    }
+
+    private static void writeCachedString(DataOutputStream out, String string) throws IOException {
+        out.writeInt(string.length());
+        out.writeChars(string);
+    }
+
+    private static String readCachedString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining() / 2) {
+            throw new IOException("编译缓存已损坏。");
+        }
+        char[] chars = new char[length];
+        in.asCharBuffer().get(chars);
+        in.position(in.position() + length * 2);
+        return new String(chars);
+    }
+
+    //读取源文件，返回其中的所有对话。各文件依次读入后，分句和分词在ForkJoinPool中按对话并行进行，结果与逐个处理完全相同。
+    //给出了缓存时，命中缓存的源文件不再处理，其余源文件处理后写入缓存。给出了过滤器时删除近似重复的对话。源文件无法读取或有误时抛出IOException
+    private static ArrayList<ChatPair[]> readSourceFiles(File[] sourceFiles, WordBank wordBank, SynonymBank synonymBank, CompileCache cache,
+                                                         DuplicateFilter duplicateFilter) throws IOException {
+        //命中缓存的源文件直接取得其中的对话；其余源文件的对话原文依次放入sourceChats，第i个源文件的位于[chatBegins[i], chatBegins[i+1])
+        byte[][] sources = new byte[sourceFiles.length][];
+        ArrayList<List<ChatPair[]>> cachedChats = new ArrayList<>();
+        ArrayList<SourceChat> sourceChats = new ArrayList<>();
+        int[] chatBegins = new int[sourceFiles.length + 1];
+        if (cache != null) {
+            cache.begin();
+        }
+        for (int i = 0; i < sourceFiles.length; ++i) {
+            File file = sourceFiles[i];
+            System.out.println("正在处理 " + file.getPath());
+            try {
+                sources[i] = Files.readAllBytes(file.toPath());
+                cachedChats.add(cache == null ? null : cache.load(sources[i]));
+                if (cachedChats.get(i) == null) {
+                    readSourceChats(file, sources[i], sourceChats);
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                throw new IOException("无法读取对话样本源文件 " + file.getPath() + "(第" + (sourceChats.size() - chatBegins[i] + 1) + "个对话)。", e);
+            }
+            chatBegins[i + 1] = sourceChats.size();
+        }
+
+        ChatPair[][] parsedChats = new ChatPair[sourceChats.size()][];
+        SegmentationMemo segmentationMemo = new SegmentationMemo(wordBank);
+        try {
+            ForkJoinPool.commonPool().invoke(new ParseTask(sourceChats.toArray(new SourceChat[0]), parsedChats, 0, parsedChats.length, segmentationMemo, synonymBank));
+        }
+        catch (RuntimeException e) {
+            throw new IOException("无法处理对话样本源文件。", e);
+        }
+        if (parsedChats.length > 0) {
+            System.out.println("分词缓存：" + segmentationMemo + "。");
+        }
+
+        ArrayList<ChatPair[]> chats = new ArrayList<>();
+        int[] fileChatBegins = new int[sourceFiles.length + 1];
+        for (int i = 0; i < sourceFiles.length; ++i) {
+            if (cachedChats.get(i) != null) {
+                chats.addAll(cachedChats.get(i));
+            }
+            else {
+                List<ChatPair[]> fileChats = Arrays.asList(parsedChats).subList(chatBegins[i], chatBegins[i + 1]);
+                chats.addAll(fileChats);
+                if (cache != null) {
+                    cache.store(sources[i], fileChats);
+                }
+            }
+            fileChatBegins[i + 1] = chats.size();
+        }
+        if (cache != null) {
+            cache.removeUnusedEntries();
+            System.out.println("编译缓存：" + cache.getHitCount() + "个源文件命中，" + cache.getMissCount() + "个源文件重新处理。");
+        }
+        if (duplicateFilter != null) {
+            File[] chatFiles = new File[chats.size()];
+            int[] chatPositions = new int[chats.size()];
+            for (int i = 0; i < sourceFiles.length; ++i) {
+                for (int j = fileChatBegins[i]; j < fileChatBegins[i + 1]; ++j) {
+                    chatFiles[j] = sourceFiles[i];
+                    chatPositions[j] = j - fileChatBegins[i];
+                }
+            }
+            chats = duplicateFilter.filter(chats, chatFiles, chatPositions);
+        }
+        return chats;
+    }
+
+    //逐个读出源文件中的对话原文。源文件以空行分段，每段是一个对话，段中的行依次是问句和答句
+    private final static class SourceChatReader implements Closeable {
+        private final File file;
+        private final Scanner fileScanner;
+        private final ArrayList<String> chatPairsBuilder = new ArrayList<>();
+
+        private SourceChatReader(File file, InputStream in) {
+            this.file = file;
+            fileScanner = new Scanner(in, "GBK");
+        }
+
+        //读出下一个对话，已读完时返回null
+        private SourceChat next() {
+            String string;
+            String answer;
+            while (fileScanner.hasNext()) {
+                string = fileScanner.nextLine();
+                if (string.length() == 0) {
+                    //本段已结束
+                    if (!chatPairsBuilder.isEmpty()) {
+                        return takeChat();
+                    }
+                    continue;
+                }
+
+                //构造问题内容
+                if (fileScanner.hasNext()) {
+                    answer = fileScanner.nextLine();
+                }
+                else {
+                    answer = "";
+                }
+
+                if (answer.length() == 0) {
+                    //本段已结束
+                    if (!chatPairsBuilder.isEmpty()) {
+                        return takeChat();
+                    }
+                    continue;
+                }
+
+                //将该问答对加入集合
+                chatPairsBuilder.add(string);
+                chatPairsBuilder.add(answer);
+            }
+            //本段已结束
+            return chatPairsBuilder.isEmpty() ? null : takeChat();
+        }
+
+        private SourceChat takeChat() {
+            SourceChat chat = new SourceChat(file, chatPairsBuilder);
+            chatPairsBuilder.clear();
+            return chat;
+        }
+
+        @Override
+        public void close() {
+            fileScanner.close();
+        }
+    }
+
+    //读取一个源文件中的对话原文，依次加入chats
+    private static void readSourceChats(File file, byte[] source, ArrayList<SourceChat> chats) {
+        SourceChatReader reader = new SourceChatReader(file, new ByteArrayInputStream(source));
+        SourceChat chat;
+        while ((chat = reader.next()) != null) {
+            chats.add(chat);
+        }
+    }
+
+    //对问句分句、分词，构造问答对
+    private static ChatPair parseChatPair(String question, String answer, SegmentationMemo segmentationMemo, SynonymBank synonymBank) {
+        String string;
+        SentenceSegmenter.ContextType lastContextType;
+        WordReader wordReader;
+        ArrayList<WordFrequencyVectorString> sentenceVectorsBuilder = new ArrayList<>();
+        LinkedHashSet<String> bigrams = new LinkedHashSet<>();
+
+        //读取问句
+        SentenceSegmenter sentenceSegmenter = new SentenceSegmenter(new FormattedReader(new StringReader(question)));
+
+        //分句
+        int sentenceLength = 0;
+        while ((string = sentenceSegmenter.nextSentence()) != null) {
+            lastContextType = sentenceSegmenter.getLastContextType();
+            //跳过引用、括号中的内容
+            if (lastContextType == SentenceSegmenter.ContextType.IN_BRACKET || lastContextType == SentenceSegmenter.ContextType.IN_QUOTE) {
+                continue;
+            }
+            //分词、数字转换和同义词转换
+            wordReader = new SynonymReplaceReader(new SimpleWordReader(segmentationMemo.segment(string)), synonymBank);
+            //构造子句
+            HashMap<String, Integer> vector = new HashMap<>();
+            sentenceLength += string.length();
+            String originalSentence = string;
+            String previous = null;
+            while (wordReader.hasNext()) {
+                string = wordReader.nextWord();
+                //构造向量
+                Integer frequency = vector.get(string);
+                if (frequency == null) {
+                    frequency = 0;
+                }
+                vector.put(string, frequency + 1);
+                //同一子句中相邻的两个词构成二元词组
+                if (previous != null) {
+                    bigrams.add(previous + BIGRAM_SEPARATOR + string);
+                }
+                previous = string;
+            }
+
+            //计算模平方同时将该分句加入集合
+            sentenceVectorsBuilder.add(new WordFrequencyVectorString(originalSentence, vector));
+        }
+        WordFrequencyVector[] vectors = new WordFrequencyVector[sentenceVectorsBuilder.size()];
+        sentenceVectorsBuilder.toArray(vectors);
+        return new ChatPair(new WordFrequencyVectors(vectors, sentenceLength), answer, bigrams.toArray(new String[0]));
+    }
+
+    //为[begin, end)范围内的对话建立词到问答对编号的倒排表。两半分别建立后，后一半的倒排项接在前一半之后，
+    //因此每个词的倒排项都按问答对编号的顺序排列，与逐个对话建立的结果完全相同
+    private final static class IndexTask extends RecursiveTask<TreeMap<String, ArrayList<Integer>>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ChatPair[]> chats;
+        private final int[] chatFirstPairs;
+        private final int begin;
+        private final int end;
+
+        private IndexTask(List<ChatPair[]> chats, int[] chatFirstPairs, int begin, int end) {
+            this.chats = chats;
+            this.chatFirstPairs = chatFirstPairs;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected TreeMap<String, ArrayList<Integer>> compute() {
+            if (end - begin <= INDEX_TASK_CHATS) {
+                TreeMap<String, ArrayList<Integer>> wordsIndexs = new TreeMap<>();
+                for (int i = begin; i < end; ++i) {
+                    ChatPair[] chatI = chats.get(i);
+                    for (int j = 0; j < chatI.length; ++j) {
+                        for (WordFrequencyVector vector : chatI[j].sentences.getVectors()) {
+                            for (String word : ((WordFrequencyVectorString) vector).stringVector.keySet()) {
+                                wordsIndexs.computeIfAbsent(word, key -> new ArrayList<>()).add(chatFirstPairs[i] + j);
+                            }
+                        }
+                    }
+                }
+                return wordsIndexs;
+            }
+            int middle = (begin + end) >>> 1;
+            IndexTask right = new IndexTask(chats, chatFirstPairs, middle, end);
+            right.fork();
+            TreeMap<String, ArrayList<Integer>> wordsIndexs = new IndexTask(chats, chatFirstPairs, begin, middle).compute();
+            for (Map.Entry<String, ArrayList<Integer>> entry : right.join().entrySet()) {
+                ArrayList<Integer> chatPairs = wordsIndexs.putIfAbsent(entry.getKey(), entry.getValue());
+                if (chatPairs != null) {
+                    chatPairs.addAll(entry.getValue());
+                }
+            }
+            return wordsIndexs;
+        }
+    }
+
+    //将对话写入生成器。词的编号即其在升序排列中的位置
+    private static void writeChats(ChatBankWriter writer, List<ChatPair[]> chats) throws IOException {
+        //各对话第一个问答对的编号
+        int[] chatFirstPairs = new int[chats.size()];
+        for (int i = 1; i < chatFirstPairs.length; ++i) {
+            chatFirstPairs[i] = chatFirstPairs[i - 1] + chats.get(i - 1).length;
+        }
+
+        //词及其倒排表
+        TreeMap<String, ArrayList<Integer>> wordsIndexs = ForkJoinPool.commonPool().invoke(new IndexTask(chats, chatFirstPairs, 0, chats.size()));
+        HashMap<String, Integer> wordNumbers = new HashMap<>();
+        for (Map.Entry<String, ArrayList<Integer>> entry : wordsIndexs.entrySet()) {
+            wordNumbers.put(entry.getKey(), wordNumbers.size());
+            int[] chatPairs = new int[entry.getValue().size()];
+            for (int i = 0; i < chatPairs.length; ++i) {
+                chatPairs[i] = entry.getValue().get(i);
+            }
+            writer.addWord(entry.getKey(), chatPairs);
+        }
+        writeChatPairs(writer, chats, wordNumbers);
+
+        //二元词组及其倒排表
+        writer.setBigramIndexed();
+        for (Map.Entry<String, ArrayList<Integer>> entry : indexBigrams(chats, chatFirstPairs).entrySet()) {
+            int[] chatPairs = new int[entry.getValue().size()];
+            for (int i = 0; i < chatPairs.length; ++i) {
+                chatPairs[i] = entry.getValue().get(i);
+            }
+            addBigram(writer, wordNumbers, entry.getKey(), chatPairs);
+        }
+    }
+
+    //二元词组中前后两个词的分隔符。分隔符小于任何字符，因此以字符串排序的二元词组与按(前一个词, 后一个词)的编号排序的顺序相同
+    private static final char BIGRAM_SEPARATOR = '\0';
+
+    //为对话建立二元词组到问答对编号的倒排表，每个二元词组的倒排项按问答对编号的顺序排列
+    private static TreeMap<String, ArrayList<Integer>> indexBigrams(List<ChatPair[]> chats, int[] chatFirstPairs) {
+        TreeMap<String, ArrayList<Integer>> bigramsIndexs = new TreeMap<>();
+        for (int i = 0; i < chats.size(); ++i) {
+            ChatPair[] chatI = chats.get(i);
+            for (int j = 0; j < chatI.length; ++j) {
+                for (String bigram : chatI[j].bigrams) {
+                    bigramsIndexs.computeIfAbsent(bigram, key -> new ArrayList<>()).add(chatFirstPairs[i] + j);
+                }
+            }
+        }
+        return bigramsIndexs;
+    }
+
+    //将以字符串表示的二元词组换算为词编号后写入生成器
+    private static void addBigram(ChatBankWriter writer, Map<String, Integer> wordNumbers, String bigram, int[] chatPairs) throws IOException {
+        int separator = bigram.indexOf(BIGRAM_SEPARATOR);
+        writer.addBigram(wordNumbers.get(bigram.substring(0, separator)), wordNumbers.get(bigram.substring(separator + 1)), chatPairs);
+    }
+
+    //将对话写入生成器，词已全部加入生成器，wordNumbers为词到其编号的映射
+    private static void writeChatPairs(ChatBankWriter writer, List<ChatPair[]> chats, Map<String, Integer> wordNumbers) throws IOException {
+        for (ChatPair[] chatI : chats) {
+            writer.beginChat();
+            for (ChatPair chatPairI : chatI) {
+                WordFrequencyVector[] vectorsI = chatPairI.sentences.getVectors();
+                String[] sentences = new String[vectorsI.length];
+                int[][] words = new int[vectorsI.length][];
+                int[][] frequencies = new int[vectorsI.length][];
+                int[] module2s = new int[vectorsI.length];
+                for (int i = 0; i < vectorsI.length; ++i) {
+                    sentences[i] = vectorsI[i].getOriginalSentence();
+                    module2s[i] = vectorsI[i].getModule2();
+                    TreeMap<Integer, Integer> vector = new TreeMap<>();
+                    for (Map.Entry<String, Integer> entry : ((WordFrequencyVectorString) vectorsI[i]).stringVector.entrySet()) {
+                        vector.put(wordNumbers.get(entry.getKey()), entry.getValue());
+                    }
+                    words[i] = new int[vector.size()];
+                    frequencies[i] = new int[vector.size()];
+                    int position = 0;
+                    for (Map.Entry<Integer, Integer> entry : vector.entrySet()) {
+                        words[i][position] = entry.getKey();
+                        frequencies[i][position] = entry.getValue();
+                        ++position;
+                    }
+                }
+                writer.addChatPair(sentences, words, frequencies, module2s, chatPairI.answer);
+            }
+        }
+    }
+
+    //输出文本和问句去重的统计结果
+    private static void printTextStatistics(ChatBankWriter writer) {
+        System.out.println("文本去重：共" + writer.getTextReferenceCount() + "条文本，其中不同的" + writer.getDistinctTextCount() + "条；"
+                + writer.getRawTextSize() + "字节 → " + writer.getTextSize() + "字节，去重比"
+                + String.format("%.2f", writer.getTextSize() == 0 ? 1.0 : (double) writer.getRawTextSize() / writer.getTextSize()) + "。");
+        System.out.println("问句去重：共" + writer.getChatPairCount() + "个问答对，其中不同的问句" + writer.getQuestionCount() + "个。");
+        System.out.println("二元词组：" + writer.getBigramCount() + "个，倒排项共" + writer.getBigramPostingCount() + "项。");
+        System.out.println("答句模板：" + writer.getTemplateCount() + "个问答对的答句含有占位符。");
+        if (writer.getAnswerStreamSize() > 0) {
+            System.out.println("答句压缩：" + writer.getAnswerStreamSize() + "字节 → " + writer.getCompressedAnswerSize() + "字节(含字典)，压缩比"
+                    + String.format("%.2f", (double) writer.getAnswerStreamSize() / writer.getCompressedAnswerSize()) + "。");
+        }
+    }
+
+    /**
+     * 通过源文件编译对话样本库。
+     *
+     * @param sourceFiles 源文件列表
+     * @param out 编译结果的输出流
+     *
+     * @throws IOException 当源文件无法读取或有误，或向输出流{@code out}写入数据发生IO异常时
+     */
+    public static void compileSourceFiles(File[] sourceFiles, WordBank wordBank, SynonymBank synonymBank, OutputStream out) throws IOException {
+        compileSourceFiles(sourceFiles, wordBank, synonymBank, 0, out);
+    }
+
+    /**
+     * 通过源文件编译对话样本库，答句按{@code answerBlockSize}分块压缩存放。压缩后的样本库占用的内存和磁盘空间更少，
+     * 代价是读取答句时可能需要解压一块，见{@link #getAnswerStoreStatistics}。
+     *
+     * @param sourceFiles 源文件列表
+     * @param answerBlockSize 答句块大小(字节)，为0时不压缩
+     * @param out 编译结果的输出流
+     *
+     * @throws IOException 当源文件无法读取或有误，或向输出流{@code out}写入数据发生IO异常时
+     */
+    public static void compileSourceFiles(File[] sourceFiles, WordBank wordBank, SynonymBank synonymBank, int answerBlockSize, OutputStream out) throws IOException {
+        compileSourceFiles(sourceFiles, wordBank, synonymBank, answerBlockSize, null, out);
+    }
+
+    /**
+     * 通过源文件编译对话样本库，并使用中间结果缓存，只重新处理改动过的源文件。编译结果与不使用缓存时完全相同。
+     *
+     * @param sourceFiles 源文件列表
+     * @param answerBlockSize 答句块大小(字节)，为0时不压缩
+     * @param cache 中间结果缓存，为null时不使用缓存
+     * @param out 编译结果的输出流
+     *
+     * @throws IOException 当源文件无法读取或有误，或向输出流{@code out}写入数据发生IO异常时
+     */
+    public static void compileSourceFiles(File[] sourceFiles, WordBank wordBank, SynonymBank synonymBank, int answerBlockSize, CompileCache cache, OutputStream out) throws IOException {
+        compileSourceFiles(sourceFiles, wordBank, synonymBank, answerBlockSize, cache, null, out);
+    }
+
+    /**
+     * 通过源文件编译对话样本库，并删除近似重复的对话，见{@link DuplicateFilter}。
+     *
+     * @param sourceFiles 源文件列表
+     * @param answerBlockSize 答句块大小(字节)，为0时不压缩
+     * @param cache 中间结果缓存，为null时不使用缓存
+     * @param duplicateFilter 近似重复对话过滤器，为null时不删除
+     * @param out 编译结果的输出流
+     *
+     * @throws IOException 当源文件无法读取或有误，或向输出流{@code out}写入数据发生IO异常时
+     */
+    public static void compileSourceFiles(File[] sourceFiles, WordBank wordBank, SynonymBank synonymBank, int answerBlockSize, CompileCache cache,
+                                          DuplicateFilter duplicateFilter, OutputStream out) throws IOException {
+        ArrayList<ChatPair[]> chats = readSourceFiles(sourceFiles, wordBank, synonymBank, cache, duplicateFilter);
+
+        System.out.print("正在写入文件...");
+
+        ChatBankWriter writer = new ChatBankWriter();
+        writer.setAnswerBlockSize(answerBlockSize);
+        writeChats(writer, chats);
+        writer.writeTo(out);
+        System.out.println("完成！");
+        printTextStatistics(writer);
+    }
+
+    //外存编译时文本池、答句池和问句池的容量是每批问答对数的多少倍
+    private static final int EXTERNAL_POOL_ENTRIES_PER_PAIR = 4;
+    //外存编译时一次归并的顺串数的上限，顺串更多时先分组归并
+    private static final int EXTERNAL_MERGE_FAN_IN = 64;
+
+    //接收按词升序归并出的倒排表
+    private interface PostingSink {
+        void accept(String word, int[] chatPairs) throws IOException;
+    }
+
+    //将一个词及其倒排表写入顺串文件。顺串中各词按升序排列，每个词存为(词, 倒排项数, 各倒排项)，以长度为-1的词结尾
+    private static void writePosting(DataOutputStream out, String word, int[] chatPairs) throws IOException {
+        writeCachedString(out, word);
+        out.writeInt(chatPairs.length);
+        for (int chatPair : chatPairs) {
+            out.writeInt(chatPair);
+        }
+    }
+
+    //顺序读取一个顺串文件，格式见writePosting
+    private final static class PostingRunReader implements Closeable {
+        private final int run;      //顺串的序号，同一个词的倒排项按顺串的序号依次拼接
+        private final DataInputStream in;
+        private String word;
+        private int[] chatPairs;
+
+        private PostingRunReader(int run, File file) throws IOException {
+            this.run = run;
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        //读出下一个词及其倒排表，已读完时返回false
+        private boolean advance() throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                word = null;
+                chatPairs = null;
+                return false;
+            }
+            char[] chars = new char[length];
+            for (int i = 0; i < length; ++i) {
+                chars[i] = in.readChar();
+            }
+            word = new String(chars);
+            chatPairs = new int[in.readInt()];
+            for (int i = 0; i < chatPairs.length; ++i) {
+                chatPairs[i] = in.readInt();
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    //多路归并一组顺串，按词升序把每个词的完整倒排表交给sink
+    private static void mergePostingGroup(List<File> runs, PostingSink sink) throws IOException {
+        ArrayList<PostingRunReader> readers = new ArrayList<>();
+        PriorityQueue<PostingRunReader> queue = new PriorityQueue<>((a, b) -> {
+            int result = a.word.compareTo(b.word);
+            return result != 0 ? result : Integer.compare(a.run, b.run);
+        });
+        try {
+            for (int i = 0; i < runs.size(); ++i) {
+                PostingRunReader reader = new PostingRunReader(i, runs.get(i));
+                readers.add(reader);
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+            ArrayList<int[]> parts = new ArrayList<>();
+            while (!queue.isEmpty()) {
+                String word = queue.peek().word;
+                int size = 0;
+                parts.clear();
+                while (!queue.isEmpty() && queue.peek().word.equals(word)) {
+                    PostingRunReader reader = queue.poll();
+                    parts.add(reader.chatPairs);
+                    size += reader.chatPairs.length;
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                }
+                int[] chatPairs = new int[size];
+                int position = 0;
+                for (int[] part : parts) {
+                    System.arraycopy(part, 0, chatPairs, position, part.length);
+                    position += part.length;
+                }
+                sink.accept(word, chatPairs);
+            }
+        }
+        finally {
+            for (PostingRunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    //归并所有顺串。顺串多于EXTERNAL_MERGE_FAN_IN个时，先把相邻的顺串分组归并为较长的顺串，直到可以一次归并完。
+    //顺串按问答对编号的顺序排列，相邻归并保持了这一顺序，因此每个词的倒排项仍按问答对编号升序排列。新建的临时文件加入temporaryFiles
+    private static void mergePostingRuns(List<File> runs, File temporaryDirectory, List<File> temporaryFiles, PostingSink sink) throws IOException {
+        while (runs.size() > EXTERNAL_MERGE_FAN_IN) {
+            ArrayList<File> mergedRuns = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += EXTERNAL_MERGE_FAN_IN) {
+                List<File> group = runs.subList(i, Math.min(i + EXTERNAL_MERGE_FAN_IN, runs.size()));
+                File mergedRun = createTemporaryFile(temporaryDirectory);
+                temporaryFiles.add(mergedRun);
+                mergedRuns.add(mergedRun);
+                try (DataOutputStream runOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mergedRun)))) {
+                    mergePostingGroup(group, (word, chatPairs) -> writePosting(runOut, word, chatPairs));
+                    runOut.writeInt(-1);
+                }
+                for (File run : group) {
+                    run.delete();
+                }
+            }
+            runs = mergedRuns;
+        }
+        mergePostingGroup(runs, sink);
+    }
+
+    //外存编译的一批对话：分句和分词后追加到对话临时文件，每批存为(字节数, 对话)，对话的格式见writeCachedChats；
+    //这一批词的倒排表写为顺串runFile，二元词组的倒排表写为顺串bigramRunFile。firstPair是这一批第一个问答对的编号，返回这一批的问答对数
+    private static int spillChatBatch(List<SourceChat> batch, int firstPair, SegmentationMemo segmentationMemo, SynonymBank synonymBank,
+                                      DataOutputStream chatsOut, File runFile, File bigramRunFile) throws IOException {
+        ChatPair[][] parsedChats = new ChatPair[batch.size()][];
+        ForkJoinPool.commonPool().invoke(new ParseTask(batch.toArray(new SourceChat[0]), parsedChats, 0, parsedChats.length, segmentationMemo, synonymBank));
+        List<ChatPair[]> chats = Arrays.asList(parsedChats);
+
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        writeCachedChats(new DataOutputStream(bytesOut), chats);
+        chatsOut.writeInt(bytesOut.size());
+        bytesOut.writeTo(chatsOut);
+
+        int[] chatFirstPairs = new int[chats.size()];
+        int pairCount = 0;
+        for (int i = 0; i < chatFirstPairs.length; ++i) {
+            chatFirstPairs[i] = firstPair + pairCount;
+            pairCount += chats.get(i).length;
+        }
+        TreeMap<String, ArrayList<Integer>> wordsIndexs = ForkJoinPool.commonPool().invoke(new IndexTask(chats, chatFirstPairs, 0, chats.size()));
+        try (DataOutputStream runOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile)))) {
+            for (Map.Entry<String, ArrayList<Integer>> entry : wordsIndexs.entrySet()) {
+                int[] chatPairs = new int[entry.getValue().size()];
+                for (int i = 0; i < chatPairs.length; ++i) {
+                    chatPairs[i] = entry.getValue().get(i);
+                }
+                writePosting(runOut, entry.getKey(), chatPairs);
+            }
+            runOut.writeInt(-1);
+        }
+        try (DataOutputStream runOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bigramRunFile)))) {
+            for (Map.Entry<String, ArrayList<Integer>> entry : indexBigrams(chats, chatFirstPairs).entrySet()) {
+                int[] chatPairs = new int[entry.getValue().size()];
+                for (int i = 0; i < chatPairs.length; ++i) {
+                    chatPairs[i] = entry.getValue().get(i);
+                }
+                writePosting(runOut, entry.getKey(), chatPairs);
+            }
+            runOut.writeInt(-1);
+        }
+        return pairCount;
+    }
+
+    /**
+     * 在外存中编译对话样本库，用于规模超过堆内存的语料。
+     *
+     * 源文件逐个对话流式读入，每凑满{@code batchPairs}个问答对为一批：分句和分词后对话写入临时文件，这一批的倒排表按词排序后写为一个顺串。
+     * 所有源文件读完后多路归并各顺串得到完整的倒排表，再逐批读回对话，写入外存模式的{@link ChatBankWriter}。
+     * 堆内存中只保留一批对话、各顺串当前的词、词的编号以及容量与批大小成正比的去重池，与语料的规模基本无关。
+     * 去重池没有装满时，编译结果与{@link #compileSourceFiles(File[], WordBank, SynonymBank, OutputStream)}完全相同。
+     * 本模式不支持答句压缩和编译缓存。
+     *
+     * @param sourceFiles 源文件列表
+     * @param batchPairs 每批的问答对数，决定了编译时堆内存的占用
+     * @param temporaryDirectory 存放临时文件的目录，为null时使用系统的临时目录
+     * @param out 编译结果的输出流
+     *
+     * @throws IOException 当源文件无法读取或有误，或读写临时文件、向输出流{@code out}写入数据发生IO异常时
+     */
+    public static void compileSourceFilesExternally(File[] sourceFiles, WordBank wordBank, SynonymBank synonymBank, int batchPairs,
+                                                    File temporaryDirectory, OutputStream out) throws IOException {
+        if (batchPairs <= 0) {
+            throw new IllegalArgumentException("batchPairs = " + batchPairs);
+        }
+        ArrayList<File> temporaryFiles = new ArrayList<>();
+        ChatBankWriter writer = null;
+        try {
+            //读入源文件，分批写出对话和顺串
+            File chatsFile = createTemporaryFile(temporaryDirectory);
+            temporaryFiles.add(chatsFile);
+            ArrayList<File> runs = new ArrayList<>();
+            ArrayList<File> bigramRuns = new ArrayList<>();
+            int pairCount = 0;
+            //分词缓存在各批之间共享，其容量固定，不随语料增长
+            SegmentationMemo segmentationMemo = new SegmentationMemo(wordBank);
+            try (DataOutputStream chatsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(chatsFile)))) {
+                ArrayList<SourceChat> batch = new ArrayList<>();
+                int batchPairCount = 0;
+                for (File file : sourceFiles) {
+                    System.out.println("正在处理 " + file.getPath());
+                    try (SourceChatReader reader = new SourceChatReader(file, new BufferedInputStream(new FileInputStream(file)))) {
+                        SourceChat chat;
+                        while ((chat = reader.next()) != null) {
+                            batch.add(chat);
+                            batchPairCount += chat.lines.length / 2;
+                            if (batchPairCount >= batchPairs) {
+                                File run = createTemporaryFile(temporaryDirectory);
+                                temporaryFiles.add(run);
+                                runs.add(run);
+                                File bigramRun = createTemporaryFile(temporaryDirectory);
+                                temporaryFiles.add(bigramRun);
+                                bigramRuns.add(bigramRun);
+                                pairCount += spillChatBatch(batch, pairCount, segmentationMemo, synonymBank, chatsOut, run, bigramRun);
+                                batch.clear();
+                                batchPairCount = 0;
+                            }
+                        }
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    File run = createTemporaryFile(temporaryDirectory);
+                    temporaryFiles.add(run);
+                    runs.add(run);
+                    File bigramRun = createTemporaryFile(temporaryDirectory);
+                    temporaryFiles.add(bigramRun);
+                    bigramRuns.add(bigramRun);
+                    pairCount += spillChatBatch(batch, pairCount, segmentationMemo, synonymBank, chatsOut, run, bigramRun);
+                }
+            }
+            catch (RuntimeException e) {
+                throw new IOException("无法处理对话样本源文件。", e);
+            }
+            System.out.println("分词缓存：" + segmentationMemo + "。");
+
+            //归并顺串得到词表和倒排表
+            System.out.print("正在归并" + runs.size() + "个顺串...");
+            writer = new ChatBankWriter(temporaryDirectory);
+            writer.setPoolCapacity((int) Math.min(Integer.MAX_VALUE, (long) batchPairs * EXTERNAL_POOL_ENTRIES_PER_PAIR));
+            HashMap<String, Integer> wordNumbers = new HashMap<>();
+            ChatBankWriter wordWriter = writer;
+            mergePostingRuns(runs, temporaryDirectory, temporaryFiles, (word, chatPairs) -> {
+                wordNumbers.put(word, wordNumbers.size());
+                wordWriter.addWord(word, chatPairs);
+            });
+            System.out.println("完成.");
+
+            //逐批读回对话
+            System.out.print("正在写入文件...");
+            try (DataInputStream chatsIn = new DataInputStream(new BufferedInputStream(new FileInputStream(chatsFile)))) {
+                for (int i = 0; i < runs.size(); ++i) {
+                    byte[] bytes = new byte[chatsIn.readInt()];
+                    chatsIn.readFully(bytes);
+                    writeChatPairs(writer, readCachedChats(ByteBuffer.wrap(bytes)), wordNumbers);
+                }
+            }
+            //二元词组的顺串以同样的方式归并，按字符串排序即按词编号排序
+            writer.setBigramIndexed();
+            mergePostingRuns(bigramRuns, temporaryDirectory, temporaryFiles, (bigram, chatPairs) -> addBigram(wordWriter, wordNumbers, bigram, chatPairs));
+            writer.writeTo(out);
+            System.out.println("完成！");
+            printTextStatistics(writer);
+        }
+        finally {
+            if (writer != null) {
+                writer.deleteSectionFiles();
+            }
+            for (File file : temporaryFiles) {
+                file.delete();
+            }
+        }
+    }
+
+    //按问答对数把对话划分为shardCount个连续的区间，返回各区间的起点，最后一项为对话总数
+    private static int[] splitChats(List<ChatPair[]> chats, int shardCount) {
+        long totalPairs = 0;
+        for (ChatPair[] chatI : chats) {
+            totalPairs += chatI.length;
+        }
+        int[] bounds = new int[shardCount + 1];
+        long pairs = 0;
+        int shard = 1;
+        for (int i = 0; i < chats.size() && shard < shardCount; ++i) {
+            pairs += chats.get(i).length;
+            while (shard < shardCount && pairs * shardCount >= totalPairs * shard) {
+                bounds[shard++] = i + 1;
+            }
+        }
+        while (shard <= shardCount) {
+            bounds[shard++] = chats.size();
+        }
+        return bounds;
+    }
+
+    /**
+     * 通过源文件编译分片的对话样本库，供{@link ShardedChatBank}加载。对话按编号划分为问答对数大致相等的连续区间，
+     * 每个区间写入一个输出流，成为一个独立的样本库；各分片的词表只包含本分片中出现的词。
+     *
+     * @param sourceFiles 源文件列表
+     * @param outs 各分片的输出流，其个数即分片数
+     *
+     * @throws IOException 当源文件有误或向输出流写入数据发生IO异常时
+     */
+    public static void compileShards(File[] sourceFiles, WordBank wordBank, SynonymBank synonymBank, OutputStream[] outs) throws IOException {
+        compileShards(sourceFiles, wordBank, synonymBank, 0, outs);
+    }
+
+    /**
+     * 通过源文件编译分片的对话样本库，各分片的答句按{@code answerBlockSize}分块压缩存放。
+     * 参见{@link #compileShards(File[], WordBank, SynonymBank, OutputStream[])}。
+     *
+     * @param sourceFiles 源文件列表
+     * @param answerBlockSize 答句块大小(字节)，为0时不压缩
+     * @param outs 各分片的输出流，其个数即分片数
+     *
+     * @throws IOException 当源文件有误或向输出流写入数据发生IO异常时
+     */
+    public static void compileShards(File[] sourceFiles, WordBank wordBank, SynonymBank synonymBank, int answerBlockSize, OutputStream[] outs) throws IOException {
+        compileShards(sourceFiles, wordBank, synonymBank, answerBlockSize, null, outs);
+    }
+
+    /**
+     * 通过源文件编译分片的对话样本库，并使用中间结果缓存，只重新处理改动过的源文件。
+     * 参见{@link #compileShards(File[], WordBank, SynonymBank, OutputStream[])}。
+     *
+     * @param sourceFiles 源文件列表
+     * @param answerBlockSize 答句块大小(字节)，为0时不压缩
+     * @param cache 中间结果缓存，为null时不使用缓存
+     * @param outs 各分片的输出流，其个数即分片数
+     *
+     * @throws IOException 当源文件有误或向输出流写入数据发生IO异常时
+     */
+    public static void compileShards(File[] sourceFiles, WordBank wordBank, SynonymBank synonymBank, int answerBlockSize, CompileCache cache, OutputStream[] outs) throws IOException {
+        compileShards(sourceFiles, wordBank, synonymBank, answerBlockSize, cache, null, outs);
+    }
+
+    /**
+     * 通过源文件编译分片的对话样本库，并删除近似重复的对话，见{@link DuplicateFilter}。
+     *
+     * @param sourceFiles 源文件列表
+     * @param answerBlockSize 答句块大小(字节)，为0时不压缩
+     * @param cache 中间结果缓存，为null时不使用缓存
+     * @param duplicateFilter 近似重复对话过滤器，为null时不删除
+     * @param outs 各分片的输出流，其个数即分片数
+     *
+     * @throws IOException 当源文件有误或向输出流写入数据发生IO异常时
+     */
+    public static void compileShards(File[] sourceFiles, WordBank wordBank, SynonymBank synonymBank, int answerBlockSize, CompileCache cache,
+                                     DuplicateFilter duplicateFilter, OutputStream[] outs) throws IOException {
+        ArrayList<ChatPair[]> chats = readSourceFiles(sourceFiles, wordBank, synonymBank, cache, duplicateFilter);
+        int[] bounds = splitChats(chats, outs.length);
+        for (int i = 0; i < outs.length; ++i) {
+            System.out.print("正在写入第" + (i + 1) + "个分片(" + (bounds[i + 1] - bounds[i]) + "个对话)...");
+            ChatBankWriter writer = new ChatBankWriter();
+            writer.setAnswerBlockSize(answerBlockSize);
+            writeChats(writer, chats.subList(bounds[i], bounds[i + 1]));
+            writer.writeTo(outs[i]);
+            System.out.println("完成！");
+            printTextStatistics(writer);
+        }
+    }
+
+    //编译增量样本库：加入的对话照常写入，删除的对话写为墓碑
+    private static ChatBankWriter writeDelta(File[] sourceFiles, File[] deletedSourceFiles, WordBank wordBank, SynonymBank synonymBank) throws IOException {
+        ArrayList<ChatPair[]> chats = readSourceFiles(sourceFiles, wordBank, synonymBank, null, null);
+        ArrayList<ChatPair[]> deletedChats = readSourceFiles(deletedSourceFiles, wordBank, synonymBank, null, null);
+        ChatBankWriter writer = new ChatBankWriter();
+        for (ChatPair[] chatI : deletedChats) {
+            long chatKey = CHAT_KEY_SEED;
+            for (ChatPair chatPairI : chatI) {
+                WordFrequencyVector[] vectorsI = chatPairI.sentences.getVectors();
+                String[] sentences = new String[vectorsI.length];
+                for (int i = 0; i < vectorsI.length; ++i) {
+                    sentences[i] = vectorsI[i].getOriginalSentence();
+                }
+                chatKey = updateChatKey(chatKey, sentences, chatPairI.answer);
+            }
+            writer.addTombstone(chatKey);
+        }
+        writeChats(writer, chats);
+        return writer;
+    }
+
+    /**
+     * 通过源文件编译一个增量样本库，供{@link SegmentedChatBank}追加在已有的样本库之后。
+     * 增量样本库中的对话将被加入，删除源文件中的对话将以墓碑的形式从更早的样本库中删除(按内容匹配，须与原对话完全相同)。
+     *
+     * @param sourceFiles 要加入的对话的源文件列表
+     * @param deletedSourceFiles 要删除的对话的源文件列表
+     * @param out 编译结果的输出流
+     *
+     * @throws IOException 当源文件有误或向输出流{@code out}写入数据发生IO异常时
+     */
+    public static void compileDelta(File[] sourceFiles, File[] deletedSourceFiles, WordBank wordBank, SynonymBank synonymBank, OutputStream out) throws IOException {
+        writeDelta(sourceFiles, deletedSourceFiles, wordBank, synonymBank).writeTo(out);
+    }
+
+    /**
+     * 通过源文件编译一个增量样本库，直接返回编译结果而不写入文件。参见{@link #compileDelta(File[], File[], WordBank, SynonymBank, OutputStream)}。
+     *
+     * @return 增量样本库
+     *
+     * @throws IOException 当源文件有误时
+     */
+    public static ChatBank compileDelta(File[] sourceFiles, File[] deletedSourceFiles, WordBank wordBank, SynonymBank synonymBank) throws IOException {
+        return new ChatBank(writeDelta(sourceFiles, deletedSourceFiles, wordBank, synonymBank).toByteBuffer());
     }
-}
\ No newline at end of file
+}
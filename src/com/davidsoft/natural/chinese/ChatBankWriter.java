@@ -0,0 +1,1122 @@
+package com.davidsoft.natural.chinese;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 对话样本库文件(v15格式)的生成器。
+ *
+ * v15格式的所有数据都存放在定长的表中，{@link ChatBank}可以将文件直接映射到内存中原地查询，不需要在加载时逐条解码。
+ * 文件结构如下(除倒排段外，所有整数均为大端序的32位整数)：
+ * 文件头：魔数、版本号、词数、对话数、问答对数、子句数、去重前的文本总字节数、段数，随后是段目录，每段一个(偏移, 长度)整数对。
+ * 各段依次为：
+ * SECTION_WORD_BLOCK      词表的分组目录。每{@link #WORD_BLOCK_SIZE}个词一组，每组一个整数，表示该组在词表段中的字节偏移，末尾另有一个结尾项
+ * SECTION_WORD_POSTING    词数+1个(倒排段字节偏移, 累计倒排项数)，词i的倒排项位于倒排段的[offset[i], offset[i+1])字节中，共count[i+1]-count[i]项
+ * SECTION_POSTING         倒排段。倒排项是问答对编号，即问答对在整个样本库中的序号。每个词的倒排项按升序排列并去重，
+ *                         第一项存为一个变长整数(每字节存7位，低位在前，最高位为1表示后面还有字节)，其余各项存为与上一项之差。
+ *                         第i项属于第i/{@link #POSTING_BLOCK_SIZE}块，每块的差值以块首的一个字节给出的字节数(1～4)存为低位在前的定长整数，
+ *                         解码时整块展开，不必逐项判断长度
+ * SECTION_CHAT_PAIR       对话数+1个整数，对话i的问答对位于[pair[i], pair[i+1])
+ * SECTION_PAIR_SENTENCE   问答对数+1个整数，问答对i的子句位于[sentence[i], sentence[i+1])
+ * SECTION_PAIR_ANSWER     每个问答对一个(答句文本偏移, 答句文本长度)。答句压缩时偏移和长度是在解压后的答句流中的
+ * SECTION_SENTENCE_TEXT   每个子句一个(子句文本偏移, 子句文本长度, 子句字符数)。查询时只需要字符数，子句文本只在需要时才解码
+ * SECTION_SENTENCE_VECTOR 问句子句数+1个整数，问句子句i的向量元素位于[vector[i], vector[i+1])
+ * SECTION_SENTENCE_MODULE 每个问句子句一个整数，表示其向量的模平方
+ * SECTION_VECTOR          每个向量元素一个(词编号, 频度)，同一子句内按词编号升序排列
+ * SECTION_TEXT            文本池，所有子句和答句的GBK编码字节。相同的文本只存放一次，各表通过偏移引用
+ * SECTION_WORD_CHUNK      词块目录，每{@link #CHUNK_SIZE}个词一块，每块一个(首词编号, 首倒排项字节偏移, 首词表字节偏移, 校验和)，末尾另有一个结尾项
+ * SECTION_CHAT_CHUNK      对话块目录，每{@link #CHUNK_SIZE}个对话一块，每块一个(首对话编号, 首问答对编号, 首子句编号, 首问句编号, 首问句子句编号,
+ *                         首向量元素编号, 首文本偏移, 校验和)，末尾另有一个结尾项。块中的问答对可以引用之前的块中的问句和文本
+ * SECTION_PAIR_CHAT       每个问答对一个整数，表示其所属的对话编号
+ * SECTION_WORD_ARENA      词表段，按组前缀压缩存放所有的词。每个词存为两个变长整数(与前一个词相同的前缀字符数, 其余字符数)，
+ *                         随后是其余字符的UTF-16编码。每组的第一个词前缀字符数为0，因此从任何一组的开头都可以独立解码
+ * SECTION_WORD_HASH       词的开放寻址散列表，容量为2的幂，每个槽一个(词的{@link String#hashCode}, 词编号)，空槽的词编号为-1。
+ *                         槽位由{@link #wordHashSlot}算出，冲突时线性探测下一个槽
+ * SECTION_CHAT_KEY        每个对话一个64位的内容键(高32位, 低32位)，由对话中所有子句和答句算出，见{@link #updateChatKey}
+ * SECTION_KEY_ORDER       所有对话编号按内容键升序排列，用于按内容查找对话
+ * SECTION_TOMBSTONE       墓碑，即要从更早的样本库中删除的对话的内容键，每项一个(高32位, 低32位)，按升序排列并去重
+ * SECTION_PAIR_QUESTION   每个问答对一个整数，表示其问句编号
+ * SECTION_QUESTION_SENTENCE 问句数+1个整数，问句i的各子句向量依次为问句子句[sentence[i], sentence[i+1])
+ * SECTION_ANSWER_DICTIONARY 答句压缩的预置字典，见{@link AnswerDictionary}
+ * SECTION_ANSWER_BLOCK    答句块目录。第一个整数是块大小，随后每块一个(块在答句流中的偏移, 块在压缩数据段中的偏移)，末尾另有一个结尾项
+ * SECTION_ANSWER_DATA     压缩数据段，各答句块依次以装入预置字典的原始Deflate格式压缩
+ * SECTION_ANSWER_TEMPLATE 答句模板目录。每个含有占位符的问答对一个(问答对编号, 首部分编号, 部分数)，按问答对编号升序排列
+ * SECTION_TEMPLATE_PART   答句模板的各部分，每部分一个(类型, 起始位置, 分隔位置, 结束位置)，见{@link AnswerTemplate}。相同答句的模板只存放一次
+ * SECTION_BIGRAM          二元词组表。每个二元词组一个(前一个词的编号, 后一个词的编号, 倒排段字节偏移, 累计倒排项数)，按两个词的编号升序排列，
+ *                         末尾另有一个结尾项。没有建立二元词组索引的样本库本段为空
+ * SECTION_BIGRAM_POSTING  二元词组的倒排段，格式同SECTION_POSTING
+ * SECTION_QUESTION_ROW    问句矩阵的行表，问句数+1个(首元素编号, 模平方)，问句i的向量元素位于问句矩阵元素表的[first[i], first[i+1])，结尾项的模平方为0
+ * SECTION_QUESTION_TERM   问句矩阵的元素表，每个元素一个(词编号, 频度)。问句的向量是其各子句向量之和，行内按词编号升序排列。
+ *                         检索时直接在映射的文件上与检索向量归并，见{@link ChatBank.QuestionMatrix}
+ *
+ * 问句是问答对中各子句的向量组成的序列。分词和同义词替换之后，许多问答对的问句完全相同(如“嗯”、“好的”)，相同的问句只存放一次，
+ * 问答对通过问句编号引用；问答对第j个子句的文本仍属于该问答对，其向量则是所引用问句的第j个问句子句。检索时每个问句也只需计算一次。
+ *
+ * 答句默认与子句一起存放在文本池中。设置了块大小({@link #setAnswerBlockSize})时，不同的答句依次排成答句流，
+ * 每凑满块大小就在答句边界处截为一块，各块分别压缩，读取一个答句只需解压其所在的块；此时答句不再计入文本池，最后三段为空时表示不压缩。
+ *
+ * 生成器默认在内存中积累各段的数据。外存模式({@link #ChatBankWriter(File)})下各段写入临时文件，生成文件时再拼接并在内存映射上补写校验和，
+ * 堆内存的占用与样本库的规模无关；此时可以用{@link #setPoolCapacity}限制文本池、答句池和问句池的大小，池满之后新的文本和问句照常写入，只是不再参与去重。
+ *
+ * 二元词组是问句的同一子句中分词、同义词替换之后前后相邻的两个词，其倒排表比单个词的倒排表短得多，检索时可以据此生成更小的候选集。
+ *
+ * 每一块在各段中占据的行都是连续的，因此各块可以被互不干涉地并行读取和校验。但文本池和问句去重之后，块中的子句和答句可以引用之前的块写入的文本，
+ * 问答对可以引用之前的块中的问句：一块的文本范围只是该块新加入文本池的文本，不一定包含该块引用的全部文本。文本池只会追加，
+ * 每个文本都由首次写入它的块校验，所以文本池的每个字节恰好属于一块，校验全部的块({@link ChatBank#verifyChunks})可以发现任何文本的损坏，
+ * 单独校验一块则不能保证其引用的文本完好。散列表和二元词组的两段不属于任何一块，由最后一个词块一并校验；
+ * 内容键的排序表、墓碑、答句压缩的三段和答句模板的两段同样不属于任何一块，由最后一个对话块一并校验。
+ */
+final class ChatBankWriter {
+
+    static final int MAGIC = 0x43484232;   //"CHB2"
+    static final int VERSION = 15;
+
+    static final int SECTION_WORD_BLOCK = 0;
+    static final int SECTION_WORD_POSTING = 1;
+    static final int SECTION_POSTING = 2;
+    static final int SECTION_CHAT_PAIR = 3;
+    static final int SECTION_PAIR_SENTENCE = 4;
+    static final int SECTION_PAIR_ANSWER = 5;
+    static final int SECTION_SENTENCE_TEXT = 6;
+    static final int SECTION_SENTENCE_VECTOR = 7;
+    static final int SECTION_SENTENCE_MODULE = 8;
+    static final int SECTION_VECTOR = 9;
+    static final int SECTION_TEXT = 10;
+    static final int SECTION_WORD_CHUNK = 11;
+    static final int SECTION_CHAT_CHUNK = 12;
+    static final int SECTION_PAIR_CHAT = 13;
+    static final int SECTION_WORD_ARENA = 14;
+    static final int SECTION_WORD_HASH = 15;
+    static final int SECTION_CHAT_KEY = 16;
+    static final int SECTION_KEY_ORDER = 17;
+    static final int SECTION_TOMBSTONE = 18;
+    static final int SECTION_PAIR_QUESTION = 19;
+    static final int SECTION_QUESTION_SENTENCE = 20;
+    static final int SECTION_ANSWER_DICTIONARY = 21;
+    static final int SECTION_ANSWER_BLOCK = 22;
+    static final int SECTION_ANSWER_DATA = 23;
+    static final int SECTION_ANSWER_TEMPLATE = 24;
+    static final int SECTION_TEMPLATE_PART = 25;
+    static final int SECTION_BIGRAM = 26;
+    static final int SECTION_BIGRAM_POSTING = 27;
+    static final int SECTION_QUESTION_ROW = 28;
+    static final int SECTION_QUESTION_TERM = 29;
+    static final int SECTION_COUNT = 30;
+
+    //文件头的固定部分：魔数、版本号、词数、对话数、问答对数、子句数、去重前的文本总字节数、段数
+    static final int HEADER_SIZE = 8 * 4;
+    //段目录的起始位置
+    static final int DIRECTORY_OFFSET = HEADER_SIZE;
+
+    //子句表中每一项所占的整数个数
+    static final int SENTENCE_TEXT_INTS = 3;
+
+    //每一块包含的词数或对话数
+    static final int CHUNK_SIZE = 4096;
+    //词块目录和对话块目录中每一项所占的整数个数
+    static final int WORD_CHUNK_INTS = 4;
+    static final int CHAT_CHUNK_INTS = 8;
+
+    static final String TEXT_ENCODING = "GBK";
+
+    //词表中每一组的词数，必须能整除CHUNK_SIZE
+    static final int WORD_BLOCK_SIZE = 16;
+
+    //倒排表中每一块的项数，第一块的第一项不计在块内的差值中
+    static final int POSTING_BLOCK_SIZE = 128;
+
+    //答句压缩的预置字典的最大字节数，不超过Deflate的窗口大小
+    static final int MAX_ANSWER_DICTIONARY_SIZE = 16384;
+
+    //对话内容键的初始值(64位FNV-1a算法的初始值)
+    static final long CHAT_KEY_SEED = 0xCBF29CE484222325L;
+
+    private final DataOutputStream[] sections = new DataOutputStream[SECTION_COUNT];
+    //内存模式下各段的缓冲区，外存模式下为null
+    private final ByteArrayOutputStream[] sectionBuffers;
+    //外存模式下各段的临时文件及其所在的目录，内存模式下为null
+    private final File[] sectionFiles;
+    private final File temporaryDirectory;
+
+    private int wordCount;
+    private int chatCount;
+    private int pairCount;
+    private int sentenceCount;
+    private int questionCount;
+    private int questionSentenceCount;
+    private int postingCount;
+    private int vectorCount;
+    private int questionTermCount;
+    private int textSize;
+
+    //前一个加入词表的词，用于前缀压缩
+    private String lastWord;
+    //各个词的散列值，生成文件时据此建立散列表
+    private int[] wordHashes = new int[1024];
+
+    //各个对话的内容键，以及墓碑
+    private long[] chatKeys = new long[256];
+    private long[] tombstones = new long[16];
+    private int tombstoneCount;
+
+    //是否建立了二元词组索引，已添加的二元词组数和倒排项数，以及前一个二元词组的(前一个词, 后一个词)
+    private boolean bigramIndexed;
+    private int bigramCount;
+    private int bigramPostingCount;
+    private long lastBigram = -1;
+
+    //词和对话各自必须连续添加，添加完毕后结束其块目录
+    private boolean addingWords;
+    private boolean addingChats;
+    private boolean wordsFinished;
+    private boolean chatsFinished;
+
+    //问句池：问句→问句编号，相同的问句只写入一次
+    private final HashMap<QuestionKey, Integer> questionPool = new HashMap<>();
+
+    //问句池的键，即问句中各子句的模平方、向量长度、词编号和频度依次排成的序列
+    private final static class QuestionKey {
+        private final int[] content;
+        private final int hash;
+
+        private QuestionKey(int[][] words, int[][] frequencies, int[] module2s) {
+            int length = 1;
+            for (int[] sentenceWords : words) {
+                length += 2 + sentenceWords.length * 2;
+            }
+            content = new int[length];
+            content[0] = words.length;
+            int position = 1;
+            for (int i = 0; i < words.length; ++i) {
+                content[position++] = module2s[i];
+                content[position++] = words[i].length;
+                System.arraycopy(words[i], 0, content, position, words[i].length);
+                position += words[i].length;
+                System.arraycopy(frequencies[i], 0, content, position, frequencies[i].length);
+                position += frequencies[i].length;
+            }
+            hash = Arrays.hashCode(content);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof QuestionKey && Arrays.equals(content, ((QuestionKey) obj).content);
+        }
+    }
+
+    //文本池：文本→(偏移, 长度)，相同的文本只写入一次
+    private final HashMap<String, int[]> textPool = new HashMap<>();
+    private int textReferenceCount;
+    private int distinctTextCount;
+    private int rawTextSize;
+
+    //文本池、答句池和问句池各自最多容纳的项数
+    private int poolCapacity = Integer.MAX_VALUE;
+
+    //答句块大小，为0时不压缩答句
+    private int answerBlockSize;
+    //答句池：答句→在答句流中的(偏移, 长度)，以及依次加入的各个答句的编码，即答句流的内容
+    private final HashMap<String, int[]> answerPool = new HashMap<>();
+    private final ArrayList<byte[]> answerTexts = new ArrayList<>();
+    private int answerStreamSize;
+
+    //模板池：含有占位符的答句→其模板的首部分编号
+    private final HashMap<String, Integer> templatePool = new HashMap<>();
+    private int templateCount;
+    private int templatePartCount;
+
+    ChatBankWriter() {
+        sectionBuffers = new ByteArrayOutputStream[SECTION_COUNT];
+        sectionFiles = null;
+        temporaryDirectory = null;
+        for (int i = 0; i < SECTION_COUNT; ++i) {
+            sectionBuffers[i] = new ByteArrayOutputStream();
+            sections[i] = new DataOutputStream(sectionBuffers[i]);
+        }
+    }
+
+    /**
+     * 构造一个外存模式的生成器，各段的数据写入临时文件。外存模式的生成器只能通过{@link #writeTo}输出。
+     *
+     * @param temporaryDirectory 存放临时文件的目录，为null时使用系统的临时目录
+     *
+     * @throws IOException 当无法创建临时文件时
+     */
+    ChatBankWriter(File temporaryDirectory) throws IOException {
+        sectionBuffers = null;
+        sectionFiles = new File[SECTION_COUNT];
+        this.temporaryDirectory = temporaryDirectory;
+        try {
+            for (int i = 0; i < SECTION_COUNT; ++i) {
+                sectionFiles[i] = createTemporaryFile(temporaryDirectory);
+                sections[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sectionFiles[i])));
+            }
+        }
+        catch (IOException e) {
+            deleteSectionFiles();
+            throw e;
+        }
+    }
+
+    //创建一个临时文件，进程退出时若仍未删除则自动删除
+    static File createTemporaryFile(File temporaryDirectory) throws IOException {
+        File file = File.createTempFile("ChatBank", ".tmp", temporaryDirectory);
+        file.deleteOnExit();
+        return file;
+    }
+
+    //关闭并删除外存模式下各段的临时文件。生成文件之前放弃生成时也应调用，可以重复调用
+    void deleteSectionFiles() {
+        for (int i = 0; i < SECTION_COUNT; ++i) {
+            if (sections[i] != null) {
+                try {
+                    sections[i].close();
+                }
+                catch (IOException e) {
+                    //临时文件即将删除，忽略
+                }
+            }
+            if (sectionFiles[i] != null) {
+                sectionFiles[i].delete();
+            }
+        }
+    }
+
+    /**
+     * 限制文本池、答句池和问句池各自的容量，用于外存模式下限制内存的占用。池满之后新的文本和问句照常写入，只是不再参与去重，
+     * 因此只要池没有满，生成的文件就与不限制时完全相同。必须在添加内容之前设置。
+     *
+     * @param capacity 每个池最多容纳的项数
+     */
+    void setPoolCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity = " + capacity);
+        }
+        poolCapacity = capacity;
+    }
+
+    //写入文本，并在表中记录其(偏移, 长度)。文本池中已有的文本不再重复写入
+    private void writeText(DataOutputStream table, String text) throws IOException {
+        int[] reference = textPool.get(text);
+        if (reference == null) {
+            byte[] bytes = text.getBytes(TEXT_ENCODING);
+            sections[SECTION_TEXT].write(bytes);
+            reference = new int[] {textSize, bytes.length};
+            ++distinctTextCount;
+            if (textPool.size() < poolCapacity) {
+                textPool.put(text, reference);
+            }
+            textSize += bytes.length;
+        }
+        table.writeInt(reference[0]);
+        table.writeInt(reference[1]);
+        ++textReferenceCount;
+        rawTextSize += reference[1];
+    }
+
+    /**
+     * 设置答句块大小，开启答句压缩。必须在添加问答对之前设置。
+     *
+     * @param blockSize 每块至少包含的答句字节数，为0时不压缩
+     */
+    void setAnswerBlockSize(int blockSize) {
+        if (blockSize < 0) {
+            throw new IllegalArgumentException("blockSize = " + blockSize);
+        }
+        if (pairCount > 0) {
+            throw new IllegalStateException("答句块大小必须在添加问答对之前设置。");
+        }
+        answerBlockSize = blockSize;
+    }
+
+    //写入答句。不压缩时与子句一样写入文本池，否则写入答句池
+    private void writeAnswer(String answer) throws IOException {
+        if (answerBlockSize == 0) {
+            writeText(sections[SECTION_PAIR_ANSWER], answer);
+            return;
+        }
+        int[] reference = answerPool.get(answer);
+        if (reference == null) {
+            byte[] bytes = answer.getBytes(TEXT_ENCODING);
+            answerTexts.add(bytes);
+            reference = new int[] {answerStreamSize, bytes.length};
+            if (answerPool.size() < poolCapacity) {
+                answerPool.put(answer, reference);
+            }
+            answerStreamSize += bytes.length;
+        }
+        sections[SECTION_PAIR_ANSWER].writeInt(reference[0]);
+        sections[SECTION_PAIR_ANSWER].writeInt(reference[1]);
+    }
+
+    //解析答句中的占位符。含有占位符的答句在模板目录中登记，没有占位符的答句不占用任何空间
+    private void writeAnswerTemplate(String answer) throws IOException {
+        int[] parts = AnswerTemplate.parse(answer);
+        if (parts == null) {
+            return;
+        }
+        Integer firstPart = templatePool.get(answer);
+        if (firstPart == null) {
+            firstPart = templatePartCount;
+            for (int part : parts) {
+                sections[SECTION_TEMPLATE_PART].writeInt(part);
+            }
+            templatePartCount += parts.length / AnswerTemplate.PART_INTS;
+            if (templatePool.size() < poolCapacity) {
+                templatePool.put(answer, firstPart);
+            }
+        }
+        sections[SECTION_ANSWER_TEMPLATE].writeInt(pairCount);
+        sections[SECTION_ANSWER_TEMPLATE].writeInt(firstPart);
+        sections[SECTION_ANSWER_TEMPLATE].writeInt(parts.length / AnswerTemplate.PART_INTS);
+        ++templateCount;
+    }
+
+    //训练预置字典，并将答句流分块压缩
+    private void writeAnswerBlocks() throws IOException {
+        if (answerBlockSize == 0) {
+            return;
+        }
+        byte[] dictionary = AnswerDictionary.train(answerTexts, Math.min(MAX_ANSWER_DICTIONARY_SIZE, answerStreamSize / 4));
+        sections[SECTION_ANSWER_DICTIONARY].write(dictionary);
+        sections[SECTION_ANSWER_BLOCK].writeInt(answerBlockSize);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        ByteArrayOutputStream block = new ByteArrayOutputStream(answerBlockSize * 2);
+        byte[] buffer = new byte[4096];
+        try {
+            int blockBegin = 0;
+            int next = 0;
+            while (next < answerTexts.size()) {
+                block.reset();
+                while (next < answerTexts.size() && block.size() < answerBlockSize) {
+                    block.write(answerTexts.get(next++));
+                }
+                sections[SECTION_ANSWER_BLOCK].writeInt(blockBegin);
+                sections[SECTION_ANSWER_BLOCK].writeInt(sections[SECTION_ANSWER_DATA].size());
+                deflater.reset();
+                if (dictionary.length > 0) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(block.toByteArray());
+                deflater.finish();
+                while (!deflater.finished()) {
+                    sections[SECTION_ANSWER_DATA].write(buffer, 0, deflater.deflate(buffer));
+                }
+                blockBegin += block.size();
+            }
+            sections[SECTION_ANSWER_BLOCK].writeInt(blockBegin);
+            sections[SECTION_ANSWER_BLOCK].writeInt(sections[SECTION_ANSWER_DATA].size());
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    //在词块目录中记录一个块的起点，校验和在生成文件时补上
+    private void writeWordChunk() throws IOException {
+        sections[SECTION_WORD_CHUNK].writeInt(wordCount);
+        sections[SECTION_WORD_CHUNK].writeInt(sections[SECTION_POSTING].size());
+        sections[SECTION_WORD_CHUNK].writeInt(sections[SECTION_WORD_ARENA].size());
+        sections[SECTION_WORD_CHUNK].writeInt(0);
+    }
+
+    //在对话块目录中记录一个块的起点，校验和在生成文件时补上
+    private void writeChatChunk() throws IOException {
+        sections[SECTION_CHAT_CHUNK].writeInt(chatCount);
+        sections[SECTION_CHAT_CHUNK].writeInt(pairCount);
+        sections[SECTION_CHAT_CHUNK].writeInt(sentenceCount);
+        sections[SECTION_CHAT_CHUNK].writeInt(questionCount);
+        sections[SECTION_CHAT_CHUNK].writeInt(questionSentenceCount);
+        sections[SECTION_CHAT_CHUNK].writeInt(vectorCount);
+        sections[SECTION_CHAT_CHUNK].writeInt(textSize);
+        sections[SECTION_CHAT_CHUNK].writeInt(0);
+    }
+
+    //结束词块目录
+    private void finishWords() throws IOException {
+        if (!wordsFinished) {
+            writeWordChunk();
+            wordsFinished = true;
+            addingWords = false;
+        }
+    }
+
+    //结束对话块目录
+    private void finishChats() throws IOException {
+        if (!chatsFinished) {
+            writeChatChunk();
+            chatsFinished = true;
+            addingChats = false;
+        }
+    }
+
+    /**
+     * 添加一个词及其倒排表。词必须按升序连续添加，词的编号即添加的顺序。词和对话谁先添加均可，但不能交替添加。
+     *
+     * @param word 词
+     * @param chatPairs 包含该词的所有问答对的编号，无需有序
+     */
+    void addWord(String word, int[] chatPairs) throws IOException {
+        if (wordsFinished) {
+            throw new IllegalStateException("词必须连续添加。");
+        }
+        if (addingChats) {
+            finishChats();
+        }
+        addingWords = true;
+        if (wordCount % CHUNK_SIZE == 0) {
+            writeWordChunk();
+        }
+        writeWordEntry(word);
+        sections[SECTION_WORD_POSTING].writeInt(sections[SECTION_POSTING].size());
+        sections[SECTION_WORD_POSTING].writeInt(postingCount);
+        postingCount += writePostings(sections[SECTION_POSTING], chatPairs);
+        ++wordCount;
+    }
+
+    //将倒排表排序去重后按块写入倒排段，返回写入的项数
+    private static int writePostings(DataOutputStream section, int[] chatPairs) throws IOException {
+        int[] sortedPairs = chatPairs.clone();
+        Arrays.sort(sortedPairs);
+        int count = 0;
+        for (int i = 0; i < sortedPairs.length; ++i) {
+            if (count == 0 || sortedPairs[i] != sortedPairs[count - 1]) {
+                sortedPairs[count++] = sortedPairs[i];
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        writeVarint(section, sortedPairs[0]);
+        for (int begin = 1; begin < count; ) {
+            int end = Math.min((begin / POSTING_BLOCK_SIZE + 1) * POSTING_BLOCK_SIZE, count);
+            //块内最大的差值决定每个差值的字节数
+            int maxDelta = 0;
+            for (int i = begin; i < end; ++i) {
+                maxDelta |= sortedPairs[i] - sortedPairs[i - 1];
+            }
+            int width = maxDelta < 0x100 ? 1 : maxDelta < 0x10000 ? 2 : maxDelta < 0x1000000 ? 3 : 4;
+            section.write(width);
+            for (int i = begin; i < end; ++i) {
+                int delta = sortedPairs[i] - sortedPairs[i - 1];
+                for (int j = 0; j < width; ++j) {
+                    section.write(delta >>> (j * 8));
+                }
+            }
+            begin = end;
+        }
+        return count;
+    }
+
+    /**
+     * 声明本样本库建立二元词组索引，即使没有任何二元词组。没有建立索引的样本库(如由旧格式转换而来的样本库)检索时只使用单个词的倒排表。
+     * 添加二元词组时自动建立索引。
+     */
+    void setBigramIndexed() {
+        bigramIndexed = true;
+    }
+
+    /**
+     * 添加一个二元词组及其倒排表。二元词组必须按(前一个词, 后一个词)的编号升序添加，与词和对话的添加顺序无关。
+     *
+     * @param firstWord 前一个词的编号
+     * @param secondWord 后一个词的编号
+     * @param chatPairs 问句中含有该二元词组的所有问答对的编号，无需有序
+     */
+    void addBigram(int firstWord, int secondWord, int[] chatPairs) throws IOException {
+        long bigram = ((long) firstWord << 32) | secondWord;
+        if (firstWord < 0 || secondWord < 0 || bigram <= lastBigram) {
+            throw new IllegalStateException("二元词组必须按升序添加。");
+        }
+        lastBigram = bigram;
+        bigramIndexed = true;
+        sections[SECTION_BIGRAM].writeInt(firstWord);
+        sections[SECTION_BIGRAM].writeInt(secondWord);
+        sections[SECTION_BIGRAM].writeInt(sections[SECTION_BIGRAM_POSTING].size());
+        sections[SECTION_BIGRAM].writeInt(bigramPostingCount);
+        bigramPostingCount += writePostings(sections[SECTION_BIGRAM_POSTING], chatPairs);
+        ++bigramCount;
+    }
+
+    //将词以前缀压缩的形式写入词表，并记录其散列值
+    private void writeWordEntry(String word) throws IOException {
+        int prefix = 0;
+        if (wordCount % WORD_BLOCK_SIZE == 0) {
+            sections[SECTION_WORD_BLOCK].writeInt(sections[SECTION_WORD_ARENA].size());
+        }
+        else {
+            int maxPrefix = Math.min(word.length(), lastWord.length());
+            while (prefix < maxPrefix && word.charAt(prefix) == lastWord.charAt(prefix)) {
+                ++prefix;
+            }
+        }
+        writeVarint(sections[SECTION_WORD_ARENA], prefix);
+        writeVarint(sections[SECTION_WORD_ARENA], word.length() - prefix);
+        sections[SECTION_WORD_ARENA].writeChars(word.substring(prefix));
+        lastWord = word;
+        if (wordCount == wordHashes.length) {
+            wordHashes = Arrays.copyOf(wordHashes, wordCount * 2);
+        }
+        wordHashes[wordCount] = word.hashCode();
+    }
+
+    /**
+     * 开始一个新的对话，此后添加的问答对都属于该对话。
+     */
+    void beginChat() throws IOException {
+        if (chatsFinished) {
+            throw new IllegalStateException("对话必须连续添加。");
+        }
+        if (addingWords) {
+            finishWords();
+        }
+        addingChats = true;
+        if (chatCount % CHUNK_SIZE == 0) {
+            writeChatChunk();
+        }
+        sections[SECTION_CHAT_PAIR].writeInt(pairCount);
+        if (chatCount == chatKeys.length) {
+            chatKeys = Arrays.copyOf(chatKeys, chatCount * 2);
+        }
+        chatKeys[chatCount] = CHAT_KEY_SEED;
+        ++chatCount;
+    }
+
+    /**
+     * 向当前对话添加一个问答对。
+     *
+     * @param sentences 问句的各个子句
+     * @param words 各个子句的向量中的词编号，须按升序排列
+     * @param frequencies 各个子句的向量中对应词的频度
+     * @param module2s 各个子句的向量的模平方
+     * @param answer 答句
+     */
+    void addChatPair(String[] sentences, int[][] words, int[][] frequencies, int[] module2s, String answer) throws IOException {
+        sections[SECTION_PAIR_SENTENCE].writeInt(sentenceCount);
+        sections[SECTION_PAIR_CHAT].writeInt(chatCount - 1);
+        sections[SECTION_PAIR_QUESTION].writeInt(internQuestion(words, frequencies, module2s));
+        chatKeys[chatCount - 1] = updateChatKey(chatKeys[chatCount - 1], sentences, answer);
+        writeAnswer(answer);
+        writeAnswerTemplate(answer);
+        for (String sentence : sentences) {
+            writeText(sections[SECTION_SENTENCE_TEXT], sentence);
+            sections[SECTION_SENTENCE_TEXT].writeInt(sentence.length());
+        }
+        sentenceCount += sentences.length;
+        ++pairCount;
+    }
+
+    //返回问句的编号。问句池中没有的问句写入各子句的向量后加入问句池
+    private int internQuestion(int[][] words, int[][] frequencies, int[] module2s) throws IOException {
+        QuestionKey key = new QuestionKey(words, frequencies, module2s);
+        Integer question = questionPool.get(key);
+        if (question != null) {
+            return question;
+        }
+        sections[SECTION_QUESTION_SENTENCE].writeInt(questionSentenceCount);
+        for (int i = 0; i < words.length; ++i) {
+            sections[SECTION_SENTENCE_VECTOR].writeInt(vectorCount);
+            sections[SECTION_SENTENCE_MODULE].writeInt(module2s[i]);
+            for (int j = 0; j < words[i].length; ++j) {
+                sections[SECTION_VECTOR].writeInt(words[i][j]);
+                sections[SECTION_VECTOR].writeInt(frequencies[i][j]);
+            }
+            vectorCount += words[i].length;
+        }
+        questionSentenceCount += words.length;
+        writeQuestionRow(words, frequencies);
+        if (questionPool.size() < poolCapacity) {
+            questionPool.put(key, questionCount);
+        }
+        return questionCount++;
+    }
+
+    //将各子句的向量合并为问句矩阵的一行
+    private void writeQuestionRow(int[][] words, int[][] frequencies) throws IOException {
+        //把(词, 频度)打包成long排序后合并相同的词
+        int count = 0;
+        for (int[] sentenceWords : words) {
+            count += sentenceWords.length;
+        }
+        long[] row = new long[count];
+        count = 0;
+        for (int i = 0; i < words.length; ++i) {
+            for (int j = 0; j < words[i].length; ++j) {
+                row[count++] = ((long) words[i][j] << 32) | (frequencies[i][j] & 0xFFFFFFFFL);
+            }
+        }
+        Arrays.sort(row);
+        ByteArrayOutputStream termBuffer = new ByteArrayOutputStream();
+        DataOutputStream termOut = new DataOutputStream(termBuffer);
+        int termCount = 0;
+        int module2 = 0;
+        int i = 0;
+        while (i < count) {
+            int word = (int) (row[i] >>> 32);
+            int frequency = 0;
+            while (i < count && (int) (row[i] >>> 32) == word) {
+                frequency += (int) row[i];
+                ++i;
+            }
+            termOut.writeInt(word);
+            termOut.writeInt(frequency);
+            ++termCount;
+            module2 += frequency * frequency;
+        }
+        sections[SECTION_QUESTION_ROW].writeInt(questionTermCount);
+        sections[SECTION_QUESTION_ROW].writeInt(module2);
+        termBuffer.writeTo(sections[SECTION_QUESTION_TERM]);
+        questionTermCount += termCount;
+    }
+
+    /**
+     * 添加一个墓碑。墓碑表示删除更早的样本库中内容键为{@code chatKey}的所有对话，对本样本库中的对话没有影响。
+     *
+     * @param chatKey 要删除的对话的内容键，见{@link #updateChatKey}
+     */
+    void addTombstone(long chatKey) {
+        if (tombstoneCount == tombstones.length) {
+            tombstones = Arrays.copyOf(tombstones, tombstoneCount * 2);
+        }
+        tombstones[tombstoneCount++] = chatKey;
+    }
+
+    /**
+     * 将一个问答对计入对话的内容键。一个对话的内容键从{@link #CHAT_KEY_SEED}开始，依次计入其中的每个问答对，
+     * 因此内容相同的对话具有相同的内容键，编译时与运行时、新旧样本库之间都可以通过内容键识别同一个对话。
+     *
+     * @param chatKey 计入之前的内容键
+     * @param sentences 问句的各个子句
+     * @param answer 答句
+     * @return 计入之后的内容键
+     */
+    static long updateChatKey(long chatKey, String[] sentences, String answer) {
+        for (String sentence : sentences) {
+            chatKey = updateChatKey(chatKey, sentence);
+        }
+        //以超出字符范围的值分隔问句和答句
+        chatKey = (chatKey ^ 0x10001) * 0x100000001B3L;
+        chatKey = updateChatKey(chatKey, answer);
+        return (chatKey ^ 0x10002) * 0x100000001B3L;
+    }
+
+    private static long updateChatKey(long chatKey, String text) {
+        for (int i = 0; i < text.length(); ++i) {
+            chatKey = (chatKey ^ text.charAt(i)) * 0x100000001B3L;
+        }
+        return (chatKey ^ 0x10000) * 0x100000001B3L;
+    }
+
+    //写入一个非负的变长整数
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    //写入各个“编号+1”表和块目录的结尾项
+    private void finish() throws IOException {
+        finishWords();
+        finishChats();
+        sections[SECTION_WORD_POSTING].writeInt(sections[SECTION_POSTING].size());
+        sections[SECTION_WORD_POSTING].writeInt(postingCount);
+        sections[SECTION_WORD_BLOCK].writeInt(sections[SECTION_WORD_ARENA].size());
+        sections[SECTION_CHAT_PAIR].writeInt(pairCount);
+        sections[SECTION_PAIR_SENTENCE].writeInt(sentenceCount);
+        sections[SECTION_QUESTION_SENTENCE].writeInt(questionSentenceCount);
+        sections[SECTION_SENTENCE_VECTOR].writeInt(vectorCount);
+        sections[SECTION_QUESTION_ROW].writeInt(questionTermCount);
+        sections[SECTION_QUESTION_ROW].writeInt(0);
+        if (bigramIndexed) {
+            sections[SECTION_BIGRAM].writeInt(-1);
+            sections[SECTION_BIGRAM].writeInt(-1);
+            sections[SECTION_BIGRAM].writeInt(sections[SECTION_BIGRAM_POSTING].size());
+            sections[SECTION_BIGRAM].writeInt(bigramPostingCount);
+        }
+        writeWordHash();
+        writeChatKeys();
+        writeAnswerBlocks();
+    }
+
+    //写入内容键、按内容键排序的对话编号和墓碑
+    private void writeChatKeys() throws IOException {
+        for (int i = 0; i < chatCount; ++i) {
+            sections[SECTION_CHAT_KEY].writeLong(chatKeys[i]);
+        }
+        Integer[] chats = new Integer[chatCount];
+        for (int i = 0; i < chatCount; ++i) {
+            chats[i] = i;
+        }
+        Arrays.sort(chats, (a, b) -> Long.compare(chatKeys[a], chatKeys[b]));
+        for (Integer chat : chats) {
+            sections[SECTION_KEY_ORDER].writeInt(chat);
+        }
+        long[] sortedTombstones = Arrays.copyOf(tombstones, tombstoneCount);
+        Arrays.sort(sortedTombstones);
+        for (int i = 0; i < sortedTombstones.length; ++i) {
+            if (i == 0 || sortedTombstones[i] != sortedTombstones[i - 1]) {
+                sections[SECTION_TOMBSTONE].writeLong(sortedTombstones[i]);
+            }
+        }
+    }
+
+    //建立词的散列表，装载因子不超过3/4
+    private void writeWordHash() throws IOException {
+        int capacity = Integer.highestOneBit(Math.max(wordCount * 4 / 3, 1)) << 1;
+        int[] table = new int[capacity * 2];
+        for (int i = 0; i < capacity; ++i) {
+            table[i * 2 + 1] = -1;
+        }
+        for (int i = 0; i < wordCount; ++i) {
+            int slot = wordHashSlot(wordHashes[i], capacity);
+            while (table[slot * 2 + 1] != -1) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            table[slot * 2] = wordHashes[i];
+            table[slot * 2 + 1] = i;
+        }
+        for (int value : table) {
+            sections[SECTION_WORD_HASH].writeInt(value);
+        }
+    }
+
+    //写入文件头和段目录
+    private void writeHeader(DataOutputStream dataOut) throws IOException {
+        dataOut.writeInt(MAGIC);
+        dataOut.writeInt(VERSION);
+        dataOut.writeInt(wordCount);
+        dataOut.writeInt(chatCount);
+        dataOut.writeInt(pairCount);
+        dataOut.writeInt(sentenceCount);
+        dataOut.writeInt(rawTextSize);
+        dataOut.writeInt(SECTION_COUNT);
+        int offset = DIRECTORY_OFFSET + SECTION_COUNT * 8;
+        for (DataOutputStream section : sections) {
+            dataOut.writeInt(offset);
+            dataOut.writeInt(section.size());
+            offset += section.size();
+        }
+    }
+
+    //补上各块的校验和
+    private static void writeChecksums(ByteBuffer image) {
+        int[] sectionOffsets = readSectionOffsets(image);
+        int chunkCount = getWordChunkCount(image);
+        for (int i = 0; i < chunkCount; ++i) {
+            image.putInt(sectionOffsets[SECTION_WORD_CHUNK] + (i * WORD_CHUNK_INTS + 3) * 4, wordChunkChecksum(image, sectionOffsets, i));
+        }
+        chunkCount = getChatChunkCount(image);
+        for (int i = 0; i < chunkCount; ++i) {
+            image.putInt(sectionOffsets[SECTION_CHAT_CHUNK] + (i * CHAT_CHUNK_INTS + 7) * 4, chatChunkChecksum(image, sectionOffsets, i));
+        }
+    }
+
+    //生成完整的文件内容，并补上各块的校验和
+    private ByteBuffer buildImage() throws IOException {
+        if (sectionBuffers == null) {
+            throw new IllegalStateException("外存模式的生成器只能写入输出流。");
+        }
+        finish();
+        int size = DIRECTORY_OFFSET + SECTION_COUNT * 8;
+        for (ByteArrayOutputStream sectionBuffer : sectionBuffers) {
+            size += sectionBuffer.size();
+        }
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(size);
+        DataOutputStream dataOut = new DataOutputStream(bytesOut);
+        writeHeader(dataOut);
+        for (ByteArrayOutputStream sectionBuffer : sectionBuffers) {
+            sectionBuffer.writeTo(dataOut);
+        }
+        dataOut.flush();
+
+        ByteBuffer image = ByteBuffer.wrap(bytesOut.toByteArray());
+        image.order(ByteOrder.BIG_ENDIAN);
+        writeChecksums(image);
+        return image;
+    }
+
+    //外存模式：将各段的临时文件拼接为完整的文件，在其内存映射上补写校验和后写入输出流
+    private void writeSpilledTo(OutputStream out) throws IOException {
+        File imageFile = null;
+        try {
+            finish();
+            imageFile = createTemporaryFile(temporaryDirectory);
+            try (DataOutputStream imageOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(imageFile)))) {
+                writeHeader(imageOut);
+                for (int i = 0; i < SECTION_COUNT; ++i) {
+                    sections[i].close();
+                    Files.copy(sectionFiles[i].toPath(), imageOut);
+                }
+            }
+            try (FileChannel channel = FileChannel.open(imageFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("对话样本库文件过大。");
+                }
+                MappedByteBuffer image = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                image.order(ByteOrder.BIG_ENDIAN);
+                writeChecksums(image);
+                byte[] buffer = new byte[65536];
+                while (image.hasRemaining()) {
+                    int length = Math.min(buffer.length, image.remaining());
+                    image.get(buffer, 0, length);
+                    out.write(buffer, 0, length);
+                }
+            }
+            out.flush();
+        }
+        finally {
+            deleteSectionFiles();
+            if (imageFile != null) {
+                imageFile.delete();
+            }
+        }
+    }
+
+    /**
+     * 将生成的文件写入输出流。调用此函数后不能再添加内容。
+     *
+     * @param out 输出流
+     *
+     * @throws IOException 当向输出流{@code out}写入数据发生IO异常时
+     */
+    void writeTo(OutputStream out) throws IOException {
+        if (sectionFiles != null) {
+            writeSpilledTo(out);
+            return;
+        }
+        out.write(buildImage().array());
+        out.flush();
+    }
+
+    /**
+     * 将生成的文件直接写入一块堆外内存，以免样本库的数据增加垃圾回收的负担。调用此函数后不能再添加内容。外存模式的生成器不支持本函数。
+     *
+     * @return 与{@link #writeTo}写出的文件内容相同的缓冲区
+     */
+    ByteBuffer toByteBuffer() throws IOException {
+        ByteBuffer heapImage = buildImage();
+        ByteBuffer image = ByteBuffer.allocateDirect(heapImage.capacity());
+        image.order(ByteOrder.BIG_ENDIAN);
+        image.put(heapImage);
+        image.clear();
+        return image;
+    }
+
+    /**
+     * 获得已写入的文本引用总数，即去重前的文本条数。
+     */
+    int getTextReferenceCount() {
+        return textReferenceCount;
+    }
+
+    /**
+     * 获得文本池中的文本条数。文本池没有满时即不同文本的条数。
+     */
+    int getDistinctTextCount() {
+        return distinctTextCount;
+    }
+
+    /**
+     * 获得去重前的文本总字节数。
+     */
+    int getRawTextSize() {
+        return rawTextSize;
+    }
+
+    /**
+     * 获得文本池的实际字节数。
+     */
+    int getTextSize() {
+        return textSize;
+    }
+
+    /**
+     * 获得答句流的字节数，即不同答句的总字节数。不压缩答句时为0。
+     */
+    int getAnswerStreamSize() {
+        return answerStreamSize;
+    }
+
+    /**
+     * 获得答句压缩后的字节数(含预置字典)，生成文件后才有效。不压缩答句时为0。
+     */
+    int getCompressedAnswerSize() {
+        return sections[SECTION_ANSWER_DICTIONARY].size() + sections[SECTION_ANSWER_DATA].size();
+    }
+
+    /**
+     * 获得已添加的二元词组数。
+     */
+    int getBigramCount() {
+        return bigramCount;
+    }
+
+    /**
+     * 获得二元词组的倒排项总数。
+     */
+    int getBigramPostingCount() {
+        return bigramPostingCount;
+    }
+
+    /**
+     * 获得答句含有占位符的问答对数。
+     */
+    int getTemplateCount() {
+        return templateCount;
+    }
+
+    /**
+     * 获得已添加的问答对数。
+     */
+    int getChatPairCount() {
+        return pairCount;
+    }
+
+    /**
+     * 获得问句池中不同问句的个数。
+     */
+    int getQuestionCount() {
+        return questionCount;
+    }
+
+    //以下为生成和读取双方共用的块目录算法
+
+    /**
+     * 由词的散列值算出其在散列表中的初始槽位。
+     *
+     * @param hash 词的{@link String#hashCode}
+     * @param capacity 散列表的容量，为2的幂
+     */
+    static int wordHashSlot(int hash, int capacity) {
+        return (hash * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(capacity)) & (capacity - 1);
+    }
+
+    /**
+     * 从文件头的段目录中读出各段的起始位置。
+     */
+    static int[] readSectionOffsets(ByteBuffer image) {
+        int[] sectionOffsets = new int[SECTION_COUNT];
+        for (int i = 0; i < SECTION_COUNT; ++i) {
+            sectionOffsets[i] = image.getInt(DIRECTORY_OFFSET + i * 8);
+        }
+        return sectionOffsets;
+    }
+
+    /**
+     * 获得词块的个数(不含结尾项)。
+     */
+    static int getWordChunkCount(ByteBuffer image) {
+        return image.getInt(DIRECTORY_OFFSET + SECTION_WORD_CHUNK * 8 + 4) / (WORD_CHUNK_INTS * 4) - 1;
+    }
+
+    /**
+     * 获得对话块的个数(不含结尾项)。
+     */
+    static int getChatChunkCount(ByteBuffer image) {
+        return image.getInt(DIRECTORY_OFFSET + SECTION_CHAT_CHUNK * 8 + 4) / (CHAT_CHUNK_INTS * 4) - 1;
+    }
+
+    //读取块目录中第chunk项的第field个整数
+    private static int getChunkInt(ByteBuffer image, int[] sectionOffsets, int section, int recordInts, int chunk, int field) {
+        return image.getInt(sectionOffsets[section] + (chunk * recordInts + field) * 4);
+    }
+
+    //将image中[begin, end)范围的字节计入校验和
+    private static void update(CRC32 crc32, ByteBuffer image, int begin, int end) {
+        ByteBuffer range = image.duplicate();
+        range.limit(end);
+        range.position(begin);
+        crc32.update(range);
+    }
+
+    //将某个表的[beginRow, endRow)行计入校验和
+    private static void updateRows(CRC32 crc32, ByteBuffer image, int[] sectionOffsets, int section, int recordBytes, int beginRow, int endRow) {
+        update(crc32, image, sectionOffsets[section] + beginRow * recordBytes, sectionOffsets[section] + endRow * recordBytes);
+    }
+
+    /**
+     * 计算第chunk个词块的校验和。
+     */
+    static int wordChunkChecksum(ByteBuffer image, int[] sectionOffsets, int chunk) {
+        int wordBegin = getChunkInt(image, sectionOffsets, SECTION_WORD_CHUNK, WORD_CHUNK_INTS, chunk, 0);
+        int wordEnd = getChunkInt(image, sectionOffsets, SECTION_WORD_CHUNK, WORD_CHUNK_INTS, chunk + 1, 0);
+        //最后一块同时包含“编号+1”表的结尾项、整个散列表和二元词组的两段
+        boolean last = chunk + 1 == getWordChunkCount(image);
+        int wordTableEnd = wordEnd + (last ? 1 : 0);
+        CRC32 crc32 = new CRC32();
+        updateRows(crc32, image, sectionOffsets, SECTION_WORD_BLOCK, 4,
+                wordBegin / WORD_BLOCK_SIZE, (wordEnd + WORD_BLOCK_SIZE - 1) / WORD_BLOCK_SIZE + (last ? 1 : 0));
+        updateRows(crc32, image, sectionOffsets, SECTION_WORD_POSTING, 8, wordBegin, wordTableEnd);
+        updateRows(crc32, image, sectionOffsets, SECTION_POSTING, 1,
+                getChunkInt(image, sectionOffsets, SECTION_WORD_CHUNK, WORD_CHUNK_INTS, chunk, 1),
+                getChunkInt(image, sectionOffsets, SECTION_WORD_CHUNK, WORD_CHUNK_INTS, chunk + 1, 1));
+        updateRows(crc32, image, sectionOffsets, SECTION_WORD_ARENA, 1,
+                getChunkInt(image, sectionOffsets, SECTION_WORD_CHUNK, WORD_CHUNK_INTS, chunk, 2),
+                getChunkInt(image, sectionOffsets, SECTION_WORD_CHUNK, WORD_CHUNK_INTS, chunk + 1, 2));
+        if (last) {
+            for (int section : new int[] {SECTION_WORD_HASH, SECTION_BIGRAM, SECTION_BIGRAM_POSTING}) {
+                updateRows(crc32, image, sectionOffsets, section, 1, 0, image.getInt(DIRECTORY_OFFSET + section * 8 + 4));
+            }
+        }
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * 计算第chunk个对话块的校验和。
+     */
+    static int chatChunkChecksum(ByteBuffer image, int[] sectionOffsets, int chunk) {
+        int[] begins = new int[7];
+        int[] ends = new int[7];
+        for (int i = 0; i < 7; ++i) {
+            begins[i] = getChunkInt(image, sectionOffsets, SECTION_CHAT_CHUNK, CHAT_CHUNK_INTS, chunk, i);
+            ends[i] = getChunkInt(image, sectionOffsets, SECTION_CHAT_CHUNK, CHAT_CHUNK_INTS, chunk + 1, i);
+        }
+        //最后一块同时包含“编号+1”表的结尾项
+        int tail = chunk + 1 == getChatChunkCount(image) ? 1 : 0;
+        CRC32 crc32 = new CRC32();
+        updateRows(crc32, image, sectionOffsets, SECTION_CHAT_PAIR, 4, begins[0], ends[0] + tail);
+        updateRows(crc32, image, sectionOffsets, SECTION_CHAT_KEY, 8, begins[0], ends[0]);
+        updateRows(crc32, image, sectionOffsets, SECTION_PAIR_SENTENCE, 4, begins[1], ends[1] + tail);
+        updateRows(crc32, image, sectionOffsets, SECTION_PAIR_ANSWER, 8, begins[1], ends[1]);
+        updateRows(crc32, image, sectionOffsets, SECTION_PAIR_CHAT, 4, begins[1], ends[1]);
+        updateRows(crc32, image, sectionOffsets, SECTION_PAIR_QUESTION, 4, begins[1], ends[1]);
+        updateRows(crc32, image, sectionOffsets, SECTION_SENTENCE_TEXT, SENTENCE_TEXT_INTS * 4, begins[2], ends[2]);
+        updateRows(crc32, image, sectionOffsets, SECTION_QUESTION_SENTENCE, 4, begins[3], ends[3] + tail);
+        updateRows(crc32, image, sectionOffsets, SECTION_QUESTION_ROW, 8, begins[3], ends[3] + tail);
+        //问句矩阵元素的范围由行表给出，行表本身已计入校验和
+        updateRows(crc32, image, sectionOffsets, SECTION_QUESTION_TERM, 8,
+                image.getInt(sectionOffsets[SECTION_QUESTION_ROW] + begins[3] * 8),
+                image.getInt(sectionOffsets[SECTION_QUESTION_ROW] + ends[3] * 8));
+        updateRows(crc32, image, sectionOffsets, SECTION_SENTENCE_VECTOR, 4, begins[4], ends[4] + tail);
+        updateRows(crc32, image, sectionOffsets, SECTION_SENTENCE_MODULE, 4, begins[4], ends[4]);
+        updateRows(crc32, image, sectionOffsets, SECTION_VECTOR, 8, begins[5], ends[5]);
+        updateRows(crc32, image, sectionOffsets, SECTION_TEXT, 1, begins[6], ends[6]);
+        if (tail == 1) {
+            updateRows(crc32, image, sectionOffsets, SECTION_KEY_ORDER, 1,
+                    0, image.getInt(DIRECTORY_OFFSET + SECTION_KEY_ORDER * 8 + 4));
+            updateRows(crc32, image, sectionOffsets, SECTION_TOMBSTONE, 1,
+                    0, image.getInt(DIRECTORY_OFFSET + SECTION_TOMBSTONE * 8 + 4));
+            for (int section = SECTION_ANSWER_DICTIONARY; section <= SECTION_TEMPLATE_PART; ++section) {
+                updateRows(crc32, image, sectionOffsets, section, 1, 0, image.getInt(DIRECTORY_OFFSET + section * 8 + 4));
+            }
+        }
+        return (int) crc32.getValue();
+    }
+}
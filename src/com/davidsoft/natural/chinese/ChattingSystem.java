@@ -5,7 +5,9 @@ import com.davidsoft.natural.SimpleWordReader;
 import com.davidsoft.natural.WordReader;
 
 import java.io.Reader;
+import java.lang.reflect.Constructor;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 对话系统。
@@ -20,8 +22,16 @@ public class ChattingSystem {
     //double[]：只有一个元素(为了可以改变其值)，代表该词的频度。初始值为词频，随后每进行一轮对话就降低其值。
     private WordFrequencyVectorDouble wordsContext;
 
-    //对话上下文。保存上一次在库中检索成功的问句所在的对话编号，下一次检索时，属于同一个对话中的答句将具有更高的权重。
-    private PairInt chatPairContext;
+    //对话上下文。保存上一次在库中检索成功的问句所在的对话编号和问答对编号，下一次检索时，属于同一个对话中的答句将具有更高的权重。
+    //chatContext为-1表示没有上下文
+    private int chatContext;
+    private int chatPairContext;
+
+    //固定使用的对话样本库，为null时使用默认的样本库
+    private final SearchableChatBank fixedChatBank;
+
+    //上下文中的编号所属的对话样本库的代数。对话样本库被重新加载后，需要先将上下文换算到新的样本库上
+    private int contextGeneration;
 
     //更新词汇上下文
     private void updateWordsContext() {
@@ -36,51 +46,96 @@ public class ChattingSystem {
         }
     }
 
+    //将上下文换算到给定的对话样本库上。词汇上下文中已不存在的词被丢弃，问答对编号无法换算，因此对话上下文被清空
+    private void remapContext(SearchableChatBank chatBank) {
+        if (chatBank.getGeneration() == contextGeneration) {
+            return;
+        }
+        WordFrequencyVectorDouble remapped = new WordFrequencyVectorDouble();
+        for (Map.Entry<Integer, double[]> element : wordsContext.getVector().entrySet()) {
+            int word = chatBank.remapWord(element.getKey(), contextGeneration);
+            if (word >= 0) {
+                remapped.merge(word, element.getValue()[0]);
+            }
+        }
+        wordsContext = remapped;
+        chatContext = -1;
+        contextGeneration = chatBank.getGeneration();
+    }
+
+    //检索不到答句时的回应
+    private static final String MISMATCH_ANSWER = "{.Random:chat_mismatch}";
+    private static final AnswerTemplate MISMATCH_TEMPLATE = AnswerTemplate.compile(MISMATCH_ANSWER);
+
+    //命令类名→命令类的构造函数。每个类只需通过反射查找一次
+    private static final Map<String, Constructor<? extends ChatCommand>> commandConstructors = new ConcurrentHashMap<>();
+
+    //获得命令类的构造函数
+    private static Constructor<? extends ChatCommand> getCommandConstructor(String className) throws ReflectiveOperationException {
+        Constructor<? extends ChatCommand> constructor = commandConstructors.get(className);
+        if (constructor == null) {
+            constructor = Class.forName("com.davidsoft.natural.chinese.commands" + className).asSubclass(ChatCommand.class).getConstructor();
+            commandConstructors.put(className, constructor);
+        }
+        return constructor;
+    }
+
     //答句转义。答句中可能会包含需要使用程序算法即时生成的内容(如时间日期信息等)，此函数负责调用这些生成程序，拼接成完整的答句。
-    private String escapeAnswer(String answer, Object extras) {
+    //答句已在编译时解析为模板，这里只需依次拼接各部分。生成的内容中如果又含有占位符，再对其转义
+    private String renderAnswer(AnswerTemplate template, Object extras) {
         StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < answer.length(); ++i) {
-            if (answer.charAt(i) == '{') {
-                int j = answer.indexOf(':', ++i);
-                String className = answer.substring(i, j);
-                i = answer.indexOf('}', ++j);
-                String methodName = answer.substring(j, i);
-                if (className.equals(".Random")) {
+        for (int i = 0; i < template.getPartCount(); ++i) {
+            String generated;
+            switch (template.getPartType(i)) {
+                case AnswerTemplate.PART_TEXT:
+                    builder.append(template.getText(i));
+                    continue;
+                case AnswerTemplate.PART_RANDOM:
                     try {
-                        builder.append(RandomResponseBank.getInstance().getResponse(methodName));
+                        generated = RandomResponseBank.getInstance().getResponse(template.getMemberName(i));
                     }
                     catch (Exception e) {
                         e.printStackTrace();
-                        builder.append("{此部分内容未能成功生成：").append(className).append(":").append(methodName).append("}");
+                        builder.append("{此部分内容未能成功生成：").append(template.getClassName(i)).append(":").append(template.getMemberName(i)).append("}");
+                        continue;
                     }
-                }
-                else if (className.startsWith(".")) {
+                    break;
+                default:
                     try {
-                        ChatCommand chatCommand = (ChatCommand) Class.forName("com.davidsoft.natural.chinese.commands" + className).getConstructor().newInstance();
-                        builder.append(chatCommand.execute(methodName, extras));
+                        generated = getCommandConstructor(template.getClassName(i)).newInstance().execute(template.getMemberName(i), extras);
                     }
                     catch (Exception e) {
                         e.printStackTrace();
-                        builder.append("{此部分内容未能成功生成：").append(className).append(":").append(methodName).append("}");
+                        builder.append("{此部分内容未能成功生成：").append(template.getClassName(i)).append(":").append(template.getMemberName(i)).append("}");
+                        continue;
                     }
-                }
-                else {
-                    builder.append("{").append(className).append(":").append(methodName).append("}");
-                }
-            }
-            else {
-                builder.append(answer.charAt(i));
+                    break;
             }
+            AnswerTemplate nested = generated == null ? null : AnswerTemplate.compile(generated);
+            builder.append(nested == null ? generated : renderAnswer(nested, extras));
         }
         return builder.toString();
     }
 
     /**
-     * 构造一个对话系统。
+     * 构造一个使用默认对话样本库的对话系统。有分片样本库(见{@link ShardedChatBank#getInstance})时使用分片样本库，否则使用{@link SegmentedChatBank#getInstance}。
      */
     public ChattingSystem() {
+        this(null);
+    }
+
+    /**
+     * 构造一个始终使用给定对话样本库的对话系统，例如由多个样本库组成的{@link FederatedChatBank}。
+     *
+     * @param chatBank 对话样本库，为{@code null}时使用默认的样本库
+     */
+    public ChattingSystem(SearchableChatBank chatBank) {
+        fixedChatBank = chatBank;
         wordsContext = new WordFrequencyVectorDouble();
-        chatPairContext = new PairInt(-1 , 0);
+        chatContext = -1;
+        chatPairContext = -1;
+        //尚未检索过，上下文为空，第一次检索时再确定所属的代数
+        contextGeneration = -1;
     }
 
     /**
@@ -88,7 +143,7 @@ public class ChattingSystem {
      */
     public void clearContext() {
         wordsContext.clear();
-        chatPairContext.a = -1;
+        chatContext = -1;
     }
 
     /**
@@ -103,11 +158,15 @@ public class ChattingSystem {
         SentenceSegmenter sentenceSegmenter = new SentenceSegmenter(new FormattedReader(question));
         //准备分词器
         WordSegmenter wordSegmenter = new WordSegmenter(WordBank.getChineseInstance());
-        //准备扯淡库
-        ChatBank chatBank = ChatBank.getInstance();
-
-        //答句候选集
-        TreeSet<PairInt> alterSet = new TreeSet<>();
+        //准备扯淡库。没有指定样本库时，有分片样本库就使用分片样本库，否则使用分段样本库。整个检索过程都使用同一个实例，即使期间样本库被重新加载、追加或合并
+        SearchableChatBank chatBank = fixedChatBank;
+        if (chatBank == null) {
+            chatBank = ShardedChatBank.getInstance();
+        }
+        if (chatBank == null) {
+            chatBank = SegmentedChatBank.getInstance();
+        }
+        remapContext(chatBank);
 
         //输入的信息
         String originalSentence;
@@ -135,6 +194,9 @@ public class ChattingSystem {
             inputVector = new WordFrequencyVectorDouble();
         }
 
+        //本次输入中同一子句内相邻的两个已知词构成的二元词组，前后两个词编号合为一个长整数，检索前排序去重
+        long[] packedBigrams = new long[16];
+        int packedBigramCount = 0;
         while ((originalSentence = sentenceSegmenter.nextSentence()) != null) {
             if (showStep) {
                 System.out.println();
@@ -150,6 +212,7 @@ public class ChattingSystem {
             //分词、数字转换和同义词转换
             WordReader wordReader = new SynonymReplaceReader(new NumberConvertWordReader(new SimpleWordReader(wordSegmenter.segment(originalSentence))), SynonymBank.getInstance());
             //获得子句向量
+            int previousPosition = -1;
             while (wordReader.hasNext()) {
                 String word = wordReader.nextWord();
                 if (showStep) {
@@ -158,8 +221,17 @@ public class ChattingSystem {
                 }
                 int wordPosition = chatBank.getWordNumber(word);
                 if (wordPosition < 0) {
+                    //未知词把子句断开，与编译时一样只有真正相邻的词才构成二元词组
+                    previousPosition = -1;
                     continue;
                 }
+                if (previousPosition >= 0) {
+                    if (packedBigramCount == packedBigrams.length) {
+                        packedBigrams = Arrays.copyOf(packedBigrams, packedBigramCount * 2);
+                    }
+                    packedBigrams[packedBigramCount++] = ((long) previousPosition << 32) | wordPosition;
+                }
+                previousPosition = wordPosition;
                 if (showStep) {
                     inputVector.merge(wordPosition, 1);
                 }
@@ -193,43 +265,45 @@ public class ChattingSystem {
             System.out.println();
         }
 
-        //准备候选集
-        for (int word : wordsContext.getVector().keySet()) {
-            Collections.addAll(alterSet, chatBank.wordAnswerIndex[word]);
+        //检索
+        int queryWordCount = wordsContext.getWordCount();
+        int[] queryWords = new int[queryWordCount];
+        double[] queryWeights = new double[queryWordCount];
+        wordsContext.toSortedArrays(queryWords, queryWeights);
+        //词编号非负，排序后按前一个词、再按后一个词升序排列，每个二元词组占两个整数
+        Arrays.sort(packedBigrams, 0, packedBigramCount);
+        int[] queryBigrams = new int[packedBigramCount * 2];
+        int queryBigramCount = 0;
+        for (int i = 0; i < packedBigramCount; ++i) {
+            if (i > 0 && packedBigrams[i] == packedBigrams[i - 1]) {
+                continue;
+            }
+            queryBigrams[queryBigramCount * 2] = (int) (packedBigrams[i] >>> 32);
+            queryBigrams[queryBigramCount * 2 + 1] = (int) packedBigrams[i];
+            ++queryBigramCount;
         }
+        SearchableChatBank.SearchResult result = chatBank.search(queryWords, queryWeights, queryWordCount, wordsContext.getModule2(),
+                queryBigrams, queryBigramCount, chatContext, chatPairContext);
+        int maxPosition = result.getChatPairNumber();
 
         if (showStep) {
             System.out.print("候选集大小：");
-            System.out.println(alterSet.size());
-        }
-
-        //计算该向量与备选集中向量的夹角余弦最大值
-        WordFrequencyVectorDouble bankVector = new WordFrequencyVectorDouble();
-        double max = 0;
-        PairInt maxPosition = null;
-        for (PairInt pairInt : alterSet) {
-            bankVector.clear();
-            bankVector.mergeAll(chatBank.getChat(pairInt.a).getChatPair(pairInt.b).getSentences());
-            double cosine = wordsContext.calculateCosine(bankVector);
-            //与chatPairContext相同的句子将具有更高的权值：
-            if (pairInt.a == chatPairContext.a && pairInt.b != chatPairContext.b) {
-                cosine *= 5;
-            }
-            if (cosine > max) {
-                maxPosition = pairInt;
-                max = cosine;
-            }
+            System.out.println(result.getCandidateCount());
         }
 
         //获得答句
         String answer;
-        if (maxPosition == null) {
-            answer = "{.Random:chat_mismatch}";
+        AnswerTemplate template;
+        if (maxPosition == -1) {
+            answer = MISMATCH_ANSWER;
+            template = MISMATCH_TEMPLATE;
         }
         else {
-            chatPairContext.a = maxPosition.a;
-            chatPairContext.b = maxPosition.b;
-            answer = chatBank.getChat(maxPosition.a).getChatPair(maxPosition.b).getAnswer();
+            chatContext = result.getChatNumber();
+            chatPairContext = maxPosition;
+            ChatBank.ChatPair chatPair = chatBank.getChatPair(maxPosition);
+            answer = chatPair.getAnswer();
+            template = chatPair.getAnswerTemplate();
         }
         if (showStep) {
             System.out.print("检索到的答句：");
@@ -237,13 +311,7 @@ public class ChattingSystem {
             System.out.println();
         }
 
-        //答句转义
-        String escapedAnswer = answer;
-        do {
-            answer = escapedAnswer;
-            escapedAnswer = escapeAnswer(answer, null);
-        } while (!escapedAnswer.equals(answer));
-
-        return answer;
+        //答句转义。没有占位符的答句不需要转义
+        return template == null ? answer : renderAnswer(template, null);
     }
 }
\ No newline at end of file
@@ -0,0 +1,156 @@
+package com.davidsoft.natural.chinese;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * 编译对话样本库时使用的中间结果缓存。
+ *
+ * 每个源文件分句、分词和同义词替换之后的结果存为缓存目录中的一个文件，文件名由源文件的内容以及编译所用的词典和同义词库文件的内容算出。
+ * 再次编译时，内容没有变化的源文件直接从缓存中读出，只有改动过的源文件需要重新处理，因此编译耗时主要取决于改动的多少；
+ * 词典或同义词库改变后所有的缓存自然失效。每次编译结束时，本次没有用到的缓存文件将被删除。
+ */
+public final class CompileCache {
+
+    //缓存文件的魔数("CHCC")、格式版本和扩展名
+    private static final int MAGIC = 0x43484343;
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".chc";
+
+    private final File directory;
+    private final byte[] dependencyHash;
+    private final HashSet<String> usedEntries = new HashSet<>();
+    private int hitCount;
+    private int missCount;
+
+    /**
+     * 在指定的目录中建立或打开缓存。
+     *
+     * @param directory 缓存目录，不存在时将被创建
+     * @param wordBankFile 编译所用的词典文件
+     * @param synonymBankFile 编译所用的同义词库文件
+     *
+     * @throws IOException 当无法创建缓存目录或读取词典、同义词库文件时
+     */
+    public CompileCache(File directory, File wordBankFile, File synonymBankFile) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建缓存目录 " + directory + "。");
+        }
+        this.directory = directory;
+        MessageDigest digest = newDigest();
+        digest.update(newDigest().digest(Files.readAllBytes(wordBankFile.toPath())));
+        digest.update(newDigest().digest(Files.readAllBytes(synonymBankFile.toPath())));
+        dependencyHash = digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            //每个Java平台都必须支持SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //由源文件的内容算出缓存文件名
+    private String entryName(byte[] source) {
+        MessageDigest digest = newDigest();
+        digest.update(dependencyHash);
+        digest.update((byte) VERSION);
+        byte[] hash = digest.digest(source);
+        StringBuilder builder = new StringBuilder(hash.length * 2 + SUFFIX.length());
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.append(SUFFIX).toString();
+    }
+
+    //读取源文件对应的缓存，没有缓存或缓存已损坏时返回null
+    ArrayList<ChatBank.ChatPair[]> load(byte[] source) {
+        String name = entryName(source);
+        usedEntries.add(name);
+        File file = new File(directory, name);
+        if (file.isFile()) {
+            try {
+                ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+                if (in.getInt() == MAGIC && in.getInt() == VERSION) {
+                    ArrayList<ChatBank.ChatPair[]> chats = ChatBank.readCachedChats(in);
+                    ++hitCount;
+                    return chats;
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                //缓存文件不完整或已损坏，当作没有缓存，重新处理后覆盖
+            }
+        }
+        ++missCount;
+        return null;
+    }
+
+    //写入源文件对应的缓存。先写入临时文件再改名，以免留下不完整的缓存文件；写入失败时只输出警告
+    void store(byte[] source, List<ChatBank.ChatPair[]> chats) {
+        File file = new File(directory, entryName(source));
+        File temporaryFile = new File(directory, file.getName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                ChatBank.writeCachedChats(out, chats);
+            }
+            try {
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e) {
+            temporaryFile.delete();
+            System.out.println("警告：无法写入编译缓存 " + file + "。");
+        }
+    }
+
+    //删除本次编译没有用到的缓存文件
+    void removeUnusedEntries() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX) && !usedEntries.contains(name));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    //开始一次编译，清空上一次编译的记录
+    void begin() {
+        usedEntries.clear();
+        hitCount = 0;
+        missCount = 0;
+    }
+
+    /**
+     * 获得上一次编译中命中缓存的源文件数。
+     */
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * 获得上一次编译中没有命中缓存、需要重新处理的源文件数。
+     */
+    public int getMissCount() {
+        return missCount;
+    }
+}
@@ -0,0 +1,231 @@
+package com.davidsoft.natural.chinese;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * 编译时使用的近似重复对话过滤器。
+ *
+ * 抓取的语料中有许多几乎相同的对话，它们使倒排表变长、检索时的候选集变大，却几乎不影响检索结果：问句相同的问答对夹角余弦相同，
+ * 编号较小的总是先被选中。过滤器为每个对话计算MinHash签名，签名由问句中的词和答句中相邻的两个字(都按所在问答对的位置区分)算出，
+ * 再用LSH分段：签名有一段完全相同的对话成为候选，然后逐一核实，问句和答句合起来的Jaccard相似度不低于阈值时，
+ * 后出现的对话被视为先出现的对话的重复而删除。答句在编译时不分词，以相邻的两个字代替词，只有一个字的答句以该字代替。只删除整个对话而不删除对话中的个别问答对，以免破坏对话的上下文。
+ * 给出报告文件时，每个被删除的对话及其保留的对话写入报告。
+ */
+public final class DuplicateFilter {
+
+    //签名的分段数和每段的行数，签名的长度为二者之积。相似度为0.8的两个对话成为候选的概率约为99.98%，相似度为0.5时约为64%
+    private static final int BANDS = 16;
+    private static final int ROWS = 4;
+
+    private final double threshold;
+    private final File reportFile;
+    private int removedChatCount;
+    private int removedPairCount;
+
+    /**
+     * 构造过滤器。
+     *
+     * @param threshold 相似度阈值，取值范围为(0, 1]，为1时只删除问句的词和答句的字都完全相同的对话
+     * @param reportFile 报告文件，为null时不写报告
+     */
+    public DuplicateFilter(double threshold, File reportFile) {
+        if (!(threshold > 0 && threshold <= 1)) {
+            throw new IllegalArgumentException("threshold = " + threshold);
+        }
+        this.threshold = threshold;
+        this.reportFile = reportFile;
+    }
+
+    /**
+     * 获得最近一次编译中删除的对话数。
+     */
+    public int getRemovedChatCount() {
+        return removedChatCount;
+    }
+
+    /**
+     * 获得最近一次编译中删除的问答对数。
+     */
+    public int getRemovedPairCount() {
+        return removedPairCount;
+    }
+
+    //64位整数的混合函数(SplitMix64的末段)
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+    //把字符串与所在问答对的位置一起散列为一个整数(FNV-1a)，answer区分答句与问句，使相同的字符串在问句和答句中是不同的特征
+    private static long hash(CharSequence text, int begin, int end, int position, boolean answer) {
+        long hash = 0xcbf29ce484222325L ^ position ^ (answer ? 1L << 32 : 0);
+        for (int j = begin; j < end; ++j) {
+            hash = (hash ^ text.charAt(j)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    //对话的特征：各问答对的问句中的每个词、答句中每相邻的两个字，与该问答对的位置一起散列为一个整数。结果按升序排列并去重
+    private static long[] features(ChatBank.ChatPair[] chat) {
+        int size = 0;
+        for (ChatBank.ChatPair chatPair : chat) {
+            for (WordFrequencyVector vector : chatPair.getSentences().getVectors()) {
+                size += ChatBank.getSourceWords(vector).size();
+            }
+            size += Math.max(chatPair.getAnswer().length() - 1, 1);
+        }
+        long[] features = new long[size];
+        size = 0;
+        for (int i = 0; i < chat.length; ++i) {
+            for (WordFrequencyVector vector : chat[i].getSentences().getVectors()) {
+                for (String word : ChatBank.getSourceWords(vector)) {
+                    features[size++] = hash(word, 0, word.length(), i, false);
+                }
+            }
+            String answer = chat[i].getAnswer();
+            if (answer.length() <= 2) {
+                features[size++] = hash(answer, 0, answer.length(), i, true);
+            }
+            else {
+                for (int j = 0; j + 2 <= answer.length(); ++j) {
+                    features[size++] = hash(answer, j, j + 2, i, true);
+                }
+            }
+        }
+        Arrays.sort(features);
+        int distinctCount = size == 0 ? 0 : 1;
+        for (int i = 1; i < size; ++i) {
+            if (features[i] != features[distinctCount - 1]) {
+                features[distinctCount++] = features[i];
+            }
+        }
+        return Arrays.copyOf(features, distinctCount);
+    }
+
+    //由MinHash签名算出各段的键
+    private static long[] bandKeys(long[] features) {
+        long[] keys = new long[BANDS];
+        for (int band = 0; band < BANDS; ++band) {
+            long key = band;
+            for (int row = 0; row < ROWS; ++row) {
+                long seed = mix(band * ROWS + row + 1);
+                long min = Long.MAX_VALUE;
+                for (long feature : features) {
+                    min = Math.min(min, mix(feature ^ seed));
+                }
+                key = mix(key ^ min);
+            }
+            keys[band] = key;
+        }
+        return keys;
+    }
+
+    //两组有序特征的Jaccard相似度
+    private static double jaccard(long[] a, long[] b) {
+        int common = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] == b[j]) {
+                ++common;
+                ++i;
+                ++j;
+            }
+            else if (a[i] < b[j]) {
+                ++i;
+            }
+            else {
+                ++j;
+            }
+        }
+        return (double) common / (a.length + b.length - common);
+    }
+
+    //对话第一个问答对的问句原文，用于报告
+    private static String firstQuestion(ChatBank.ChatPair[] chat) {
+        StringBuilder builder = new StringBuilder();
+        for (WordFrequencyVector vector : chat[0].getSentences().getVectors()) {
+            builder.append(vector.getOriginalSentence());
+        }
+        return builder.toString();
+    }
+
+    //过滤对话，返回保留的对话。chatFiles[i]为第i个对话所在的源文件，chatPositions[i]为其在源文件中的序号(从0开始)
+    ArrayList<ChatBank.ChatPair[]> filter(List<ChatBank.ChatPair[]> chats, File[] chatFiles, int[] chatPositions) {
+        removedChatCount = 0;
+        removedPairCount = 0;
+        List<HashMap<Long, ArrayList<Integer>>> buckets = new ArrayList<>(BANDS);
+        for (int i = 0; i < BANDS; ++i) {
+            buckets.add(new HashMap<>());
+        }
+        //保留的对话的特征，被删除的对话为null
+        long[][] keptFeatures = new long[chats.size()][];
+        ArrayList<ChatBank.ChatPair[]> keptChats = new ArrayList<>();
+        StringBuilder report = new StringBuilder();
+        HashSet<Integer> checked = new HashSet<>();
+        for (int i = 0; i < chats.size(); ++i) {
+            ChatBank.ChatPair[] chat = chats.get(i);
+            long[] features = features(chat);
+            //没有任何特征的对话无法比较，总是保留
+            if (features.length == 0) {
+                keptChats.add(chat);
+                continue;
+            }
+            long[] keys = bandKeys(features);
+            int original = -1;
+            double similarity = 0;
+            checked.clear();
+            for (int band = 0; band < BANDS && original == -1; ++band) {
+                ArrayList<Integer> bucket = buckets.get(band).get(keys[band]);
+                if (bucket == null) {
+                    continue;
+                }
+                for (int candidate : bucket) {
+                    if (!checked.add(candidate)) {
+                        continue;
+                    }
+                    double candidateSimilarity = jaccard(keptFeatures[candidate], features);
+                    if (candidateSimilarity >= threshold) {
+                        original = candidate;
+                        similarity = candidateSimilarity;
+                        break;
+                    }
+                }
+            }
+            if (original == -1) {
+                keptFeatures[i] = features;
+                keptChats.add(chat);
+                for (int band = 0; band < BANDS; ++band) {
+                    buckets.get(band).computeIfAbsent(keys[band], key -> new ArrayList<>()).add(i);
+                }
+                continue;
+            }
+            ++removedChatCount;
+            removedPairCount += chat.length;
+            report.append(String.format("删除 %s 第%d个对话(“%s”)，保留 %s 第%d个对话(“%s”)，相似度%.2f%n",
+                    chatFiles[i].getName(), chatPositions[i] + 1, firstQuestion(chat),
+                    chatFiles[original].getName(), chatPositions[original] + 1, firstQuestion(chats.get(original)), similarity));
+        }
+
+        System.out.println("近似去重：删除" + removedChatCount + "个对话，共" + removedPairCount + "个问答对。");
+        if (reportFile != null) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(reportFile), "GBK")) {
+                writer.write(String.format("相似度阈值%.2f，共删除%d个对话，%d个问答对。%n", threshold, removedChatCount, removedPairCount));
+                writer.write(report.toString());
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("警告：无法写入近似重复对话的报告 " + reportFile + "。");
+            }
+        }
+        return keptChats;
+    }
+}
@@ -0,0 +1,320 @@
+package com.davidsoft.natural.chinese;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 联合检索的多个对话样本库。
+ *
+ * 各领域的对话可以分别编译为独立的样本库，再按优先级从高到低排列组成本类的对象。检索时所有样本库同时进行，
+ * 按优先级依次取得各样本库的结果：第一个得分超过其阈值的样本库胜出，此时尚未完成的优先级更低的样本库被取消；
+ * 若没有样本库超过阈值，则取得分最高者，得分相同时取优先级高者。因此检索耗时不超过实际用到的样本库中最慢的一个。
+ *
+ * 与阈值比较的得分只以该样本库中存在的词计算，与单独检索该样本库时相同，阈值因而可以按样本库分别设定；
+ * 没有样本库超过阈值时，各样本库的得分统一以整个检索向量的模计算后再比较，缺少部分检索词的样本库不会因此占便宜。返回的得分也是后者。
+ * 词编号是所有样本库的词的统一编号，问答对和对话编号按样本库的顺序连续编排。本类的对象一经创建就不再修改，可以被多个线程同时检索。
+ */
+public final class FederatedChatBank implements SearchableChatBank {
+
+    //后台检索使用公共线程池，线程数有上限，与分片样本库共用
+    private static final ExecutorService searchExecutor = ForkJoinPool.commonPool();
+
+    //一个成员样本库
+    private final static class Member {
+        private final ChatBank bank;
+        private final double threshold;
+        private final int pairOffset;           //本样本库第一个问答对的编号
+        private final int chatOffset;           //本样本库第一个对话的编号
+        private final int[] localToGlobal;      //本样本库中的词编号对应的统一编号
+        private final int[] globalToLocal;      //统一编号对应的本样本库中的词编号，不存在时为-1
+
+        private Member(ChatBank bank, double threshold, int pairOffset, int chatOffset, int[] localToGlobal, int[] globalToLocal) {
+            this.bank = bank;
+            this.threshold = threshold;
+            this.pairOffset = pairOffset;
+            this.chatOffset = chatOffset;
+            this.localToGlobal = localToGlobal;
+            this.globalToLocal = globalToLocal;
+        }
+    }
+
+    //一个样本库的检索结果
+    private final static class MemberResult {
+        private final SearchResult result;      //编号为统一编号，得分以整个检索向量的模计算
+        private final double localCosine;       //以本样本库中存在的词计算的得分，用于与阈值比较
+
+        private MemberResult(SearchResult result, double localCosine) {
+            this.result = result;
+            this.localCosine = localCosine;
+        }
+    }
+
+    private final Member[] members;
+    private final int wordCount;
+
+    /**
+     * 由多个对话样本库构造联合检索的样本库。
+     *
+     * @param banks 各样本库，按优先级从高到低排列
+     * @param thresholds 各样本库的得分阈值，得分超过阈值时该样本库胜出。最后一个样本库的阈值只影响是否取消其它样本库，可以为0。
+     */
+    public FederatedChatBank(ChatBank[] banks, double[] thresholds) {
+        if (banks.length == 0 || banks.length != thresholds.length) {
+            throw new IllegalArgumentException("banks.length = " + banks.length + ", thresholds.length = " + thresholds.length);
+        }
+        //各样本库的词表不一定按相同的顺序排列，以词的内容建立统一编号
+        HashMap<String, Integer> wordNumbers = new HashMap<>();
+        int[][] localToGlobals = new int[banks.length][];
+        for (int i = 0; i < banks.length; ++i) {
+            localToGlobals[i] = new int[banks[i].getWordCount()];
+            for (int j = 0; j < localToGlobals[i].length; ++j) {
+                Integer wordNumber = wordNumbers.putIfAbsent(banks[i].getWord(j), wordNumbers.size());
+                localToGlobals[i][j] = wordNumber == null ? wordNumbers.size() - 1 : wordNumber;
+            }
+        }
+        wordCount = wordNumbers.size();
+
+        members = new Member[banks.length];
+        int pairOffset = 0;
+        int chatOffset = 0;
+        for (int i = 0; i < banks.length; ++i) {
+            int[] globalToLocal = new int[wordCount];
+            Arrays.fill(globalToLocal, -1);
+            for (int j = 0; j < localToGlobals[i].length; ++j) {
+                globalToLocal[localToGlobals[i][j]] = j;
+            }
+            members[i] = new Member(banks[i], thresholds[i], pairOffset, chatOffset, localToGlobals[i], globalToLocal);
+            pairOffset += banks[i].getChatPairCount();
+            chatOffset += banks[i].getChatCount();
+        }
+    }
+
+    //查询
+
+    /**
+     * 获得本样本库的代数。联合检索的样本库不支持重新加载，总是第0代。
+     *
+     * @return 代数
+     */
+    @Override
+    public int getGeneration() {
+        return 0;
+    }
+
+    /**
+     * 将之前某一代样本库中的词编号换算为本样本库中的词编号。联合检索的样本库只有第0代。
+     *
+     * @param wordNumber 旧的词编号
+     * @param fromGeneration 旧样本库的代数
+     * @return 本样本库中的词编号，无法换算时返回-1
+     */
+    @Override
+    public int remapWord(int wordNumber, int fromGeneration) {
+        return fromGeneration == 0 ? wordNumber : -1;
+    }
+
+    /**
+     * 获得样本库的个数。
+     *
+     * @return 样本库的个数
+     */
+    public int getBankCount() {
+        return members.length;
+    }
+
+    /**
+     * 通过给定词获得其编号，含义同{@link ChatBank#getWordNumber}。
+     *
+     * @param word 词
+     * @return 词的编号。若不存在该词则返回-1，若该词是数字则返回-2。
+     */
+    @Override
+    public int getWordNumber(String word) {
+        int localWord = -1;
+        for (Member member : members) {
+            localWord = member.bank.getWordNumber(word);
+            if (localWord >= 0) {
+                return member.localToGlobal[localWord];
+            }
+        }
+        return localWord;
+    }
+
+    /**
+     * 通过词编号获得词。
+     *
+     * @param wordNumber 词编号
+     * @return 词
+     */
+    @Override
+    public String getWord(int wordNumber) {
+        if (wordNumber < 0 || wordNumber >= wordCount) {
+            throw new IndexOutOfBoundsException("wordNumber = " + wordNumber + ", wordCount = " + wordCount);
+        }
+        for (Member member : members) {
+            if (member.globalToLocal[wordNumber] >= 0) {
+                return member.bank.getWord(member.globalToLocal[wordNumber]);
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * 获得所有样本库中不同的词的总数。
+     *
+     * @return 词的总数
+     */
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    /**
+     * 检索与检索向量夹角余弦最大的问句，参见{@link SearchableChatBank#search}。优先级最高的样本库在调用线程中检索，其余样本库同时在{@link ForkJoinPool#commonPool}中检索。
+     * 返回结果中的候选集大小为实际完成检索的样本库的候选集大小之和。
+     */
+    @Override
+    public SearchResult search(int[] words, double[] weights, int wordCount, double module2, int[] bigrams, int bigramCount, int chatContext, int chatPairContext) {
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        ArrayList<Future<MemberResult>> futures = new ArrayList<>(members.length - 1);
+        for (int i = 1; i < members.length; ++i) {
+            Member member = members[i];
+            futures.add(searchExecutor.submit(() -> searchMember(member, words, weights, wordCount, module2, bigrams, bigramCount, chatContext, chatPairContext, cancelled)));
+        }
+
+        SearchResult best = null;
+        int candidateCount = 0;
+        try {
+            for (int i = 0; i < members.length; ++i) {
+                MemberResult memberResult = i == 0
+                        ? searchMember(members[0], words, weights, wordCount, module2, bigrams, bigramCount, chatContext, chatPairContext, cancelled)
+                        : futures.get(i - 1).get();
+                SearchResult result = memberResult.result;
+                candidateCount += result.getCandidateCount();
+                if (result.getChatPairNumber() != -1 && memberResult.localCosine > members[i].threshold) {
+                    best = result;
+                    break;
+                }
+                if (best == null || result.getCosine() > best.getCosine()) {
+                    best = result;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            //放弃尚未完成的样本库，使用已经得到的结果
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            //取消优先级更低的样本库：尚未开始的不再开始，正在进行的在下一个检查点放弃
+            cancelled.set(true);
+            for (Future<MemberResult> future : futures) {
+                future.cancel(false);
+            }
+        }
+        if (best == null) {
+            return new SearchResult(-1, -1, 0, candidateCount);
+        }
+        return new SearchResult(best.getChatPairNumber(), best.getChatNumber(), best.getCosine(), candidateCount);
+    }
+
+    //在一个样本库中检索，返回的编号为统一编号。检索被取消时返回没有结果的MemberResult
+    private static MemberResult searchMember(Member member, int[] words, double[] weights, int wordCount, double module2,
+                                             int[] bigrams, int bigramCount, int chatContext, int chatPairContext, AtomicBoolean cancelled) {
+        //把检索向量换算为本样本库的编号并重新排序，略去本样本库中没有的词，模平方也只计算存在的词
+        long[] order = new long[wordCount];
+        int localWordCount = 0;
+        for (int i = 0; i < wordCount; ++i) {
+            int localWord = member.globalToLocal[words[i]];
+            if (localWord >= 0) {
+                order[localWordCount++] = ((long) localWord << 32) | i;
+            }
+        }
+        if (localWordCount == 0) {
+            return new MemberResult(new SearchResult(-1, -1, 0, 0), 0);
+        }
+        Arrays.sort(order, 0, localWordCount);
+        int[] localWords = new int[localWordCount];
+        double[] localWeights = new double[localWordCount];
+        double localModule2 = 0;
+        for (int i = 0; i < localWordCount; ++i) {
+            localWords[i] = (int) (order[i] >>> 32);
+            localWeights[i] = weights[(int) order[i]];
+            localModule2 += localWeights[i] * localWeights[i];
+        }
+        //所有的词都存在时沿用调用者给出的模平方，与单独检索本样本库时的结果逐位相同
+        if (localWordCount == wordCount) {
+            localModule2 = module2;
+        }
+
+        //二元词组同样换算为本样本库的编号，略去本样本库中没有的词组成的二元词组。是否使用二元词组由各样本库自行决定
+        int[] localBigrams = new int[bigramCount * 2];
+        int localBigramCount = 0;
+        for (int i = 0; i < bigramCount; ++i) {
+            int firstWord = member.globalToLocal[bigrams[i * 2]];
+            int secondWord = member.globalToLocal[bigrams[i * 2 + 1]];
+            if (firstWord >= 0 && secondWord >= 0) {
+                localBigrams[localBigramCount * 2] = firstWord;
+                localBigrams[localBigramCount * 2 + 1] = secondWord;
+                ++localBigramCount;
+            }
+        }
+
+        //上下文不在本样本库中时换算为-1
+        boolean contextInBank = chatContext >= member.chatOffset && chatContext < member.chatOffset + member.bank.getChatCount();
+        SearchResult result = member.bank.search(localWords, localWeights, localWordCount, localModule2, localBigrams, localBigramCount,
+                contextInBank ? chatContext - member.chatOffset : -1, contextInBank ? chatPairContext - member.pairOffset : -1, cancelled);
+        if (result == null) {
+            return new MemberResult(new SearchResult(-1, -1, 0, 0), 0);
+        }
+        if (result.getChatPairNumber() == -1) {
+            return new MemberResult(result, 0);
+        }
+        //得分与检索向量的模成反比，换算为以整个检索向量的模计算的得分。所有的词都存在时两者相同
+        double cosine = localModule2 == module2 ? result.getCosine() : result.getCosine() * Math.sqrt(localModule2 / module2);
+        return new MemberResult(new SearchResult(member.pairOffset + result.getChatPairNumber(), member.chatOffset + result.getChatNumber(),
+                cosine, result.getCandidateCount()), result.getCosine());
+    }
+
+    //获得问答对所在的样本库
+    private Member getMemberOfPair(int chatPairNumber) {
+        int i = members.length - 1;
+        while (chatPairNumber < members[i].pairOffset) {
+            --i;
+        }
+        return members[i];
+    }
+
+    /**
+     * 通过问答对编号获得问答对。
+     *
+     * @param chatPairNumber 问答对编号
+     * @return 问答对
+     */
+    @Override
+    public ChatBank.ChatPair getChatPair(int chatPairNumber) {
+        Member member = getMemberOfPair(chatPairNumber);
+        return member.bank.getChatPair(chatPairNumber - member.pairOffset);
+    }
+
+    /**
+     * 获得问答对所属的对话编号。
+     *
+     * @param chatPairNumber 问答对编号
+     * @return 对话编号
+     */
+    public int getChatNumberOfPair(int chatPairNumber) {
+        Member member = getMemberOfPair(chatPairNumber);
+        return member.chatOffset + member.bank.getChatNumberOfPair(chatPairNumber - member.pairOffset);
+    }
+}
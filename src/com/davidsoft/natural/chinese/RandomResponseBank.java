@@ -10,8 +10,8 @@ import java.util.*;
  */
 public final class RandomResponseBank {
 
-    //单例模式
-    private static RandomResponseBank instance;
+    //单例模式。实例可以被updateSourceFiles替换，因此为volatile
+    private static volatile RandomResponseBank instance;
 
     /**
      * RandomResponseBank(本类)需要以单例模式创建对象。调用此函数以获取唯一的实例。
@@ -47,6 +47,11 @@ public final class RandomResponseBank {
         random = new Random();
     }
 
+    private RandomResponseBank(HashMap<String, String[]> responses) {
+        this.responses = responses;
+        random = new Random();
+    }
+
     private RandomResponseBank(File file) throws IOException {
         FileInputStream in = new FileInputStream(file);
         IOException exception = null;
@@ -73,6 +78,67 @@ public final class RandomResponseBank {
         return array[random.nextInt(array.length)];
     }
 
+    /**
+     * 由改动过的源文件更新当前实例，并以更新后的随机回应库替换当前实例。只重新读取给出的源文件，其它回应沿用当前实例中的内容。
+     * 正在使用旧实例的调用者不受影响。
+     *
+     * @param sourceFiles 新增或修改过的源文件，回应的名称为不含扩展名的文件名
+     * @param deletedSourceFiles 被删除的源文件，其中的回应将被移除，文件本身不必存在
+     * @return 更新后的随机回应库
+     *
+     * @throws IOException 当读取源文件发生IO异常时，此时当前实例不变
+     */
+    public static RandomResponseBank updateSourceFiles(File[] sourceFiles, File[] deletedSourceFiles) throws IOException {
+        synchronized (RandomResponseBank.class) {
+            RandomResponseBank current = getInstance();
+            HashMap<String, String[]> responses = current == null ? new HashMap<>() : new HashMap<>(current.responses);
+            for (File deletedSourceFile : deletedSourceFiles) {
+                responses.remove(getResponseName(deletedSourceFile));
+            }
+            for (File sourceFile : sourceFiles) {
+                String[] list = readSourceFile(sourceFile);
+                if (list == null) {
+                    responses.remove(getResponseName(sourceFile));
+                }
+                else {
+                    responses.put(getResponseName(sourceFile), list);
+                }
+            }
+            RandomResponseBank bank = new RandomResponseBank(responses);
+            instance = bank;
+            return bank;
+        }
+    }
+
+    //源文件中回应的名称，即不含扩展名的文件名
+    private static String getResponseName(File sourceFile) {
+        String methodName = sourceFile.getName();
+        int findPos = methodName.lastIndexOf(".");
+        if (findPos > 0) {
+            methodName = methodName.substring(0, findPos);
+        }
+        return methodName;
+    }
+
+    //读取一个源文件中的所有回应，每行一条，略去空行。没有任何回应时返回null
+    private static String[] readSourceFile(File sourceFile) throws IOException {
+        ArrayList<String> stringArrayBuilder = new ArrayList<>();
+        try (Scanner scanner = new Scanner(new FileInputStream(sourceFile), "GBK")) {
+            while (scanner.hasNext()) {
+                String line = scanner.nextLine().trim();
+                if (line.length() > 0) {
+                    stringArrayBuilder.add(line);
+                }
+            }
+        }
+        if (stringArrayBuilder.size() == 0) {
+            return null;
+        }
+        String[] stringArray = new String[stringArrayBuilder.size()];
+        stringArrayBuilder.toArray(stringArray);
+        return stringArray;
+    }
+
     /**
      * 通过源文件编译同义词库。
      *
@@ -83,29 +149,13 @@ public final class RandomResponseBank {
      */
     public static void compileSourceFiles(File[] sourceFiles, OutputStream out) throws IOException {
         HashMap<String, String[]> responses = new HashMap<>();
-        ArrayList<String> stringArrayBuilder = new ArrayList<>();
 
         //读取
         for (File sourceFile : sourceFiles) {
-            String methodName = sourceFile.getName();
-            int findPos = methodName.lastIndexOf(".");
-            if (findPos > 0) {
-                methodName = methodName.substring(0, findPos);
-            }
-            Scanner scanner = new Scanner(new FileInputStream(sourceFile), "GBK");
-            stringArrayBuilder.clear();
-            while (scanner.hasNext()) {
-                String line = scanner.nextLine().trim();
-                if (line.length() > 0) {
-                    stringArrayBuilder.add(line);
-                }
-            }
-            if (stringArrayBuilder.size() > 0) {
-                String[] stringArray = new String[stringArrayBuilder.size()];
-                stringArrayBuilder.toArray(stringArray);
-                responses.put(methodName, stringArray);
+            String[] stringArray = readSourceFile(sourceFile);
+            if (stringArray != null) {
+                responses.put(getResponseName(sourceFile), stringArray);
             }
-            scanner.close();
         }
 
         //存储
@@ -0,0 +1,127 @@
+package com.davidsoft.natural.chinese;
+
+/**
+ * 可供对话系统检索的对话样本库。
+ *
+ * 对话系统只通过本接口使用对话样本库：把输入的词换算为词编号，组成检索向量后交给{@link #search}，再取出答句。
+ * 候选集的生成和夹角余弦的计算都在实现类内部完成，实现类可以据此把检索分散到多个分片上并行进行。
+ */
+public interface SearchableChatBank {
+
+    /**
+     * 一次检索的结果。
+     */
+    final class SearchResult {
+        private final int chatPairNumber;
+        private final int chatNumber;
+        private final double cosine;
+        private final int candidateCount;
+
+        SearchResult(int chatPairNumber, int chatNumber, double cosine, int candidateCount) {
+            this.chatPairNumber = chatPairNumber;
+            this.chatNumber = chatNumber;
+            this.cosine = cosine;
+            this.candidateCount = candidateCount;
+        }
+
+        /**
+         * 获得检索到的问答对编号，没有检索到时为-1。
+         */
+        public int getChatPairNumber() {
+            return chatPairNumber;
+        }
+
+        /**
+         * 获得检索到的问答对所属的对话编号，没有检索到时为-1。
+         */
+        public int getChatNumber() {
+            return chatNumber;
+        }
+
+        /**
+         * 获得检索到的问答对的得分，即加权后的夹角余弦。
+         */
+        public double getCosine() {
+            return cosine;
+        }
+
+        /**
+         * 获得候选集的大小。
+         */
+        public int getCandidateCount() {
+            return candidateCount;
+        }
+    }
+
+    /**
+     * 获得样本库的代数，代数改变后之前保存的词编号需要通过{@link #remapWord}换算。
+     *
+     * @return 代数
+     */
+    int getGeneration();
+
+    /**
+     * 将之前某一代样本库中的词编号换算为本样本库中的词编号。
+     *
+     * @param wordNumber 旧的词编号
+     * @param fromGeneration 旧样本库的代数
+     * @return 本样本库中的词编号。若该词已不存在，或无法换算，则返回-1。
+     */
+    int remapWord(int wordNumber, int fromGeneration);
+
+    /**
+     * 通过给定词获得其编号。
+     *
+     * @param word 词
+     * @return 词的编号。若不存在该词则返回-1，若该词是数字则返回-2。
+     */
+    int getWordNumber(String word);
+
+    /**
+     * 通过词编号获得词。
+     *
+     * @param wordNumber 词编号
+     * @return 词
+     */
+    String getWord(int wordNumber);
+
+    /**
+     * 检索与检索向量夹角余弦最大的问句。候选集为至少含有检索向量中一个词的问答对；
+     * 与上次检索到的问答对属于同一对话的其它问答对得分乘以5。得分相同时取编号最小的问答对。
+     *
+     * @param words 检索向量中的词，按升序排列
+     * @param weights 检索向量中各词的权值
+     * @param wordCount 检索向量中词的个数
+     * @param module2 检索向量的模平方
+     * @param chatContext 上次检索到的对话编号，没有时为-1
+     * @param chatPairContext 上次检索到的问答对编号
+     * @return 检索结果
+     */
+    default SearchResult search(int[] words, double[] weights, int wordCount, double module2, int chatContext, int chatPairContext) {
+        return search(words, weights, wordCount, module2, null, 0, chatContext, chatPairContext);
+    }
+
+    /**
+     * 检索与检索向量夹角余弦最大的问句，并给出检索问句中的二元词组，即同一子句中前后相邻的两个词。
+     * 样本库中出现过其中的二元词组时，候选集优先由这些二元词组生成，见{@link ChatBank#setBigramCandidates}；否则同{@link #search(int[], double[], int, double, int, int)}。
+     *
+     * @param words 检索向量中的词，按升序排列
+     * @param weights 检索向量中各词的权值
+     * @param wordCount 检索向量中词的个数
+     * @param module2 检索向量的模平方
+     * @param bigrams 检索二元词组，每个二元词组依次为(前一个词, 后一个词)两个词编号，没有时可以为null
+     * @param bigramCount 检索二元词组的个数
+     * @param chatContext 上次检索到的对话编号，没有时为-1
+     * @param chatPairContext 上次检索到的问答对编号
+     * @return 检索结果
+     */
+    SearchResult search(int[] words, double[] weights, int wordCount, double module2, int[] bigrams, int bigramCount, int chatContext, int chatPairContext);
+
+    /**
+     * 通过问答对编号获得问答对。
+     *
+     * @param chatPairNumber 问答对编号
+     * @return 问答对
+     */
+    ChatBank.ChatPair getChatPair(int chatPairNumber);
+}
@@ -0,0 +1,181 @@
+package com.davidsoft.natural.chinese;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 编译器使用的分词结果缓存。
+ *
+ * 语料中常见的问句、语气词以及同义词库中的词条成千上万次地重复出现，每次都要重新分词或在词典中查找。
+ * 本类记住最近的分词和查词结果，相同的句子只分词一次，相同的词只查找一次。缓存按最近最少使用淘汰，总容量有上限；
+ * 缓存分为若干互不相干的分区，各分区分别加锁，可以被并行编译的各个任务共享。编译结束后可以通过{@link #toString}取得命中率。
+ *
+ * 词典在编译期间只读，因此缓存的结果与直接调用{@link WordSegmenter#segment}和{@link WordBank#find}完全相同。
+ */
+public final class SegmentationMemo {
+
+    //默认容量，即最多缓存的句子数和词数
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    //分区数，必须是2的幂
+    private static final int STRIPE_COUNT = 16;
+
+    //一个分区，按最近最少使用淘汰
+    private final static class Stripe<V> extends LinkedHashMap<String, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private final WordBank wordBank;
+    private final WordSegmenter wordSegmenter;
+    private final Stripe<String[]>[] segmentStripes;
+    private final Stripe<Boolean>[] findStripes;
+
+    //统计：分词次数及命中次数，查词次数及命中次数
+    private final AtomicLong segmentRequests = new AtomicLong();
+    private final AtomicLong segmentHits = new AtomicLong();
+    private final AtomicLong findRequests = new AtomicLong();
+    private final AtomicLong findHits = new AtomicLong();
+
+    /**
+     * 构造默认容量的缓存。
+     *
+     * @param wordBank 分词和查词所用的词典，使用缓存期间不能修改
+     */
+    public SegmentationMemo(WordBank wordBank) {
+        this(wordBank, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 构造缓存。
+     *
+     * @param wordBank 分词和查词所用的词典，使用缓存期间不能修改
+     * @param capacity 分词和查词的结果各自最多缓存的条数
+     */
+    @SuppressWarnings("unchecked")
+    public SegmentationMemo(WordBank wordBank, int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity = " + capacity);
+        }
+        this.wordBank = wordBank;
+        wordSegmenter = new WordSegmenter(wordBank);
+        int stripeCapacity = (capacity + STRIPE_COUNT - 1) / STRIPE_COUNT;
+        segmentStripes = (Stripe<String[]>[]) new Stripe<?>[STRIPE_COUNT];
+        findStripes = (Stripe<Boolean>[]) new Stripe<?>[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; ++i) {
+            segmentStripes[i] = new Stripe<>(stripeCapacity);
+            findStripes[i] = new Stripe<>(stripeCapacity);
+        }
+    }
+
+    //key所属的分区
+    private static <V> Stripe<V> stripeOf(Stripe<V>[] stripes, String key) {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1)];
+    }
+
+    /**
+     * 对句子分词，结果同{@link WordSegmenter#segment}。返回的数组可能被其它调用者共享，不能修改。
+     *
+     * @param sentence 句子
+     * @return 分词结果
+     */
+    public String[] segment(String sentence) {
+        segmentRequests.incrementAndGet();
+        Stripe<String[]> stripe = stripeOf(segmentStripes, sentence);
+        String[] segments;
+        synchronized (stripe) {
+            segments = stripe.get(sentence);
+        }
+        if (segments != null) {
+            segmentHits.incrementAndGet();
+            return segments;
+        }
+        //分词在锁外进行，多个任务同时遇到同一个新句子时各自分词，结果相同
+        segments = wordSegmenter.segment(sentence);
+        synchronized (stripe) {
+            stripe.put(sentence, segments);
+        }
+        return segments;
+    }
+
+    /**
+     * 查找词典中是否有某个词，结果同{@link WordBank#find}。本函数不更新词典的{@link WordBank#getLastFrequency}和{@link WordBank#getLastPartOfSpeech}。
+     *
+     * @param word 词
+     * @return 词典中有该词时返回{@code true}
+     */
+    public boolean find(String word) {
+        findRequests.incrementAndGet();
+        Stripe<Boolean> stripe = stripeOf(findStripes, word);
+        Boolean found;
+        synchronized (stripe) {
+            found = stripe.get(word);
+        }
+        if (found != null) {
+            findHits.incrementAndGet();
+            return found;
+        }
+        //WordBank.find会记录最后找到的词，不能被多个线程同时调用
+        synchronized (wordBank) {
+            found = wordBank.find(Utils.partDivide(word));
+        }
+        synchronized (stripe) {
+            stripe.put(word, found);
+        }
+        return found;
+    }
+
+    public long getSegmentRequestCount() {
+        return segmentRequests.get();
+    }
+
+    public long getSegmentHitCount() {
+        return segmentHits.get();
+    }
+
+    public long getFindRequestCount() {
+        return findRequests.get();
+    }
+
+    public long getFindHitCount() {
+        return findHits.get();
+    }
+
+    //命中率的百分数
+    private static String hitRate(long hits, long requests) {
+        return String.format("%.1f%%", requests == 0 ? 0.0 : hits * 100.0 / requests);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        if (segmentRequests.get() > 0) {
+            builder.append("分词").append(segmentRequests.get()).append("次，命中").append(segmentHits.get())
+                    .append("次(").append(hitRate(segmentHits.get(), segmentRequests.get())).append(")");
+        }
+        if (findRequests.get() > 0) {
+            if (builder.length() > 0) {
+                builder.append("；");
+            }
+            builder.append("查词").append(findRequests.get()).append("次，命中").append(findHits.get())
+                    .append("次(").append(hitRate(findHits.get(), findRequests.get())).append(")");
+        }
+        if (builder.length() == 0) {
+            builder.append("未使用");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,901 @@
+package com.davidsoft.natural.chinese;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 分段的对话样本库。
+ *
+ * 由一个不可变的基础样本库和依次追加的若干个增量样本库组成，检索时同时查询所有的段。
+ * 增量样本库由{@link ChatBank#compileDelta}编译，其中可以带有墓碑，用于按内容删除更早的段中的对话。
+ * 追加一个增量样本库的耗时只与增量样本库的规模有关；增量样本库过多时，后台线程将所有的段合并为一个新的基础样本库。
+ *
+ * 本类的对象一经创建就不再修改，追加和合并都会生成新的对象并原子地替换当前实例，已经取得旧实例的检索过程不受影响。
+ * 词编号在所有段中统一编排：基础样本库中的词沿用其编号，增量样本库中新出现的词依次编在其后；问答对和对话编号按段的顺序连续编排。
+ * 追加增量样本库不会改变已有的编号，合并和重新加载基础样本库则会改变编号，此时代数加1，会话中保存的词编号可通过{@link #remapWord}换算。
+ */
+public final class SegmentedChatBank implements SearchableChatBank {
+
+    //对象管理
+
+    private static volatile SegmentedChatBank instance = null;
+    private static final Object instanceLock = new Object();
+    //同一时间只进行一次合并
+    private static final Object compactLock = new Object();
+
+    //增量样本库超过这个数目时在后台自动合并
+    private static final int MAX_DELTA_SEGMENTS = 8;
+
+    private static ExecutorService compactExecutor = null;
+
+    /**
+     * 获得当前实例。基础样本库即{@link ChatBank#getInstance}；基础样本库被重新加载后，之前追加的增量样本库将被丢弃，
+     * 因为重新加载的文件应当已经包含了所需的全部内容(可以先{@link #compact}，再通过{@link #writeTo}得到这样的文件)。
+     * 一次检索过程中应只调用一次本函数，并始终使用同一个实例。
+     *
+     * @return 当前实例，基础样本库无法加载时返回{@code null}
+     */
+    public static SegmentedChatBank getInstance() {
+        ChatBank base = ChatBank.getInstance();
+        if (base == null) {
+            return null;
+        }
+        SegmentedChatBank bank = instance;
+        if (bank == null || bank.origin != base) {
+            synchronized (instanceLock) {
+                bank = instance;
+                if (bank == null || bank.origin != base) {
+                    bank = bank == null ? new SegmentedChatBank(base) : bank.rebase(base, base);
+                    instance = bank;
+                }
+            }
+        }
+        return bank;
+    }
+
+    /**
+     * 在当前实例之后追加一个增量样本库，并以追加后的样本库替换当前实例。
+     *
+     * @param delta 增量样本库
+     * @return 追加后的样本库
+     *
+     * @throws IllegalStateException 当使用分片样本库时(见{@link ShardedChatBank#getInstance})，此时追加的内容不会被检索到
+     */
+    public static SegmentedChatBank append(ChatBank delta) {
+        checkNotSharded();
+        SegmentedChatBank bank;
+        synchronized (instanceLock) {
+            bank = getInstance();
+            if (bank == null) {
+                throw new IllegalStateException("无法加载对话样本库。");
+            }
+            bank = bank.withDelta(delta);
+            instance = bank;
+        }
+        if (bank.segments.length - 1 > MAX_DELTA_SEGMENTS) {
+            compactInBackground();
+        }
+        return bank;
+    }
+
+    /**
+     * 由源文件编译一个增量样本库并追加在当前实例之后。编译使用默认的中文词库和同义词库。
+     *
+     * @param sourceFiles 要加入的对话的源文件列表
+     * @param deletedSourceFiles 要删除的对话的源文件列表
+     * @return 追加后的样本库
+     *
+     * @throws IOException 当源文件有误时
+     */
+    public static SegmentedChatBank appendSourceFiles(File[] sourceFiles, File[] deletedSourceFiles) throws IOException {
+        return append(ChatBank.compileDelta(sourceFiles, deletedSourceFiles, WordBank.getChineseInstance(), SynonymBank.getInstance()));
+    }
+
+    /**
+     * 将当前实例的所有段合并为一个基础样本库，并替换当前实例。合并期间追加的增量样本库将保留在合并结果之后。
+     * 合并期间若基础样本库被重新加载，则放弃合并结果。
+     *
+     * @return 合并后的样本库；放弃合并时返回当时的当前实例
+     *
+     * @throws IllegalStateException 当使用分片样本库时(见{@link ShardedChatBank#getInstance})
+     */
+    public static SegmentedChatBank compact() {
+        checkNotSharded();
+        synchronized (compactLock) {
+            SegmentedChatBank snapshot = getInstance();
+            if (snapshot == null) {
+                throw new IllegalStateException("无法加载对话样本库。");
+            }
+            if (snapshot.segments.length == 1) {
+                return snapshot;
+            }
+            ChatBank merged = snapshot.merge();
+            synchronized (instanceLock) {
+                SegmentedChatBank current = getInstance();
+                if (current.origin != snapshot.origin) {
+                    return current;
+                }
+                SegmentedChatBank bank = current.rebase(snapshot.origin, merged);
+                for (int i = snapshot.segments.length; i < current.segments.length; ++i) {
+                    bank = bank.withDelta(current.segments[i].bank);
+                }
+                instance = bank;
+                return bank;
+            }
+        }
+    }
+
+    //有分片样本库时对话系统只检索分片样本库，对当前实例的修改不会生效
+    private static void checkNotSharded() {
+        if (ShardedChatBank.getInstance() != null) {
+            throw new IllegalStateException("使用分片样本库时不支持追加和合并增量样本库。");
+        }
+    }
+
+    /**
+     * 在后台线程中进行{@link #compact}。
+     *
+     * @return 合并完成后得到合并后的样本库
+     */
+    public static CompletableFuture<SegmentedChatBank> compactInBackground() {
+        ExecutorService executor;
+        synchronized (SegmentedChatBank.class) {
+            if (compactExecutor == null) {
+                compactExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "SegmentedChatBank-compact");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            executor = compactExecutor;
+        }
+        return CompletableFuture.supplyAsync(SegmentedChatBank::compact, executor);
+    }
+
+    //对话样本库的数据结构
+
+    //一个段
+    private final static class Segment {
+        private final ChatBank bank;
+        private final int pairOffset;           //本段第一个问答对的编号
+        private final int chatOffset;           //本段第一个对话的编号
+        private final int questionOffset;       //本段第一个问句的统一编号
+        private final int[] globalWords;        //本段中出现的词的统一编号，按升序排列。基础样本库为null，表示与段内编号相同
+        private final int[] localWords;         //与globalWords对应的段内编号
+        private final ChatBank.QuestionMatrix matrix;   //以统一编号表示的问句矩阵
+        private final BitSet deletedPairs;      //被更新的段中的墓碑删除的问答对(段内编号)
+
+        private Segment(ChatBank bank, int pairOffset, int chatOffset, int questionOffset, int[] globalWords, int[] localWords, ChatBank.QuestionMatrix matrix, BitSet deletedPairs) {
+            this.bank = bank;
+            this.pairOffset = pairOffset;
+            this.chatOffset = chatOffset;
+            this.questionOffset = questionOffset;
+            this.globalWords = globalWords;
+            this.localWords = localWords;
+            this.matrix = matrix;
+            this.deletedPairs = deletedPairs;
+        }
+
+        //将统一的词编号换算为段内编号，本段中没有该词时返回-1
+        private int toLocalWord(int wordNumber) {
+            if (globalWords == null) {
+                return wordNumber < bank.getWordCount() ? wordNumber : -1;
+            }
+            int index = Arrays.binarySearch(globalWords, wordNumber);
+            return index < 0 ? -1 : localWords[index];
+        }
+
+        //删除本段中内容键出现在tombstones的墓碑中的对话，返回新的段；没有对话被删除时返回本段
+        private Segment withTombstones(ChatBank tombstones) {
+            BitSet deleted = null;
+            for (int i = 0; i < tombstones.getTombstoneCount(); ++i) {
+                for (int chat : bank.findChatsByKey(tombstones.getTombstone(i))) {
+                    if (deleted == null) {
+                        deleted = (BitSet) deletedPairs.clone();
+                    }
+                    deleted.set(bank.getFirstPairOfChat(chat), bank.getFirstPairOfChat(chat + 1));
+                }
+            }
+            return deleted == null ? this : new Segment(bank, pairOffset, chatOffset, questionOffset, globalWords, localWords, matrix, deleted);
+        }
+    }
+
+    private final ChatBank origin;          //由哪一个基础样本库的实例而来
+    private final Segment[] segments;
+    private final String[] extraWords;      //增量样本库中新出现的词，编号依次从基础样本库的词数开始
+    private final HashMap<String, Integer> extraWordNumbers;
+    private final int pairCount;
+    private final int chatCount;
+    private final int questionCount;
+
+    private final int generation;
+    private final WordRemap wordRemap;
+
+    private SegmentedChatBank(ChatBank origin, Segment[] segments, String[] extraWords, HashMap<String, Integer> extraWordNumbers, int generation, WordRemap wordRemap) {
+        this.origin = origin;
+        this.segments = segments;
+        this.extraWords = extraWords;
+        this.extraWordNumbers = extraWordNumbers;
+        Segment last = segments[segments.length - 1];
+        pairCount = last.pairOffset + last.bank.getChatPairCount();
+        chatCount = last.chatOffset + last.bank.getChatCount();
+        questionCount = last.questionOffset + last.matrix.getRowCount();
+        this.generation = generation;
+        this.wordRemap = wordRemap;
+    }
+
+    //只有基础样本库的实例
+    private SegmentedChatBank(ChatBank base) {
+        this(base, new Segment[] {newBaseSegment(base)}, new String[0], new HashMap<>(), 0, null);
+    }
+
+    private static Segment newBaseSegment(ChatBank base) {
+        return new Segment(base, 0, 0, 0, null, null, base.getQuestionMatrix(), new BitSet());
+    }
+
+    //以base为基础样本库生成新一代的实例，之前的词编号按词的内容换算
+    private SegmentedChatBank rebase(ChatBank origin, ChatBank base) {
+        int[] map = new int[getWordCount()];
+        for (int i = 0; i < map.length; ++i) {
+            map[i] = Math.max(base.getWordNumber(getWord(i)), -1);
+        }
+        return new SegmentedChatBank(origin, new Segment[] {newBaseSegment(base)}, new String[0], new HashMap<>(),
+                generation + 1, WordRemap.append(generation + 1, map, wordRemap));
+    }
+
+    //追加一个增量样本库，已有的编号都保持不变
+    private SegmentedChatBank withDelta(ChatBank delta) {
+        //为增量样本库中的词确定统一编号
+        ArrayList<String> newWords = new ArrayList<>();
+        HashMap<String, Integer> newWordNumbers = null;
+        int localWordCount = delta.getWordCount();
+        int[] localToGlobal = new int[localWordCount];
+        long[] order = new long[localWordCount];
+        for (int i = 0; i < localWordCount; ++i) {
+            String word = delta.getWord(i);
+            int wordNumber = getWordNumber(word);
+            if (wordNumber < 0 && newWordNumbers != null) {
+                wordNumber = newWordNumbers.getOrDefault(word, -1);
+            }
+            if (wordNumber < 0) {
+                if (newWordNumbers == null) {
+                    newWordNumbers = new HashMap<>(extraWordNumbers);
+                }
+                wordNumber = getWordCount() + newWords.size();
+                newWords.add(word);
+                newWordNumbers.put(word, wordNumber);
+            }
+            localToGlobal[i] = wordNumber;
+            order[i] = ((long) wordNumber << 32) | i;
+        }
+        Arrays.sort(order);
+        int[] globalWords = new int[localWordCount];
+        int[] localWords = new int[localWordCount];
+        for (int i = 0; i < localWordCount; ++i) {
+            globalWords[i] = (int) (order[i] >>> 32);
+            localWords[i] = (int) order[i];
+        }
+
+        //墓碑只作用于更早的段
+        Segment[] newSegments = new Segment[segments.length + 1];
+        for (int i = 0; i < segments.length; ++i) {
+            newSegments[i] = delta.getTombstoneCount() == 0 ? segments[i] : segments[i].withTombstones(delta);
+        }
+        newSegments[segments.length] = new Segment(delta, pairCount, chatCount, questionCount, globalWords, localWords,
+                delta.buildQuestionMatrix(localToGlobal), new BitSet());
+
+        String[] newExtraWords = extraWords;
+        if (!newWords.isEmpty()) {
+            newExtraWords = Arrays.copyOf(extraWords, extraWords.length + newWords.size());
+            for (int i = 0; i < newWords.size(); ++i) {
+                newExtraWords[extraWords.length + i] = newWords.get(i);
+            }
+        }
+        return new SegmentedChatBank(origin, newSegments, newExtraWords, newWordNumbers == null ? extraWordNumbers : newWordNumbers,
+                generation, wordRemap);
+    }
+
+    //将所有的段中未被删除的对话合并为一个新的样本库
+    private ChatBank merge() {
+        //第一遍：以词的内容收集倒排表，词的编号即其在升序排列中的位置
+        TreeMap<String, ArrayList<Integer>> wordsIndexs = new TreeMap<>();
+        String[][] localWordTexts = new String[segments.length][];
+        //各段的问答对在合并后的编号，已删除的为-1
+        int[][] mergedPairs = new int[segments.length][];
+        int mergedPairCount = 0;
+        for (int s = 0; s < segments.length; ++s) {
+            Segment segment = segments[s];
+            localWordTexts[s] = new String[segment.bank.getWordCount()];
+            mergedPairs[s] = new int[segment.bank.getChatPairCount()];
+            Arrays.fill(mergedPairs[s], -1);
+            for (int pair = 0; pair < segment.bank.getChatPairCount(); ++pair) {
+                if (segment.deletedPairs.get(pair)) {
+                    continue;
+                }
+                mergedPairs[s][pair] = mergedPairCount;
+                for (WordFrequencyVector vector : segment.bank.getChatPair(pair).getSentences().getVectors()) {
+                    for (int i = 0; i < vector.getWordCount(); ++i) {
+                        int localWord = vector.getWordAt(i);
+                        if (localWordTexts[s][localWord] == null) {
+                            localWordTexts[s][localWord] = segment.bank.getWord(localWord);
+                        }
+                        wordsIndexs.computeIfAbsent(localWordTexts[s][localWord], key -> new ArrayList<>()).add(mergedPairCount);
+                    }
+                }
+                ++mergedPairCount;
+            }
+        }
+
+        try {
+            ChatBankWriter writer = new ChatBankWriter();
+            //合并后的样本库沿用基础样本库的答句存储方式
+            writer.setAnswerBlockSize(segments[0].bank.getAnswerBlockSize());
+            HashMap<String, Integer> wordNumbers = new HashMap<>();
+            for (Map.Entry<String, ArrayList<Integer>> entry : wordsIndexs.entrySet()) {
+                wordNumbers.put(entry.getKey(), wordNumbers.size());
+                int[] chatPairs = new int[entry.getValue().size()];
+                for (int i = 0; i < chatPairs.length; ++i) {
+                    chatPairs[i] = entry.getValue().get(i);
+                }
+                writer.addWord(entry.getKey(), chatPairs);
+            }
+
+            //第二遍：依次写入对话
+            for (int s = 0; s < segments.length; ++s) {
+                Segment segment = segments[s];
+                for (int chat = 0; chat < segment.bank.getChatCount(); ++chat) {
+                    int firstPair = segment.bank.getFirstPairOfChat(chat);
+                    int endPair = segment.bank.getFirstPairOfChat(chat + 1);
+                    //墓碑总是删除整个对话
+                    if (firstPair == endPair || segment.deletedPairs.get(firstPair)) {
+                        continue;
+                    }
+                    writer.beginChat();
+                    for (int pair = firstPair; pair < endPair; ++pair) {
+                        ChatBank.ChatPair chatPair = segment.bank.getChatPair(pair);
+                        WordFrequencyVector[] vectors = chatPair.getSentences().getVectors();
+                        String[] sentences = new String[vectors.length];
+                        int[][] words = new int[vectors.length][];
+                        int[][] frequencies = new int[vectors.length][];
+                        int[] module2s = new int[vectors.length];
+                        for (int i = 0; i < vectors.length; ++i) {
+                            sentences[i] = vectors[i].getOriginalSentence();
+                            module2s[i] = vectors[i].getModule2();
+                            //换算为新的编号后重新排序
+                            long[] elements = new long[vectors[i].getWordCount()];
+                            for (int j = 0; j < elements.length; ++j) {
+                                elements[j] = ((long) wordNumbers.get(localWordTexts[s][vectors[i].getWordAt(j)]) << 32)
+                                        | vectors[i].getFrequencyAt(j);
+                            }
+                            Arrays.sort(elements);
+                            words[i] = new int[elements.length];
+                            frequencies[i] = new int[elements.length];
+                            for (int j = 0; j < elements.length; ++j) {
+                                words[i][j] = (int) (elements[j] >>> 32);
+                                frequencies[i][j] = (int) elements[j];
+                            }
+                        }
+                        writer.addChatPair(sentences, words, frequencies, module2s, chatPair.getAnswer());
+                    }
+                }
+            }
+
+            //第三遍：合并各段的二元词组。只要有一段没有二元词组索引，合并后的样本库就不建立索引
+            boolean bigramIndexed = true;
+            for (Segment segment : segments) {
+                bigramIndexed &= segment.bank.hasBigramIndex();
+            }
+            if (bigramIndexed) {
+                writer.setBigramIndexed();
+                //(前一个词, 后一个词)的新编号→倒排表。各段依次加入，倒排项仍按编号递增
+                TreeMap<Long, ArrayList<Integer>> bigramsIndexs = new TreeMap<>();
+                for (int s = 0; s < segments.length; ++s) {
+                    ChatBank bank = segments[s].bank;
+                    ChatBank.PostingIterator postingIterator = bank.newPostingIterator();
+                    for (int bigram = 0; bigram < bank.getBigramCount(); ++bigram) {
+                        ArrayList<Integer> chatPairs = null;
+                        postingIterator.resetBigram(bigram);
+                        while (postingIterator.next()) {
+                            int mergedPair = mergedPairs[s][postingIterator.getChatPairNumber()];
+                            if (mergedPair < 0) {
+                                continue;
+                            }
+                            if (chatPairs == null) {
+                                //未被删除的问答对中出现的词都已记录了内容
+                                long key = ((long) wordNumbers.get(localWordTexts[s][bank.getBigramFirstWord(bigram)]) << 32)
+                                        | wordNumbers.get(localWordTexts[s][bank.getBigramSecondWord(bigram)]);
+                                chatPairs = bigramsIndexs.computeIfAbsent(key, k -> new ArrayList<>());
+                            }
+                            chatPairs.add(mergedPair);
+                        }
+                    }
+                }
+                for (Map.Entry<Long, ArrayList<Integer>> entry : bigramsIndexs.entrySet()) {
+                    int[] chatPairs = new int[entry.getValue().size()];
+                    for (int i = 0; i < chatPairs.length; ++i) {
+                        chatPairs[i] = entry.getValue().get(i);
+                    }
+                    writer.addBigram((int) (entry.getKey() >>> 32), (int) (long) entry.getKey(), chatPairs);
+                }
+            }
+            return ChatBank.fromWriter(writer);
+        }
+        catch (IOException e) {
+            //生成器只写入内存，不会发生IO异常
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 将所有的段合并后以新格式写入输出流。写出的文件可以作为新的基础样本库加载，不改变当前实例。
+     *
+     * @param out 输出流
+     *
+     * @throws IOException 当向输出流{@code out}写入数据发生IO异常时
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        (segments.length == 1 ? segments[0].bank : merge()).writeTo(out);
+    }
+
+    //查询
+
+    /**
+     * 获得本实例的代数。追加增量样本库不改变代数，合并和重新加载基础样本库使代数加1。
+     *
+     * @return 代数
+     */
+    @Override
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * 将之前某一代实例中的词编号换算为本实例中的词编号。
+     *
+     * @param wordNumber 旧的词编号
+     * @param fromGeneration 旧实例的代数
+     * @return 本实例中的词编号。若该词已不存在，或旧实例的代数过于久远已无法换算，则返回-1。
+     */
+    @Override
+    public int remapWord(int wordNumber, int fromGeneration) {
+        return WordRemap.remap(wordRemap, generation, wordNumber, fromGeneration);
+    }
+
+    /**
+     * 获得段的个数，包括基础样本库。
+     *
+     * @return 段的个数
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * 通过给定词获得其编号，含义同{@link ChatBank#getWordNumber}。
+     *
+     * @param word 词
+     * @return 词的编号。若不存在该词则返回-1，若该词是数字则返回-2。
+     */
+    @Override
+    public int getWordNumber(String word) {
+        int wordNumber = segments[0].bank.getWordNumber(word);
+        if (wordNumber >= 0) {
+            return wordNumber;
+        }
+        Integer extraWordNumber = extraWordNumbers.get(word);
+        return extraWordNumber == null ? wordNumber : extraWordNumber;
+    }
+
+    /**
+     * 通过词编号获得词。
+     *
+     * @param wordNumber 词编号
+     * @return 词
+     */
+    @Override
+    public String getWord(int wordNumber) {
+        int baseWordCount = segments[0].bank.getWordCount();
+        return wordNumber < baseWordCount ? segments[0].bank.getWord(wordNumber) : extraWords[wordNumber - baseWordCount];
+    }
+
+    /**
+     * 获得所有段中不同的词的总数。
+     *
+     * @return 词的总数
+     */
+    public int getWordCount() {
+        return segments[0].bank.getWordCount() + extraWords.length;
+    }
+
+    /**
+     * 倒排表迭代器。依次在每一段中遍历一个词的倒排表，跳过已被删除的问答对，给出统一编排的问答对编号，不生成任何对象。
+     * 同一个迭代器不能同时被多个线程使用。
+     */
+    public final class PostingIterator {
+        private final ChatBank.PostingIterator[] iterators = new ChatBank.PostingIterator[segments.length];
+        private int wordNumber;
+        private int segment;    //正在遍历的段
+        private int chatPair;
+
+        private PostingIterator() {
+            for (int i = 0; i < segments.length; ++i) {
+                iterators[i] = segments[i].bank.newPostingIterator();
+            }
+        }
+
+        /**
+         * 开始遍历另一个词的倒排表。
+         *
+         * @param wordNumber 词编号
+         */
+        public void reset(int wordNumber) {
+            this.wordNumber = wordNumber;
+            segment = -1;
+            nextSegment();
+        }
+
+        //移动到下一个含有该词的段
+        private void nextSegment() {
+            while (++segment < segments.length) {
+                int localWord = segments[segment].toLocalWord(wordNumber);
+                if (localWord >= 0) {
+                    iterators[segment].reset(localWord);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 移动到下一项。
+         *
+         * @return 若还有下一项则返回{@code true}，否则返回{@code false}。
+         */
+        public boolean next() {
+            while (segment < segments.length) {
+                if (iterators[segment].next()) {
+                    int localPair = iterators[segment].getChatPairNumber();
+                    if (!segments[segment].deletedPairs.get(localPair)) {
+                        chatPair = segments[segment].pairOffset + localPair;
+                        return true;
+                    }
+                }
+                else {
+                    nextSegment();
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 获得当前项的问答对编号。
+         */
+        public int getChatPairNumber() {
+            return chatPair;
+        }
+    }
+
+    /**
+     * 创建一个在本实例上使用的倒排表迭代器。
+     *
+     * @return 倒排表迭代器
+     */
+    public PostingIterator newPostingIterator() {
+        return new PostingIterator();
+    }
+
+    /**
+     * 获得包含给定词的问答对的个数上限(各段的倒排表长度之和，含已删除的问答对)。
+     *
+     * @param wordNumber 词编号
+     * @return 倒排表长度之和
+     */
+    public int getPostingCount(int wordNumber) {
+        int count = 0;
+        for (Segment segment : segments) {
+            int localWord = segment.toLocalWord(wordNumber);
+            if (localWord >= 0) {
+                count += segment.bank.getPostingCount(localWord);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 获得词的文档频率，即各段中问句含有该词的问答对的个数之和，含已删除的问答对。
+     *
+     * @param wordNumber 词编号
+     * @return 文档频率
+     */
+    public int getDocumentFrequency(int wordNumber) {
+        return getPostingCount(wordNumber);
+    }
+
+    //生成候选集时使用的文档频率上限(问答对个数)，取基础样本库的设置，见ChatBank.setDocumentFrequencyCeiling。
+    //检索向量中所有的词都超过上限时不做限制，以免候选集为空
+    private int getCandidateDocumentFrequencyLimit(int[] words, int wordCount) {
+        double ceiling = origin.getDocumentFrequencyCeiling();
+        if (ceiling < 1) {
+            int limit = (int) (ceiling * pairCount);
+            for (int i = 0; i < wordCount; ++i) {
+                if (getPostingCount(words[i]) <= limit) {
+                    return limit;
+                }
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    //获得问答对所在的段
+    private Segment getSegmentOfPair(int chatPairNumber) {
+        int i = segments.length - 1;
+        while (chatPairNumber < segments[i].pairOffset) {
+            --i;
+        }
+        return segments[i];
+    }
+
+    /**
+     * 计算问答对的问句向量与一个检索向量的夹角余弦，参见{@link ChatBank.QuestionMatrix#calculateCosine}。
+     *
+     * @param chatPairNumber 问答对编号
+     * @param words 检索向量中的词，按升序排列
+     * @param weights 检索向量中各词的权值
+     * @param wordCount 检索向量中词的个数
+     * @param module2 检索向量的模平方
+     * @return 夹角余弦
+     */
+    public double calculateCosine(int chatPairNumber, int[] words, double[] weights, int wordCount, double module2) {
+        Segment segment = getSegmentOfPair(chatPairNumber);
+        return segment.matrix.calculateCosine(segment.matrix.getQuestionOfPair(chatPairNumber - segment.pairOffset), words, weights, wordCount, module2);
+    }
+
+    //在各段中查找检索二元词组，返回各段中找到的二元词组在段内二元词组表中的序号，没有二元词组索引的段为null。
+    //只出现在被删除的问答对中的二元词组视为不存在，与合并后的样本库一致。
+    //基础样本库关闭了二元词组候选集或者所有的段中都找不到任何检索二元词组时返回null
+    private int[][] findBigrams(int[] bigrams, int bigramCount) {
+        if (!origin.isBigramCandidates() || bigramCount == 0) {
+            return null;
+        }
+        int[][] found = new int[segments.length][];
+        boolean any = false;
+        for (int s = 0; s < segments.length; ++s) {
+            Segment segment = segments[s];
+            if (!segment.bank.hasBigramIndex()) {
+                continue;
+            }
+            int[] segmentFound = new int[bigramCount];
+            int foundCount = 0;
+            for (int i = 0; i < bigramCount; ++i) {
+                int firstWord = segment.toLocalWord(bigrams[i * 2]);
+                int secondWord = segment.toLocalWord(bigrams[i * 2 + 1]);
+                int bigram = firstWord < 0 || secondWord < 0 ? -1 : segment.bank.findBigram(firstWord, secondWord);
+                if (bigram >= 0 && hasLivePosting(segment, bigram)) {
+                    segmentFound[foundCount++] = bigram;
+                }
+            }
+            found[s] = Arrays.copyOf(segmentFound, foundCount);
+            any |= foundCount > 0;
+        }
+        return any ? found : null;
+    }
+
+    //二元词组是否出现在段中未被删除的问答对中
+    private static boolean hasLivePosting(Segment segment, int bigram) {
+        if (segment.deletedPairs.isEmpty()) {
+            return true;
+        }
+        ChatBank.PostingIterator postingIterator = segment.bank.newPostingIterator();
+        postingIterator.resetBigram(bigram);
+        while (postingIterator.next()) {
+            if (!segment.deletedPairs.get(postingIterator.getChatPairNumber())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 检索与检索向量夹角余弦最大的问句，参见{@link SearchableChatBank#search}。所有的段在调用线程中依次检索。
+     * 文档频率超过基础样本库所设上限的词不用于生成候选集，见{@link ChatBank#setDocumentFrequencyCeiling}。
+     * 二元词组的设置同样取基础样本库的设置，见{@link ChatBank#setBigramCandidates}。以二元词组生成候选集时，没有二元词组索引的段仍由单个词生成候选集。
+     */
+    @Override
+    public SearchResult search(int[] words, double[] weights, int wordCount, double module2, int[] bigrams, int bigramCount, int chatContext, int chatPairContext) {
+        //准备候选集
+        //答句候选集，保存问答对编号，排序去重后按编号递增
+        int limit = getCandidateDocumentFrequencyLimit(words, wordCount);
+        int[][] foundBigrams = findBigrams(bigrams, bigramCount);
+        int[] alterSet;
+        int[] matchCounts = null;
+        int distinctCount;
+        if (foundBigrams != null) {
+            //候选项的存储方式见ChatBank.collapseBigramCandidates
+            int alterCount = 0;
+            for (int s = 0; s < segments.length; ++s) {
+                Segment segment = segments[s];
+                if (foundBigrams[s] != null) {
+                    for (int bigram : foundBigrams[s]) {
+                        alterCount += segment.bank.getBigramPostingCountAt(bigram);
+                    }
+                    continue;
+                }
+                for (int i = 0; i < wordCount; ++i) {
+                    int localWord = segment.toLocalWord(words[i]);
+                    if (localWord >= 0 && getPostingCount(words[i]) <= limit) {
+                        alterCount += segment.bank.getPostingCount(localWord);
+                    }
+                }
+            }
+            int contextBegin = 0;
+            int contextEnd = 0;
+            Segment contextSegment = null;
+            if (chatContext >= 0) {
+                int s = segments.length - 1;
+                while (chatContext < segments[s].chatOffset) {
+                    --s;
+                }
+                contextSegment = segments[s];
+                contextBegin = contextSegment.bank.getFirstPairOfChat(chatContext - contextSegment.chatOffset);
+                contextEnd = contextSegment.bank.getFirstPairOfChat(chatContext - contextSegment.chatOffset + 1);
+            }
+            alterSet = new int[alterCount + contextEnd - contextBegin];
+            alterCount = 0;
+            for (int s = 0; s < segments.length; ++s) {
+                Segment segment = segments[s];
+                ChatBank.PostingIterator postingIterator = segment.bank.newPostingIterator();
+                if (foundBigrams[s] != null) {
+                    for (int bigram : foundBigrams[s]) {
+                        postingIterator.resetBigram(bigram);
+                        while (postingIterator.next()) {
+                            int localPair = postingIterator.getChatPairNumber();
+                            if (!segment.deletedPairs.get(localPair)) {
+                                alterSet[alterCount++] = (segment.pairOffset + localPair) << 1 | 1;
+                            }
+                        }
+                    }
+                    continue;
+                }
+                for (int i = 0; i < wordCount; ++i) {
+                    int localWord = segment.toLocalWord(words[i]);
+                    if (localWord < 0 || getPostingCount(words[i]) > limit) {
+                        continue;
+                    }
+                    postingIterator.reset(localWord);
+                    while (postingIterator.next()) {
+                        int localPair = postingIterator.getChatPairNumber();
+                        if (!segment.deletedPairs.get(localPair)) {
+                            alterSet[alterCount++] = (segment.pairOffset + localPair) << 1;
+                        }
+                    }
+                }
+            }
+            for (int i = contextBegin; i < contextEnd; ++i) {
+                if (!contextSegment.deletedPairs.get(i)) {
+                    alterSet[alterCount++] = (contextSegment.pairOffset + i) << 1;
+                }
+            }
+            matchCounts = new int[alterCount];
+            distinctCount = ChatBank.collapseBigramCandidates(alterSet, alterCount, matchCounts);
+        }
+        else {
+            int alterCount = 0;
+            for (int i = 0; i < wordCount; ++i) {
+                int postingCount = getPostingCount(words[i]);
+                if (postingCount <= limit) {
+                    alterCount += postingCount;
+                }
+            }
+            alterSet = new int[alterCount];
+            alterCount = 0;
+            PostingIterator postingIterator = newPostingIterator();
+            for (int i = 0; i < wordCount; ++i) {
+                if (getPostingCount(words[i]) > limit) {
+                    continue;
+                }
+                postingIterator.reset(words[i]);
+                while (postingIterator.next()) {
+                    alterSet[alterCount++] = postingIterator.getChatPairNumber();
+                }
+            }
+            Arrays.sort(alterSet, 0, alterCount);
+            distinctCount = alterCount == 0 ? 0 : 1;
+            for (int i = 1; i < alterCount; ++i) {
+                if (alterSet[i] != alterSet[distinctCount - 1]) {
+                    alterSet[distinctCount++] = alterSet[i];
+                }
+            }
+        }
+        double boost = matchCounts == null ? 0 : origin.getBigramBoost() / bigramCount;
+
+        //计算该向量与备选集中向量的夹角余弦最大值。同一段中问句相同的问答对只计算一次，以问句的统一编号区分
+        ChatBank.ScoreCache scoreCache = new ChatBank.ScoreCache(distinctCount);
+        double max = 0;
+        int maxPosition = -1;
+        for (int i = 0; i < distinctCount; ++i) {
+            int chatPairNumber = alterSet[i];
+            Segment segment = getSegmentOfPair(chatPairNumber);
+            int question = segment.matrix.getQuestionOfPair(chatPairNumber - segment.pairOffset);
+            double cosine;
+            if (scoreCache.find(segment.questionOffset + question)) {
+                cosine = scoreCache.get();
+            }
+            else {
+                cosine = segment.matrix.calculateCosine(question, words, weights, wordCount, module2);
+                scoreCache.put(segment.questionOffset + question, cosine);
+            }
+            //含有检索二元词组的问句加分
+            if (boost > 0) {
+                cosine *= 1 + boost * matchCounts[i];
+            }
+            //与chatPairContext属于同一对话的其它句子将具有更高的权值：
+            if (getChatNumberOfPair(chatPairNumber) == chatContext && chatPairNumber != chatPairContext) {
+                cosine *= 5;
+            }
+            if (cosine > max) {
+                maxPosition = chatPairNumber;
+                max = cosine;
+            }
+        }
+        return new SearchResult(maxPosition, maxPosition == -1 ? -1 : getChatNumberOfPair(maxPosition), max, distinctCount);
+    }
+
+    /**
+     * 通过问答对编号获得问答对。
+     *
+     * @param chatPairNumber 问答对编号
+     * @return 问答对
+     */
+    @Override
+    public ChatBank.ChatPair getChatPair(int chatPairNumber) {
+        Segment segment = getSegmentOfPair(chatPairNumber);
+        return segment.bank.getChatPair(chatPairNumber - segment.pairOffset);
+    }
+
+    /**
+     * 获得问答对所属的对话编号。
+     *
+     * @param chatPairNumber 问答对编号
+     * @return 对话编号
+     */
+    public int getChatNumberOfPair(int chatPairNumber) {
+        Segment segment = getSegmentOfPair(chatPairNumber);
+        return segment.chatOffset + segment.bank.getChatNumberOfPair(chatPairNumber - segment.pairOffset);
+    }
+
+    /**
+     * 获得所有段中问答对的总数，含已删除的问答对。
+     *
+     * @return 问答对的总数
+     */
+    public int getChatPairCount() {
+        return pairCount;
+    }
+
+    /**
+     * 获得所有段中已被墓碑删除的问答对的个数。
+     *
+     * @return 已删除的问答对的个数
+     */
+    public int getDeletedChatPairCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.deletedPairs.cardinality();
+        }
+        return count;
+    }
+
+    /**
+     * 获得所有段中对话的总数，含已删除的对话。
+     *
+     * @return 对话的总数
+     */
+    public int getChatCount() {
+        return chatCount;
+    }
+}
@@ -0,0 +1,495 @@
+package com.davidsoft.natural.chinese;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * 分片的对话样本库。
+ *
+ * 编译时按对话编号把对话划分为若干个连续的区间，每个区间编译为一个独立的样本库文件，即一个分片(见{@link ChatBank#compileShards})，
+ * 再由一个清单文件按顺序列出各分片文件。每个分片有自己的词表，可以单独映射、校验，单个分片的规模不受整个样本库规模的限制。
+ * 检索时各分片在{@link ForkJoinPool#commonPool}中并行生成候选集、计算夹角余弦并给出各自的最佳问答对，最后归并为整体的结果。
+ *
+ * 词编号是所有分片中的词按升序排列后的位置，问答对和对话编号按分片的顺序连续编排，
+ * 因此与把相同的源文件编译为单个样本库时的编号完全相同，检索结果也完全相同。
+ * 本类的对象一经创建就不再修改，可以被多个线程同时检索。
+ */
+public final class ShardedChatBank implements SearchableChatBank {
+
+    //对象管理
+
+    //默认的清单文件
+    private static final String DEFAULT_MANIFEST = "ChineseChats.shards";
+
+    private static volatile ShardedChatBank instance = null;
+    private static volatile boolean instanceLoaded = false;
+    private static final Object instanceLock = new Object();
+
+    /**
+     * 获得默认的分片样本库(清单文件为ChineseChats.shards)的实例。只在第一次调用时尝试加载。
+     *
+     * 分片样本库不支持重新加载、追加和合并，有分片样本库时{@link SegmentedChatBank#append}和{@link SegmentedChatBank#compact}将抛出异常。
+     *
+     * @return 分片样本库的实例。没有清单文件或无法加载时返回{@code null}，此时应使用{@link SegmentedChatBank}。
+     */
+    public static ShardedChatBank getInstance() {
+        if (!instanceLoaded) {
+            synchronized (instanceLock) {
+                if (!instanceLoaded) {
+                    File manifest = new File(DEFAULT_MANIFEST);
+                    if (manifest.isFile()) {
+                        try {
+                            instance = load(manifest);
+                        }
+                        catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    instanceLoaded = true;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 从清单文件加载分片样本库，各分片以{@link ChatBank.LoadMode#MAPPED}方式加载。
+     *
+     * @param manifest 清单文件
+     * @return 分片样本库
+     *
+     * @throws IOException 当读取文件发生IO异常或文件格式不正确时
+     */
+    public static ShardedChatBank load(File manifest) throws IOException {
+        return load(manifest, ChatBank.LoadMode.MAPPED);
+    }
+
+    /**
+     * 从清单文件加载分片样本库。清单文件为UTF-8编码的文本，每行一个分片文件名，相对路径相对于清单文件所在的文件夹。
+     *
+     * @param manifest 清单文件
+     * @param mode 各分片的加载方式
+     * @return 分片样本库
+     *
+     * @throws IOException 当读取文件发生IO异常或文件格式不正确时
+     */
+    public static ShardedChatBank load(File manifest, ChatBank.LoadMode mode) throws IOException {
+        File[] shardFiles = readManifest(manifest);
+        if (shardFiles.length == 0) {
+            throw new IOException("分片清单中没有分片：" + manifest.getPath());
+        }
+        ChatBank[] banks = new ChatBank[shardFiles.length];
+        for (int i = 0; i < shardFiles.length; ++i) {
+            banks[i] = ChatBank.load(shardFiles[i], mode);
+        }
+        return new ShardedChatBank(banks);
+    }
+
+    /**
+     * 读取清单文件，获得其中按顺序列出的各分片文件。
+     *
+     * @param manifest 清单文件
+     * @return 各分片文件，相对路径已换算为相对于清单文件所在的文件夹
+     *
+     * @throws IOException 当读取文件发生IO异常时
+     */
+    public static File[] readManifest(File manifest) throws IOException {
+        File directory = manifest.getAbsoluteFile().getParentFile();
+        ArrayList<File> shardFiles = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0) {
+                    File file = new File(line);
+                    shardFiles.add(file.isAbsolute() ? file : new File(directory, line));
+                }
+            }
+        }
+        return shardFiles.toArray(new File[0]);
+    }
+
+    /**
+     * 写出清单文件。
+     *
+     * @param shardFileNames 按顺序排列的各分片文件名
+     * @param out 输出流
+     *
+     * @throws IOException 当向输出流{@code out}写入数据发生IO异常时
+     */
+    public static void writeManifest(String[] shardFileNames, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        for (String shardFileName : shardFileNames) {
+            writer.write(shardFileName);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    //对话样本库的数据结构
+
+    //一个分片
+    private final static class Shard {
+        private final ChatBank bank;
+        private final int pairOffset;           //本分片第一个问答对的编号
+        private final int chatOffset;           //本分片第一个对话的编号
+        private final int[] localToGlobal;      //段内编号对应的统一编号。两者顺序一致，因此是严格递增的
+
+        private Shard(ChatBank bank, int pairOffset, int chatOffset, int[] localToGlobal) {
+            this.bank = bank;
+            this.pairOffset = pairOffset;
+            this.chatOffset = chatOffset;
+            this.localToGlobal = localToGlobal;
+        }
+
+        //将统一的词编号换算为分片内编号，本分片中没有该词时返回-1
+        private int toLocalWord(int wordNumber) {
+            int localWord = Arrays.binarySearch(localToGlobal, wordNumber);
+            return localWord < 0 ? -1 : localWord;
+        }
+    }
+
+    private final Shard[] shards;
+    private final int wordCount;
+    private final int pairCount;
+    private final int chatCount;
+    //生成候选集时的文档频率上限，作用于所有分片的文档频率之和，不设置到各分片
+    private volatile double documentFrequencyCeiling = 1;
+    private volatile int documentFrequencyLimit = Integer.MAX_VALUE;
+
+    //把各样本库的词表按升序归并为统一的词编号，localToGlobals[i]中依次填入第i个样本库中各词的统一编号，返回不同的词的总数
+    static int mergeVocabularies(ChatBank[] banks, int[][] localToGlobals) {
+        String[] heads = new String[banks.length];
+        int[] positions = new int[banks.length];
+        for (int i = 0; i < banks.length; ++i) {
+            localToGlobals[i] = new int[banks[i].getWordCount()];
+            heads[i] = banks[i].getWordCount() > 0 ? banks[i].getWord(0) : null;
+        }
+        int wordNumber = 0;
+        while (true) {
+            String min = null;
+            for (String head : heads) {
+                if (head != null && (min == null || head.compareTo(min) < 0)) {
+                    min = head;
+                }
+            }
+            if (min == null) {
+                return wordNumber;
+            }
+            for (int i = 0; i < banks.length; ++i) {
+                if (min.equals(heads[i])) {
+                    localToGlobals[i][positions[i]++] = wordNumber;
+                    heads[i] = positions[i] < banks[i].getWordCount() ? banks[i].getWord(positions[i]) : null;
+                }
+            }
+            ++wordNumber;
+        }
+    }
+
+    private ShardedChatBank(ChatBank[] banks) {
+        int[][] localToGlobals = new int[banks.length][];
+        wordCount = mergeVocabularies(banks, localToGlobals);
+
+        shards = new Shard[banks.length];
+        int pairOffset = 0;
+        int chatOffset = 0;
+        for (int i = 0; i < banks.length; ++i) {
+            shards[i] = new Shard(banks[i], pairOffset, chatOffset, localToGlobals[i]);
+            pairOffset += banks[i].getChatPairCount();
+            chatOffset += banks[i].getChatCount();
+        }
+        pairCount = pairOffset;
+        chatCount = chatOffset;
+    }
+
+    //查询
+
+    /**
+     * 获得本样本库的代数。分片样本库不支持重新加载，总是第0代。
+     *
+     * @return 代数
+     */
+    @Override
+    public int getGeneration() {
+        return 0;
+    }
+
+    /**
+     * 将之前某一代样本库中的词编号换算为本样本库中的词编号。分片样本库只有第0代。
+     *
+     * @param wordNumber 旧的词编号
+     * @param fromGeneration 旧样本库的代数
+     * @return 本样本库中的词编号，无法换算时返回-1
+     */
+    @Override
+    public int remapWord(int wordNumber, int fromGeneration) {
+        return fromGeneration == 0 ? wordNumber : -1;
+    }
+
+    /**
+     * 获得分片的个数。
+     *
+     * @return 分片的个数
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * 通过给定词获得其编号，含义同{@link ChatBank#getWordNumber}。
+     *
+     * @param word 词
+     * @return 词的编号。若不存在该词则返回-1，若该词是数字则返回-2。
+     */
+    @Override
+    public int getWordNumber(String word) {
+        int localWord = -1;
+        for (Shard shard : shards) {
+            localWord = shard.bank.getWordNumber(word);
+            if (localWord >= 0) {
+                return shard.localToGlobal[localWord];
+            }
+        }
+        return localWord;
+    }
+
+    /**
+     * 通过词编号获得词。
+     *
+     * @param wordNumber 词编号
+     * @return 词
+     */
+    @Override
+    public String getWord(int wordNumber) {
+        for (Shard shard : shards) {
+            int localWord = shard.toLocalWord(wordNumber);
+            if (localWord >= 0) {
+                return shard.bank.getWord(localWord);
+            }
+        }
+        throw new IndexOutOfBoundsException("wordNumber = " + wordNumber + ", wordCount = " + wordCount);
+    }
+
+    /**
+     * 获得所有分片中不同的词的总数。
+     *
+     * @return 词的总数
+     */
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    /**
+     * 获得词的文档频率，即各分片中问句含有该词的问答对的个数之和。
+     *
+     * @param wordNumber 词编号
+     * @return 文档频率
+     */
+    public int getDocumentFrequency(int wordNumber) {
+        int frequency = 0;
+        for (Shard shard : shards) {
+            int localWord = shard.toLocalWord(wordNumber);
+            if (localWord >= 0) {
+                frequency += shard.bank.getDocumentFrequency(localWord);
+            }
+        }
+        return frequency;
+    }
+
+    /**
+     * 设置生成候选集时的文档频率上限，见{@link ChatBank#setDocumentFrequencyCeiling}。
+     * 上限按所有分片的问答对总数换算，与词在所有分片中的文档频率之和比较，对所有的分片统一决定哪些词用于生成候选集，
+     * 因此检索结果与单个样本库设置相同的上限时完全相同。
+     *
+     * @param ceiling 上限占问答对总数的比例，取值范围为(0, 1]，为1时不做限制
+     */
+    public void setDocumentFrequencyCeiling(double ceiling) {
+        if (!(ceiling > 0 && ceiling <= 1)) {
+            throw new IllegalArgumentException("ceiling = " + ceiling);
+        }
+        documentFrequencyCeiling = ceiling;
+        documentFrequencyLimit = ceiling >= 1 ? Integer.MAX_VALUE : (int) (ceiling * pairCount);
+    }
+
+    /**
+     * 获得生成候选集时的文档频率上限，见{@link #setDocumentFrequencyCeiling}。
+     *
+     * @return 上限占问答对总数的比例
+     */
+    public double getDocumentFrequencyCeiling() {
+        return documentFrequencyCeiling;
+    }
+
+    /**
+     * 设置各分片是否以二元词组生成候选集，见{@link ChatBank#setBigramCandidates}。
+     * 是否使用二元词组对所有的分片统一决定：只要有一个分片中含有检索二元词组，所有有二元词组索引的分片都以二元词组生成候选集。
+     *
+     * @param bigramCandidates 为{@code true}时以二元词组生成候选集
+     */
+    public void setBigramCandidates(boolean bigramCandidates) {
+        for (Shard shard : shards) {
+            shard.bank.setBigramCandidates(bigramCandidates);
+        }
+    }
+
+    /**
+     * 设置各分片中含有检索二元词组的问句的加分，见{@link ChatBank#setBigramBoost}。
+     *
+     * @param boost 加分系数，不小于0
+     */
+    public void setBigramBoost(double boost) {
+        for (Shard shard : shards) {
+            shard.bank.setBigramBoost(boost);
+        }
+    }
+
+    //把检索二元词组换算为分片内的编号，略去分片中没有的词组成的二元词组，返回换算后的个数
+    private static int toLocalBigrams(Shard shard, int[] bigrams, int bigramCount, int[] localBigrams) {
+        int localBigramCount = 0;
+        for (int i = 0; i < bigramCount; ++i) {
+            int firstWord = shard.toLocalWord(bigrams[i * 2]);
+            int secondWord = shard.toLocalWord(bigrams[i * 2 + 1]);
+            if (firstWord >= 0 && secondWord >= 0) {
+                localBigrams[localBigramCount * 2] = firstWord;
+                localBigrams[localBigramCount * 2 + 1] = secondWord;
+                ++localBigramCount;
+            }
+        }
+        return localBigramCount;
+    }
+
+    /**
+     * 检索与检索向量夹角余弦最大的问句，参见{@link SearchableChatBank#search}。
+     * 第一个分片在调用线程中检索，其余分片同时在{@link ForkJoinPool#commonPool}中检索。
+     */
+    @Override
+    public SearchResult search(int[] words, double[] weights, int wordCount, double module2, int[] bigrams, int bigramCount, int chatContext, int chatPairContext) {
+        //先在调用线程中决定是否使用二元词组，查找二元词组只是二分查找，代价很小
+        int[][] localBigrams = new int[shards.length][bigramCount * 2];
+        int[] localBigramCounts = new int[shards.length];
+        boolean useBigrams = false;
+        for (int i = 0; i < shards.length; ++i) {
+            localBigramCounts[i] = toLocalBigrams(shards[i], bigrams, bigramCount, localBigrams[i]);
+            useBigrams |= shards[i].bank.useBigramCandidates(localBigrams[i], localBigramCounts[i]);
+        }
+        boolean finalUseBigrams = useBigrams;
+        //文档频率同样按所有分片之和统一决定，见ChatBank.selectCandidateWords
+        boolean[] candidateWords = null;
+        int limit = documentFrequencyLimit;
+        if (limit != Integer.MAX_VALUE) {
+            int[] frequencies = new int[wordCount];
+            for (int i = 0; i < wordCount; ++i) {
+                frequencies[i] = getDocumentFrequency(words[i]);
+            }
+            candidateWords = ChatBank.selectCandidateWords(frequencies, wordCount, limit);
+        }
+        boolean[] finalCandidateWords = candidateWords;
+        ArrayList<ForkJoinTask<SearchResult>> tasks = new ArrayList<>(shards.length - 1);
+        for (int i = 1; i < shards.length; ++i) {
+            Shard shard = shards[i];
+            int[] shardBigrams = localBigrams[i];
+            int shardBigramCount = localBigramCounts[i];
+            tasks.add(ForkJoinTask.adapt(() -> searchShard(shard, words, weights, wordCount, module2,
+                    shardBigrams, shardBigramCount, finalUseBigrams, finalCandidateWords, chatContext, chatPairContext)).fork());
+        }
+        SearchResult best = searchShard(shards[0], words, weights, wordCount, module2,
+                localBigrams[0], localBigramCounts[0], useBigrams, candidateWords, chatContext, chatPairContext);
+
+        //归并各分片的结果。分片按问答对编号的顺序排列，得分相同时保留靠前的分片的结果，与不分片时一致
+        int candidateCount = best.getCandidateCount();
+        for (ForkJoinTask<SearchResult> task : tasks) {
+            SearchResult result = task.join();
+            candidateCount += result.getCandidateCount();
+            if (result.getCosine() > best.getCosine()) {
+                best = result;
+            }
+        }
+        return new SearchResult(best.getChatPairNumber(), best.getChatNumber(), best.getCosine(), candidateCount);
+    }
+
+    //在一个分片中检索，返回的编号为统一编号。二元词组已换算为分片内的编号，candidateWords与检索向量对应，为null时所有的词都用于生成候选集
+    private static SearchResult searchShard(Shard shard, int[] words, double[] weights, int wordCount, double module2,
+                                            int[] localBigrams, int localBigramCount, boolean useBigrams, boolean[] candidateWords,
+                                            int chatContext, int chatPairContext) {
+        //把检索向量换算为分片内的编号。两种编号的顺序一致，换算后仍按升序排列；分片中没有的词对点积没有贡献，直接略去，模平方不变
+        int[] localWords = new int[wordCount];
+        double[] localWeights = new double[wordCount];
+        boolean[] localCandidateWords = candidateWords == null ? null : new boolean[wordCount];
+        int localWordCount = 0;
+        for (int i = 0; i < wordCount; ++i) {
+            int localWord = shard.toLocalWord(words[i]);
+            if (localWord >= 0) {
+                localWords[localWordCount] = localWord;
+                localWeights[localWordCount] = weights[i];
+                if (localCandidateWords != null) {
+                    localCandidateWords[localWordCount] = candidateWords[i];
+                }
+                ++localWordCount;
+            }
+        }
+        //上下文不在本分片中时换算为-1
+        boolean contextInShard = chatContext >= shard.chatOffset && chatContext < shard.chatOffset + shard.bank.getChatCount();
+        SearchResult result = shard.bank.search(localWords, localWeights, localWordCount, module2, localBigrams, localBigramCount, useBigrams,
+                localCandidateWords, contextInShard ? chatContext - shard.chatOffset : -1,
+                contextInShard ? chatPairContext - shard.pairOffset : -1, null);
+        if (result.getChatPairNumber() == -1) {
+            return result;
+        }
+        return new SearchResult(shard.pairOffset + result.getChatPairNumber(), shard.chatOffset + result.getChatNumber(),
+                result.getCosine(), result.getCandidateCount());
+    }
+
+    //获得问答对所在的分片
+    private Shard getShardOfPair(int chatPairNumber) {
+        int i = shards.length - 1;
+        while (chatPairNumber < shards[i].pairOffset) {
+            --i;
+        }
+        return shards[i];
+    }
+
+    /**
+     * 通过问答对编号获得问答对。
+     *
+     * @param chatPairNumber 问答对编号
+     * @return 问答对
+     */
+    @Override
+    public ChatBank.ChatPair getChatPair(int chatPairNumber) {
+        Shard shard = getShardOfPair(chatPairNumber);
+        return shard.bank.getChatPair(chatPairNumber - shard.pairOffset);
+    }
+
+    /**
+     * 获得问答对所属的对话编号。
+     *
+     * @param chatPairNumber 问答对编号
+     * @return 对话编号
+     */
+    public int getChatNumberOfPair(int chatPairNumber) {
+        Shard shard = getShardOfPair(chatPairNumber);
+        return shard.chatOffset + shard.bank.getChatNumberOfPair(chatPairNumber - shard.pairOffset);
+    }
+
+    /**
+     * 获得所有分片中问答对的总数。
+     *
+     * @return 问答对的总数
+     */
+    public int getChatPairCount() {
+        return pairCount;
+    }
+
+    /**
+     * 获得所有分片中对话的总数。
+     *
+     * @return 对话的总数
+     */
+    public int getChatCount() {
+        return chatCount;
+    }
+}
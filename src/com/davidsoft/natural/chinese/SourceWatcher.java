@@ -0,0 +1,242 @@
+package com.davidsoft.natural.chinese;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 源文件监视器。编写语料时监视对话样本源文件目录和随机回应源文件目录，源文件改动后只重新编译改动过的源文件，
+ * 并在不重启对话系统的情况下使改动生效。
+ *
+ * 对话样本：监视开始时记住每个源文件的内容。源文件改动后，以改动前的内容生成墓碑、以改动后的内容编译对话，得到一个增量样本库，
+ * 追加在当前的{@link SegmentedChatBank}之后(墓碑按内容删除旧的对话，见{@link ChatBank#compileDelta})。因此监视开始时样本库应当由当时的源文件编译而成，
+ * 监视期间也不应重新加载基础样本库。增量样本库积累到一定数目后会在后台自动合并。
+ * 有分片样本库时对话系统只检索分片样本库，追加的增量样本库不会生效，因此不能开始监视。
+ * 随机回应：改动过的源文件重新读取后通过{@link RandomResponseBank#updateSourceFiles}替换当前实例。
+ *
+ * 编辑器保存一个文件时往往产生多个事件，监视器在事件停止{@value #QUIET_MILLIS}毫秒后才处理这一批改动，处理完成后输出从发现改动到生效的延迟。
+ * 改动只在内存中生效，不写回库文件，编写完成后仍需重新构建全部的库。
+ */
+public final class SourceWatcher implements Closeable {
+
+    //最后一个事件之后等待的时间，期间的新事件归入同一批改动
+    private static final long QUIET_MILLIS = 200;
+
+    private final File chatSourceDirectory;
+    private final File randomSourceDirectory;
+    private final WatchService watchService;
+    private final WatchKey chatKey;
+    //对话样本源文件名→最近一次生效的内容，只在监视线程中访问
+    private final HashMap<String, byte[]> chatSnapshots = new HashMap<>();
+    private final Thread thread;
+
+    private SourceWatcher(File chatSourceDirectory, File randomSourceDirectory) throws IOException {
+        this.chatSourceDirectory = chatSourceDirectory;
+        this.randomSourceDirectory = randomSourceDirectory;
+        watchService = chatSourceDirectory.toPath().getFileSystem().newWatchService();
+        try {
+            chatKey = register(chatSourceDirectory);
+            register(randomSourceDirectory);
+            for (String name : listSourceFiles(chatSourceDirectory)) {
+                chatSnapshots.put(name, Files.readAllBytes(new File(chatSourceDirectory, name).toPath()));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            watchService.close();
+            throw e;
+        }
+        thread = new Thread(this::run, "SourceWatcher");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * 开始监视源文件目录。监视在后台线程中进行，直到调用{@link #close}。
+     *
+     * @param chatSourceDirectory 对话样本源文件目录
+     * @param randomSourceDirectory 随机回应源文件目录
+     * @return 监视器
+     *
+     * @throws IOException 当目录不存在或无法监视时
+     * @throws IllegalStateException 当使用分片样本库时(见{@link ShardedChatBank#getInstance})
+     */
+    public static SourceWatcher start(File chatSourceDirectory, File randomSourceDirectory) throws IOException {
+        if (ShardedChatBank.getInstance() != null) {
+            throw new IllegalStateException("使用分片样本库时不支持监视源文件。");
+        }
+        SourceWatcher watcher = new SourceWatcher(chatSourceDirectory, randomSourceDirectory);
+        watcher.thread.start();
+        return watcher;
+    }
+
+    /**
+     * 停止监视。正在处理的一批改动仍会处理完。
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private WatchKey register(File directory) throws IOException {
+        return directory.toPath().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    //列出目录中所有源文件的文件名
+    private static TreeSet<String> listSourceFiles(File directory) {
+        TreeSet<String> names = new TreeSet<>();
+        String[] list = directory.list((dir, name) -> name.endsWith(".txt"));
+        if (list != null) {
+            names.addAll(Arrays.asList(list));
+        }
+        return names;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                long detected = System.nanoTime();
+                //本批改动过的源文件名，事件丢失时为目录中的全部源文件
+                TreeSet<String> chatChanges = new TreeSet<>();
+                TreeSet<String> randomChanges = new TreeSet<>();
+                while (key != null) {
+                    TreeSet<String> changes = key == chatKey ? chatChanges : randomChanges;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            if (key == chatKey) {
+                                changes.addAll(chatSnapshots.keySet());
+                            }
+                            changes.addAll(listSourceFiles(key == chatKey ? chatSourceDirectory : randomSourceDirectory));
+                            continue;
+                        }
+                        String name = event.context().toString();
+                        if (name.endsWith(".txt")) {
+                            changes.add(name);
+                        }
+                    }
+                    if (!key.reset()) {
+                        System.out.println("警告：无法继续监视 " + key.watchable() + "。");
+                    }
+                    key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                //一批改动处理失败不影响之后的改动
+                try {
+                    if (!chatChanges.isEmpty()) {
+                        updateChats(chatChanges, detected);
+                    }
+                    if (!randomChanges.isEmpty()) {
+                        updateRandomResponses(randomChanges, detected);
+                    }
+                }
+                catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    System.out.println("错误：无法应用源文件的改动，继续使用原来的库。修正源文件后保存即可重试。");
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            //监视已停止
+        }
+    }
+
+    //以改动过的对话样本源文件编译增量样本库并追加在当前样本库之后
+    private void updateChats(TreeSet<String> names, long detected) throws IOException {
+        //改动前后的内容都复制到临时目录中编译，编译期间源文件再次被改动也不会使快照与实际生效的内容不一致
+        File temporaryDirectory = Files.createTempDirectory("chat_srcs").toFile();
+        File oldDirectory = new File(temporaryDirectory, "old");
+        File newDirectory = new File(temporaryDirectory, "new");
+        try {
+            if (!oldDirectory.mkdir() || !newDirectory.mkdir()) {
+                throw new IOException("无法创建临时目录 " + temporaryDirectory + "。");
+            }
+            ArrayList<File> sourceFiles = new ArrayList<>();
+            ArrayList<File> deletedSourceFiles = new ArrayList<>();
+            HashMap<String, byte[]> updated = new HashMap<>();
+            for (String name : names) {
+                File file = new File(chatSourceDirectory, name);
+                byte[] content = file.isFile() ? Files.readAllBytes(file.toPath()) : null;
+                byte[] snapshot = chatSnapshots.get(name);
+                if (Arrays.equals(content, snapshot)) {
+                    continue;
+                }
+                if (snapshot != null) {
+                    File deletedSourceFile = new File(oldDirectory, name);
+                    Files.write(deletedSourceFile.toPath(), snapshot);
+                    deletedSourceFiles.add(deletedSourceFile);
+                }
+                if (content != null) {
+                    File sourceFile = new File(newDirectory, name);
+                    Files.write(sourceFile.toPath(), content);
+                    sourceFiles.add(sourceFile);
+                }
+                updated.put(name, content);
+            }
+            if (updated.isEmpty()) {
+                return;
+            }
+
+            long begin = System.nanoTime();
+            ChatBank delta = ChatBank.compileDelta(sourceFiles.toArray(new File[0]), deletedSourceFiles.toArray(new File[0]),
+                    WordBank.getChineseInstance(), SynonymBank.getInstance());
+            long compiled = System.nanoTime();
+            SegmentedChatBank bank = SegmentedChatBank.append(delta);
+            long published = System.nanoTime();
+            for (Map.Entry<String, byte[]> entry : updated.entrySet()) {
+                if (entry.getValue() == null) {
+                    chatSnapshots.remove(entry.getKey());
+                }
+                else {
+                    chatSnapshots.put(entry.getKey(), entry.getValue());
+                }
+            }
+            System.out.printf("对话样本库已更新：%d个源文件改动，加入%d个对话和%d个墓碑(样本库共%d个段)；编译%.1fms，发布%.1fms，从发现改动到生效共%.1fms。%n",
+                    updated.size(), delta.getChatCount(), delta.getTombstoneCount(), bank.getSegmentCount(),
+                    (compiled - begin) / 1e6, (published - compiled) / 1e6, (published - detected) / 1e6);
+        }
+        finally {
+            deleteDirectory(temporaryDirectory);
+        }
+    }
+
+    //重新读取改动过的随机回应源文件并替换当前的随机回应库
+    private void updateRandomResponses(TreeSet<String> names, long detected) throws IOException {
+        ArrayList<File> sourceFiles = new ArrayList<>();
+        ArrayList<File> deletedSourceFiles = new ArrayList<>();
+        for (String name : names) {
+            File file = new File(randomSourceDirectory, name);
+            (file.isFile() ? sourceFiles : deletedSourceFiles).add(file);
+        }
+        long begin = System.nanoTime();
+        RandomResponseBank.updateSourceFiles(sourceFiles.toArray(new File[0]), deletedSourceFiles.toArray(new File[0]));
+        long published = System.nanoTime();
+        System.out.printf("随机回应库已更新：%d个源文件改动；读取并发布%.1fms，从发现改动到生效共%.1fms。%n",
+                names.size(), (published - begin) / 1e6, (published - detected) / 1e6);
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                }
+                else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+}
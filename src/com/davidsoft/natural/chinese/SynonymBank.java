@@ -183,6 +183,20 @@ public final class SynonymBank {
      * @throws IOException 当向输出流{@code out}写入数据发生IO异常时。
      */
     public static void compileSourceFile(File thesaurusSourceFile, File specialWordsSourceFile, WordBank wordBank, OutputStream out) throws IOException {
+        compileSourceFile(thesaurusSourceFile, specialWordsSourceFile, new SegmentationMemo(wordBank), out);
+    }
+
+    /**
+     * 通过源文件编译同义词库，在词典中查词时使用给定的分词缓存。同一个词在同义词源文件中往往出现在许多行中，只需查找一次。
+     *
+     * @param thesaurusSourceFile 同义词源文件
+     * @param specialWordsSourceFile 特殊词汇源文件
+     * @param segmentationMemo 分词缓存，其中包含编译所需的中文词典；编译结束后可以从中取得命中率
+     * @param out 输出
+     *
+     * @throws IOException 当向输出流{@code out}写入数据发生IO异常时。
+     */
+    public static void compileSourceFile(File thesaurusSourceFile, File specialWordsSourceFile, SegmentationMemo segmentationMemo, OutputStream out) throws IOException {
         ArrayList<String> escapedWords = new ArrayList<>();
         HashMap<String, Integer> escapes = new HashMap<>();
         Scanner scanner = new Scanner(new FileInputStream(thesaurusSourceFile), "GBK");
@@ -190,7 +204,7 @@ public final class SynonymBank {
             String[] segments = scanner.nextLine().split(" ");
             int validCount = 0;
             for (int i = 1; i < segments.length; ++i) {
-                if (wordBank.find(Utils.partDivide(segments[i]))) {
+                if (segmentationMemo.find(segments[i])) {
                     ++validCount;
                 }
                 else {
@@ -7,7 +7,9 @@ import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.Scanner;
 
 /**
  * 中文字典。
@@ -211,6 +213,32 @@ public final class WordBank {
         }
     }
 
+    /**
+     * 通过源文件编译中文词典。源文件为GBK编码，每条记录依次是词、词性和词频，以空白分隔，格式同{@link WordBankManager}的LoadSource命令。
+     *
+     * @param sourceFile 词典源文件
+     * @param out 输出
+     *
+     * @throws IOException 当读取源文件或向输出流{@code out}写入数据发生IO异常时，或源文件中的记录有误时。
+     */
+    public static void compileSourceFile(File sourceFile, OutputStream out) throws IOException {
+        WordBank bank = new WordBank();
+        int i = 0;
+        try (Scanner scanner = new Scanner(new FileInputStream(sourceFile), "GBK")) {
+            while (scanner.hasNext()) {
+                String word = scanner.next();
+                ++i;
+                PartOfSpeechType partOfSpeech = PartOfSpeechType.parseType(scanner.next());
+                double frequency = Double.parseDouble(scanner.next());
+                bank.set(Utils.partDivide(word), partOfSpeech, frequency);
+            }
+        }
+        catch (NoSuchElementException | NumberFormatException e) {
+            throw new IOException("词典源文件的第" + i + "条记录有误。", e);
+        }
+        bank.save(out);
+    }
+
     /**
      * Save the bank to a stream with compiled data.
      */
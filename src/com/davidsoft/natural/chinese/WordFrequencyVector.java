@@ -10,10 +10,15 @@ public class WordFrequencyVector {
 
     //原始自然语言的句子
     private String originalSentence;
+    //原始自然语言的句子的长度
+    private int originalSentenceLength;
     //(词→频度)集合，在中文词库中，每个词具有唯一的序号，因此此处使用序号代表词，不再使用字符串匹配
     private HashMap<Integer, Integer> vector;
     //此向量的模平方
     private int module2;
+    //按下标访问时使用的(词, 频度)数组，首次按下标访问时由vector生成
+    private int[] words;
+    private int[] frequencies;
 
     /**
      * 以(词→频度)集合创建词频向量，自动计算模平方。
@@ -23,6 +28,7 @@ public class WordFrequencyVector {
      */
     public WordFrequencyVector(String originalSentence, HashMap<Integer, Integer> vector) {
         this.originalSentence = originalSentence;
+        this.originalSentenceLength = originalSentence.length();
         this.vector = vector;
         calculateModule2();
     }
@@ -36,6 +42,20 @@ public class WordFrequencyVector {
      */
     public WordFrequencyVector(String originalSentence, HashMap<Integer, Integer> vector, int module2) {
         this.originalSentence = originalSentence;
+        this.originalSentenceLength = originalSentence.length();
+        this.vector = vector;
+        this.module2 = module2;
+    }
+
+    /**
+     * 供子类使用：只知道原始句子的长度，句子内容由子类在{@link #getOriginalSentence}被调用时再提供。
+     *
+     * @param originalSentenceLength 原始自然语言的句子的长度
+     * @param vector  (词→频度)集合
+     * @param module2 已知的模平方
+     */
+    protected WordFrequencyVector(int originalSentenceLength, HashMap<Integer, Integer> vector, int module2) {
+        this.originalSentenceLength = originalSentenceLength;
         this.vector = vector;
         this.module2 = module2;
     }
@@ -48,6 +68,58 @@ public class WordFrequencyVector {
         }
     }
 
+    //由vector生成按下标访问用的数组
+    private void buildArrays() {
+        int[] words = new int[vector.size()];
+        int[] frequencies = new int[vector.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Integer> word : vector.entrySet()) {
+            words[i] = word.getKey();
+            frequencies[i] = word.getValue();
+            ++i;
+        }
+        this.frequencies = frequencies;
+        this.words = words;
+    }
+
+    /**
+     * 获得此向量中不同词的个数。配合{@link #getWordAt}和{@link #getFrequencyAt}可以不经过{@link #getVector}遍历整个向量。
+     *
+     * @return 不同词的个数
+     */
+    public int getWordCount() {
+        if (words == null) {
+            buildArrays();
+        }
+        return words.length;
+    }
+
+    /**
+     * 获得此向量中第index个词。
+     *
+     * @param index 下标，取值范围为[0, {@link #getWordCount})
+     * @return 词
+     */
+    public int getWordAt(int index) {
+        if (words == null) {
+            buildArrays();
+        }
+        return words[index];
+    }
+
+    /**
+     * 获得此向量中第index个词的频度。
+     *
+     * @param index 下标，取值范围为[0, {@link #getWordCount})
+     * @return 频度
+     */
+    public int getFrequencyAt(int index) {
+        if (words == null) {
+            buildArrays();
+        }
+        return frequencies[index];
+    }
+
     /**
      * 获得此向量中出现指定词的次数。
      *
@@ -73,6 +145,15 @@ public class WordFrequencyVector {
         return originalSentence;
     }
 
+    /**
+     * 获得原始自然语言的句子的长度。
+     *
+     * @return 原始自然语言的句子的长度
+     */
+    public int getOriginalSentenceLength() {
+        return originalSentenceLength;
+    }
+
     /**
      * 和另一个词频向量计算夹角余弦。
      *
@@ -81,8 +162,9 @@ public class WordFrequencyVector {
      */
     public double calculateCosine(WordFrequencyVector another) {
         int sum = 0;
-        for (Map.Entry<Integer, Integer> word : vector.entrySet()) {
-            sum += word.getValue() * another.getFrequency(word.getKey());
+        int wordCount = getWordCount();
+        for (int i = 0; i < wordCount; ++i) {
+            sum += getFrequencyAt(i) * another.getFrequency(getWordAt(i));
         }
         return sum / Math.sqrt(module2 * another.module2);
     }
@@ -95,14 +177,16 @@ public class WordFrequencyVector {
      */
     public double calculateCosineLog(WordFrequencyVector another) {
         int sum = 0;
-        for (Map.Entry<Integer, Integer> word : vector.entrySet()) {
-            sum += word.getValue() * another.getFrequency(word.getKey());
+        int wordCount = getWordCount();
+        for (int i = 0; i < wordCount; ++i) {
+            sum += getFrequencyAt(i) * another.getFrequency(getWordAt(i));
         }
         return Math.log10(sum) - Math.log10(module2 * another.module2) / 2;
     }
 
     /**
-     * 返回存储稀疏向量的集合。
+     * 返回存储稀疏向量的集合。遍历向量请优先使用{@link #getWordCount}、{@link #getWordAt}和{@link #getFrequencyAt}，
+     * 子类可能并不以集合的形式存储向量。
      *
      * @return 构造此对象时传入的{@code vector}参数。
      */
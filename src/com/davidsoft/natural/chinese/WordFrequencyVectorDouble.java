@@ -1,5 +1,6 @@
 package com.davidsoft.natural.chinese;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -36,7 +37,10 @@ public class WordFrequencyVectorDouble {
     }
 
     public void mergeAll(WordFrequencyVector another) {
-        mergeAllInt(another.getVector());
+        int wordCount = another.getWordCount();
+        for (int i = 0; i < wordCount; ++i) {
+            merge(another.getWordAt(i), another.getFrequencyAt(i));
+        }
     }
 
     public void mergeAll(WordFrequencyVectors another) {
@@ -88,6 +92,27 @@ public class WordFrequencyVectorDouble {
         return Math.log10(sum) - Math.log10(Math.sqrt(module2 * another.module2));
     }
 
+    public int getWordCount() {
+        return vector.size();
+    }
+
+    public double getModule2() {
+        calculateModule2();
+        return module2;
+    }
+
+    //将向量按词编号升序导出到两个数组中，数组长度至少为getWordCount()
+    public void toSortedArrays(int[] words, double[] frequencies) {
+        int count = 0;
+        for (int word : vector.keySet()) {
+            words[count++] = word;
+        }
+        Arrays.sort(words, 0, count);
+        for (int i = 0; i < count; ++i) {
+            frequencies[i] = vector.get(words[i])[0];
+        }
+    }
+
     public void clear() {
         vector.clear();
         module2 = 0;
@@ -67,7 +67,7 @@ public final class WordFrequencyVectors {
         for (i = 0; i < vectors.length; ++i) {
             for (j = 0; j < another.vectors.length; ++j) {
                 frequencies[i * another.vectors.length + j] = vectors[i].calculateCosine(another.vectors[j])
-                        * (vectors[i].getOriginalSentence().length() + another.vectors[j].getOriginalSentence().length())
+                        * (vectors[i].getOriginalSentenceLength() + another.vectors[j].getOriginalSentenceLength())
                         / (originalSentenceLength + another.originalSentenceLength);
             }
         }
@@ -86,7 +86,7 @@ public final class WordFrequencyVectors {
         for (i = 0; i < vectors.length; ++i) {
             for (j = 0; j < another.vectors.length; ++j) {
                 frequencies[i * another.vectors.length + j] = vectors[i].calculateCosine(another.vectors[j])
-                        + Math.log10(vectors[i].getOriginalSentence().length() + another.vectors[j].getOriginalSentence().length())
+                        + Math.log10(vectors[i].getOriginalSentenceLength() + another.vectors[j].getOriginalSentenceLength())
                         - Math.log10(originalSentenceLength + another.originalSentenceLength);
             }
         }
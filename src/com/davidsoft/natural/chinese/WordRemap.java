@@ -0,0 +1,79 @@
+package com.davidsoft.natural.chinese;
+
+/**
+ * 词编号映射链。
+ *
+ * 样本库被整体替换后，同一个词在新旧样本库中的编号可能不同。每一代样本库保存由上一代的词编号到本代词编号的映射，
+ * 各代的映射由新到旧串成一条链，会话中保存的词编号可以沿着这条链换算到当前的样本库上。
+ * 映射链一经建立就不再修改，因此可以被新旧多个样本库同时引用。
+ */
+final class WordRemap {
+
+    //保留的映射的最大代数，更早的会话上下文将被清空而不是换算
+    static final int MAX_GENERATIONS = 8;
+
+    private final int generation;   //映射的目标代数
+    private final int[] map;        //由上一代的词编号到本代词编号的映射，-1表示该词已不存在
+    private final WordRemap previous;
+
+    private WordRemap(int generation, int[] map, WordRemap previous) {
+        this.generation = generation;
+        this.map = map;
+        this.previous = previous;
+    }
+
+    //复制映射链的前count代，映射链可能正被旧的样本库使用，因此不在原处截断
+    private static WordRemap copyOf(WordRemap remap, int count) {
+        if (remap == null || count <= 0) {
+            return null;
+        }
+        return new WordRemap(remap.generation, remap.map, copyOf(remap.previous, count - 1));
+    }
+
+    /**
+     * 在映射链的开头添加新的一代，只保留最近{@link #MAX_GENERATIONS}代。
+     *
+     * @param generation 新的代数，须比previous的代数大1
+     * @param map 由上一代的词编号到新一代词编号的映射，-1表示该词已不存在
+     * @param previous 原来的映射链，可以为{@code null}
+     * @return 新的映射链
+     */
+    static WordRemap append(int generation, int[] map, WordRemap previous) {
+        return new WordRemap(generation, map, copyOf(previous, MAX_GENERATIONS - 1));
+    }
+
+    /**
+     * 将之前某一代的词编号换算为当前代的词编号。
+     *
+     * @param head 当前代的映射链
+     * @param generation 当前代数
+     * @param wordNumber 旧的词编号
+     * @param fromGeneration 旧的代数
+     * @return 当前代的词编号。若该词已不存在，或旧的代数过于久远已无法换算，则返回-1。
+     */
+    static int remap(WordRemap head, int generation, int wordNumber, int fromGeneration) {
+        if (fromGeneration == generation) {
+            return wordNumber;
+        }
+        if (fromGeneration > generation) {
+            return -1;
+        }
+        //映射链由新到旧排列，先找到起点再依次换算
+        WordRemap[] chain = new WordRemap[generation - fromGeneration];
+        WordRemap remap = head;
+        for (int i = chain.length - 1; i >= 0; --i) {
+            if (remap == null || remap.generation != fromGeneration + i + 1) {
+                return -1;
+            }
+            chain[i] = remap;
+            remap = remap.previous;
+        }
+        for (WordRemap step : chain) {
+            if (wordNumber < 0 || wordNumber >= step.map.length) {
+                return -1;
+            }
+            wordNumber = step.map[wordNumber];
+        }
+        return wordNumber;
+    }
+}
@@ -0,0 +1,81 @@
+package com.davidsoft.simplechatsystem;
+
+import com.davidsoft.natural.chinese.ChatBank;
+import com.davidsoft.natural.chinese.SynonymBank;
+import com.davidsoft.natural.chinese.WordBank;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 答句压缩性能测试主类。运行此类以不同的答句块大小编译同一组源文件，比较样本库的大小、答句的压缩比和读取答句的耗时，以便选择块大小。
+ *
+ * 参数：[源文件目录] [块大小列表] [读取次数]，默认为chat_srcs、“0,1024,4096,16384”和20000次。块大小为0表示不压缩。
+ * 读取时关闭已解码答句的缓存，按固定的随机序列读取答句，使各块大小的结果可以互相比较。
+ */
+public final class AnswerStoreBenchmark {
+
+    public static void main(String[] args) {
+        System.out.println();
+        File sourceDirectory = new File(args.length >= 1 ? args[0] : "chat_srcs");
+        String[] blockSizes = (args.length >= 2 ? args[1] : "0,1024,4096,16384").split(",");
+        int reads = args.length >= 3 ? Integer.parseInt(args[2]) : 20000;
+
+        File[] sourceFiles = sourceDirectory.listFiles(File::isFile);
+        if (sourceFiles == null || sourceFiles.length == 0) {
+            System.out.println("错误：" + sourceDirectory + " 中没有源文件。");
+            return;
+        }
+        Arrays.sort(sourceFiles);
+
+        System.out.print("加载词库和同义词库...");
+        WordBank wordBank;
+        SynonymBank synonymBank;
+        try {
+            wordBank = new WordBank(new File("ChineseFreqDict"));
+            synonymBank = new SynonymBank(new File("ChineseThesaurus"));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("错误：无法加载词库或同义词库。");
+            return;
+        }
+        System.out.println("完成.");
+
+        StringBuilder results = new StringBuilder();
+        for (String blockSizeText : blockSizes) {
+            int blockSize = Integer.parseInt(blockSizeText.trim());
+            System.out.println("块大小" + blockSize + "字节：");
+            File bankFile;
+            ChatBank chatBank;
+            try {
+                bankFile = File.createTempFile("AnswerStoreBenchmark", null);
+                bankFile.deleteOnExit();
+                try (FileOutputStream fileOut = new FileOutputStream(bankFile)) {
+                    ChatBank.compileSourceFiles(sourceFiles, wordBank, synonymBank, blockSize, fileOut);
+                }
+                chatBank = ChatBank.load(bankFile, ChatBank.LoadMode.PRELOAD);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("错误：无法编译或加载对话样本库。");
+                return;
+            }
+            chatBank.setAnswerCacheCapacity(0);
+
+            Random random = new Random(0);
+            long checksum = 0;
+            long begin = System.nanoTime();
+            for (int i = 0; i < reads; ++i) {
+                checksum += chatBank.getChatPair(random.nextInt(chatBank.getChatPairCount())).getAnswer().length();
+            }
+            long nanos = System.nanoTime() - begin;
+            results.append(String.format("块大小%6d：文件%8d字节，读取答句平均%6.2fμs(校验%d)；%s%n",
+                    blockSize, bankFile.length(), nanos / 1e3 / reads, checksum, chatBank.getAnswerStoreStatistics()));
+            bankFile.delete();
+        }
+        System.out.println();
+        System.out.print(results);
+    }
+}
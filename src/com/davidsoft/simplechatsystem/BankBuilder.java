@@ -0,0 +1,281 @@
+package com.davidsoft.simplechatsystem;
+
+import com.davidsoft.natural.chinese.ChatBank;
+import com.davidsoft.natural.chinese.CompileCache;
+import com.davidsoft.natural.chinese.RandomResponseBank;
+import com.davidsoft.natural.chinese.SegmentationMemo;
+import com.davidsoft.natural.chinese.SynonymBank;
+import com.davidsoft.natural.chinese.WordBank;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 全部库的构建主类。运行此类不经交互地依次构建中文词典、同义词库、对话样本库和随机回应库。
+ *
+ * 各库之间的依赖为：词典 → 同义词库 → 对话样本库，词典也直接用于编译对话样本库；随机回应库不依赖其它库，与其它阶段并行构建。
+ * 每个阶段的输入(源文件以及所依赖的库文件)的摘要和输出文件的摘要记录在状态文件{@value #STATE_FILE}中，
+ * 输入没有变化且输出文件没有被改动过的阶段将被跳过。上游阶段重新编译后输出没有变化时，下游阶段同样被跳过。构建结束后输出各阶段的耗时。
+ *
+ * 参数：[项目目录]，默认为当前目录。项目目录的结构见README。目录中有词典源文件{@value #DICTIONARY_SOURCE}时由其编译ChineseFreqDict，
+ * 否则直接使用已有的ChineseFreqDict。
+ */
+public final class BankBuilder {
+
+    //状态文件，每行一个阶段：阶段名、输入摘要、输出摘要
+    private static final String STATE_FILE = "ChineseBanks.build";
+    //词典源文件
+    private static final String DICTIONARY_SOURCE = "dict_src.txt";
+
+    //阶段的编译过程，将编译结果写入out
+    private interface StageTask {
+        void build(OutputStream out) throws IOException;
+    }
+
+    //一个构建阶段
+    private static final class Stage {
+        private final String name;
+        private final File output;
+        private final List<File> inputs;
+        private final StageTask task;
+
+        private String result = "未执行(依赖的阶段失败)";
+        private long nanos;
+
+        private Stage(String name, File output, List<File> inputs, StageTask task) {
+            this.name = name;
+            this.output = output;
+            this.inputs = inputs;
+            this.task = task;
+        }
+    }
+
+    //上次构建记录的各阶段的(输入摘要, 输出摘要)
+    private final TreeMap<String, String[]> state = new TreeMap<>();
+    private final File stateFile;
+
+    private BankBuilder(File stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    public static void main(String[] args) {
+        System.out.println();
+        File directory = new File(args.length >= 1 ? args[0] : ".");
+        File dictionarySource = new File(directory, DICTIONARY_SOURCE);
+        File dictionaryFile = new File(directory, "ChineseFreqDict");
+        File thesaurusSource = new File(directory, "thesaurus_src.txt");
+        File specialsSource = new File(directory, "specials_src.txt");
+        File thesaurusFile = new File(directory, "ChineseThesaurus");
+        File chatsFile = new File(directory, "ChineseChats");
+        File randomResponsesFile = new File(directory, "ChineseRandomResponses");
+        File[] chatSources = listSourceFiles(new File(directory, "chat_srcs"));
+        File[] randomSources = listSourceFiles(new File(directory, "random_srcs"));
+        if (chatSources == null || randomSources == null) {
+            return;
+        }
+
+        BankBuilder builder = new BankBuilder(new File(directory, STATE_FILE));
+        builder.loadState();
+
+        Stage dictionary = new Stage("中文词典", dictionaryFile,
+                dictionarySource.isFile() ? Collections.singletonList(dictionarySource) : null,
+                out -> WordBank.compileSourceFile(dictionarySource, out));
+        Stage thesaurus = new Stage("同义词库", thesaurusFile, Arrays.asList(dictionaryFile, thesaurusSource, specialsSource), out -> {
+            SegmentationMemo segmentationMemo = new SegmentationMemo(new WordBank(dictionaryFile));
+            SynonymBank.compileSourceFile(thesaurusSource, specialsSource, segmentationMemo, out);
+            System.out.println("同义词库分词缓存：" + segmentationMemo + "。");
+        });
+        ArrayList<File> chatInputs = new ArrayList<>(Arrays.asList(chatSources));
+        chatInputs.add(dictionaryFile);
+        chatInputs.add(thesaurusFile);
+        Stage chats = new Stage("对话样本库", chatsFile, chatInputs, out -> {
+            WordBank wordBank = new WordBank(dictionaryFile);
+            SynonymBank synonymBank = new SynonymBank(thesaurusFile);
+            CompileCache cache = new CompileCache(new File(chatsFile.getPath() + ".cache"), dictionaryFile, thesaurusFile);
+            ChatBank.compileSourceFiles(chatSources, wordBank, synonymBank, 0, cache, out);
+        });
+        Stage randomResponses = new Stage("随机回应库", randomResponsesFile, Arrays.asList(randomSources),
+                out -> RandomResponseBank.compileSourceFiles(randomSources, out));
+
+        //没有依赖关系的阶段并行执行
+        long begin = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CompletableFuture<Boolean> dictionaryDone = CompletableFuture.supplyAsync(() -> builder.run(dictionary), executor);
+            CompletableFuture<Boolean> randomResponsesDone = CompletableFuture.supplyAsync(() -> builder.run(randomResponses), executor);
+            CompletableFuture<Boolean> thesaurusDone = dictionaryDone.thenApplyAsync(succeeded -> succeeded && builder.run(thesaurus), executor);
+            CompletableFuture<Boolean> chatsDone = thesaurusDone.thenApplyAsync(succeeded -> succeeded && builder.run(chats), executor);
+            CompletableFuture.allOf(randomResponsesDone, chatsDone).join();
+        }
+        finally {
+            executor.shutdown();
+        }
+        long nanos = System.nanoTime() - begin;
+        builder.saveState();
+
+        System.out.println();
+        System.out.println("构建结果：");
+        for (Stage stage : new Stage[] {dictionary, thesaurus, chats, randomResponses}) {
+            System.out.printf("%-6s\t%-16s\t%8.1fms%n", stage.name, stage.result, stage.nanos / 1e6);
+        }
+        System.out.printf("总耗时%.1fms。%n", nanos / 1e6);
+    }
+
+    //列出目录中的所有源文件，按文件名排序，使编译结果和摘要与文件系统列出的顺序无关
+    private static File[] listSourceFiles(File directory) {
+        File[] sourceFiles = directory.listFiles((dir, name) -> name.endsWith(".txt"));
+        if (sourceFiles == null) {
+            System.out.println("错误：无法访问 " + directory.getAbsolutePath() + "。");
+            return null;
+        }
+        Arrays.sort(sourceFiles);
+        return sourceFiles;
+    }
+
+    //执行一个阶段，返回其输出是否可用
+    private boolean run(Stage stage) {
+        long begin = System.nanoTime();
+        try {
+            if (stage.inputs == null) {
+                //没有源文件，直接使用已有的输出
+                if (!stage.output.isFile()) {
+                    stage.result = "失败(缺少" + stage.output.getName() + ")";
+                    return false;
+                }
+                stage.result = "没有源文件，使用现有文件";
+                return true;
+            }
+            String inputDigest = digest(stage.inputs);
+            String[] recorded;
+            synchronized (state) {
+                recorded = state.get(stage.name);
+            }
+            if (recorded != null && recorded[0].equals(inputDigest) && stage.output.isFile()
+                    && recorded[1].equals(digest(Collections.singletonList(stage.output)))) {
+                stage.result = "输入未变化，跳过";
+                return true;
+            }
+
+            System.out.println("正在构建" + stage.name + "...");
+            //先写入临时文件，完成后再改名替换目标文件，以免破坏正在运行的对话系统映射的旧文件
+            File temporaryFile = new File(stage.output.getPath() + ".tmp");
+            try {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temporaryFile))) {
+                    stage.task.build(out);
+                }
+                moveIntoPlace(temporaryFile, stage.output);
+            }
+            finally {
+                temporaryFile.delete();
+            }
+            //只有对话样本库可能有同名的分片清单，清单优先于单个样本库加载，删除失败时本阶段作为失败处理，下次构建时重试
+            if (!ChatBankCompiler.deleteStaleShards(stage.output.getPath())) {
+                throw new IOException("无法删除旧的分片清单：" + stage.output.getPath() + ".shards");
+            }
+            String outputDigest = digest(Collections.singletonList(stage.output));
+            synchronized (state) {
+                state.put(stage.name, new String[] {inputDigest, outputDigest});
+            }
+            stage.result = "已重新编译";
+            return true;
+        }
+        catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            stage.result = "失败(" + e.getClass().getSimpleName() + ")";
+            return false;
+        }
+        finally {
+            stage.nanos = System.nanoTime() - begin;
+        }
+    }
+
+    //计算一组文件的摘要，包括各文件的文件名、长度和内容
+    private static String digest(List<File> files) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[65536];
+        for (File file : files) {
+            digest.update(file.getName().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            try (InputStream in = new FileInputStream(file)) {
+                long length = 0;
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, count);
+                    length += count;
+                }
+                for (int i = 56; i >= 0; i -= 8) {
+                    digest.update((byte) (length >>> i));
+                }
+            }
+        }
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    //将临时文件改名为目标文件，尽可能原子地替换
+    private static void moveIntoPlace(File temporaryFile, File targetFile) throws IOException {
+        try {
+            Files.move(temporaryFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    //读取状态文件，不存在或有误时视为所有阶段都需要重新编译
+    private void loadState() {
+        if (!stateFile.isFile()) {
+            return;
+        }
+        try (Scanner scanner = new Scanner(new FileInputStream(stateFile), "UTF-8")) {
+            while (scanner.hasNextLine()) {
+                String[] fields = scanner.nextLine().split("\t");
+                if (fields.length == 3) {
+                    state.put(fields[0], new String[] {fields[1], fields[2]});
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("警告：无法读取 " + stateFile + "，将重新编译所有的库。");
+            state.clear();
+        }
+    }
+
+    //写入状态文件
+    private void saveState() {
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(stateFile), "UTF-8"))) {
+            for (Map.Entry<String, String[]> entry : state.entrySet()) {
+                writer.print(entry.getKey() + "\t" + entry.getValue()[0] + "\t" + entry.getValue()[1] + "\n");
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("警告：无法写入 " + stateFile + "，下次构建时将重新编译所有的库。");
+        }
+    }
+}
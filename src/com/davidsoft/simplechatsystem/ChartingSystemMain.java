@@ -1,26 +1,203 @@
 package com.davidsoft.simplechatsystem;
 
+import com.davidsoft.natural.chinese.ChatBank;
 import com.davidsoft.natural.chinese.ChattingSystem;
+import com.davidsoft.natural.chinese.FederatedChatBank;
+import com.davidsoft.natural.chinese.ShardedChatBank;
+import com.davidsoft.natural.chinese.SourceWatcher;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Scanner;
 
 /**
  * 对话系统主类。运行此类直接进入对话系统。
+ * 输入“重新加载”可以在不中断对话的情况下于后台重新加载对话样本库(使用分片样本库时不支持)。
+ * 输入“监视源文件”开始监视chat_srcs和random_srcs目录，源文件保存后改动自动生效，见{@link SourceWatcher}(使用分片样本库时不支持)。
+ *
+ * 参数：[选项]... [样本库文件[:阈值]]...，按优先级从高到低列出多个样本库时联合检索这些样本库(见{@link FederatedChatBank})，阈值默认为0。
+ * 选项设置检索方式，作用于所用的每个样本库，重新加载后仍然有效：
+ * --df-ceiling=比例 生成候选集时的文档频率上限，见{@link ChatBank#setDocumentFrequencyCeiling}；
+ * --bigram-candidates=true|false 是否优先以二元词组生成候选集，见{@link ChatBank#setBigramCandidates}；
+ * --bigram-boost=比例 二元词组的加分比例，见{@link ChatBank#setBigramBoost}。
  */
 public final class ChartingSystemMain {
 
+    //检索设置，为null时使用样本库的默认值
+    private static Double documentFrequencyCeiling = null;
+    private static Boolean bigramCandidates = null;
+    private static Double bigramBoost = null;
+
+    //解析一个选项，无法识别或取值有误时返回false
+    private static boolean parseOption(String option) {
+        int equals = option.indexOf('=');
+        if (equals < 0) {
+            return false;
+        }
+        String name = option.substring(0, equals);
+        String value = option.substring(equals + 1);
+        try {
+            switch (name) {
+                case "--df-ceiling":
+                    documentFrequencyCeiling = Double.parseDouble(value);
+                    return documentFrequencyCeiling > 0 && documentFrequencyCeiling <= 1;
+                case "--bigram-candidates":
+                    if (!"true".equals(value) && !"false".equals(value)) {
+                        return false;
+                    }
+                    bigramCandidates = Boolean.parseBoolean(value);
+                    return true;
+                case "--bigram-boost":
+                    bigramBoost = Double.parseDouble(value);
+                    return bigramBoost >= 0;
+                default:
+                    return false;
+            }
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static void applySearchSettings(ChatBank bank) {
+        if (documentFrequencyCeiling != null) {
+            bank.setDocumentFrequencyCeiling(documentFrequencyCeiling);
+        }
+        if (bigramCandidates != null) {
+            bank.setBigramCandidates(bigramCandidates);
+        }
+        if (bigramBoost != null) {
+            bank.setBigramBoost(bigramBoost);
+        }
+    }
+
+    private static void applySearchSettings(ShardedChatBank bank) {
+        if (documentFrequencyCeiling != null) {
+            bank.setDocumentFrequencyCeiling(documentFrequencyCeiling);
+        }
+        if (bigramCandidates != null) {
+            bank.setBigramCandidates(bigramCandidates);
+        }
+        if (bigramBoost != null) {
+            bank.setBigramBoost(bigramBoost);
+        }
+    }
+
     public static void main(String[] args) {
         System.out.println();
-        ChattingSystem chattingSystem = new ChattingSystem();
+        ArrayList<String> bankArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                bankArgs.add(arg);
+            }
+            else if (!parseOption(arg)) {
+                System.out.println("错误：选项 " + arg + " 有误。");
+                return;
+            }
+        }
+        boolean federated = !bankArgs.isEmpty();
+
+        ChattingSystem chattingSystem;
+        if (!federated) {
+            //重新加载的样本库沿用当前实例的设置，因此只需设置一次
+            ShardedChatBank shardedChatBank = ShardedChatBank.getInstance();
+            if (shardedChatBank != null) {
+                applySearchSettings(shardedChatBank);
+            }
+            else if (ChatBank.getInstance() != null) {
+                applySearchSettings(ChatBank.getInstance());
+            }
+            chattingSystem = new ChattingSystem();
+        }
+        else {
+            ChatBank[] banks = new ChatBank[bankArgs.size()];
+            double[] thresholds = new double[bankArgs.size()];
+            for (int i = 0; i < banks.length; ++i) {
+                String file = bankArgs.get(i);
+                //Windows的路径中也有冒号，只有冒号之后是数字时才视为阈值
+                int colon = file.lastIndexOf(':');
+                if (colon > 0) {
+                    try {
+                        thresholds[i] = Double.parseDouble(file.substring(colon + 1));
+                        file = file.substring(0, colon);
+                    }
+                    catch (NumberFormatException ignored) { }
+                }
+                try {
+                    banks[i] = ChatBank.load(new File(file));
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.println("错误：无法加载对话样本库 " + file + "。");
+                    return;
+                }
+                applySearchSettings(banks[i]);
+            }
+            chattingSystem = new ChattingSystem(new FederatedChatBank(banks, thresholds));
+        }
         Scanner scanner = new Scanner(System.in);
+        SourceWatcher sourceWatcher = null;
         System.out.println("对话系统启动成功！现在可以扯淡了。");
         while (true) {
             String line = scanner.nextLine();
             if ("再见".equals(line)) {
                 break;
             }
+            if ("监视源文件".equals(line)) {
+                if (federated) {
+                    System.out.println("联合检索多个样本库时不支持监视源文件。");
+                    continue;
+                }
+                if (ShardedChatBank.getInstance() != null) {
+                    System.out.println("使用分片样本库(ChineseChats.shards)时不支持监视源文件，改动不会被检索到。");
+                    continue;
+                }
+                if (sourceWatcher != null) {
+                    System.out.println("已经在监视源文件。");
+                    continue;
+                }
+                try {
+                    sourceWatcher = SourceWatcher.start(new File("chat_srcs"), new File("random_srcs"));
+                    System.out.println("正在监视chat_srcs和random_srcs，源文件的改动将自动生效。");
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.println("错误：无法监视源文件目录。");
+                }
+                continue;
+            }
+            if ("重新加载".equals(line)) {
+                if (federated) {
+                    System.out.println("联合检索多个样本库时不支持重新加载。");
+                    continue;
+                }
+                if (ShardedChatBank.getInstance() != null) {
+                    System.out.println("使用分片样本库(ChineseChats.shards)时不支持重新加载，请重新启动对话系统。");
+                    continue;
+                }
+                System.out.println("正在后台重新加载对话样本库...");
+                ChatBank.reloadInBackground(new File("ChineseChats"), ChatBank.LoadMode.MAPPED).whenComplete((report, e) -> {
+                    if (e != null) {
+                        e.printStackTrace();
+                        System.out.println("错误：无法重新加载对话样本库，继续使用原来的样本库。");
+                    }
+                    else {
+                        System.out.println("对话样本库已重新加载：" + report);
+                    }
+                });
+                continue;
+            }
             System.out.println(chattingSystem.getAnswer(new StringReader(line), true));
         }
+        if (sourceWatcher != null) {
+            try {
+                sourceWatcher.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 }
\ No newline at end of file
@@ -2,12 +2,18 @@ package com.davidsoft.simplechatsystem;
 
 import com.davidsoft.console.ConsoleUtils;
 import com.davidsoft.natural.chinese.ChatBank;
+import com.davidsoft.natural.chinese.CompileCache;
+import com.davidsoft.natural.chinese.DuplicateFilter;
+import com.davidsoft.natural.chinese.ShardedChatBank;
 import com.davidsoft.natural.chinese.SynonymBank;
 import com.davidsoft.natural.chinese.WordBank;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Scanner;
 
 /**
@@ -95,10 +101,53 @@ public final class ChatBankCompiler {
             outputFile = ConsoleUtils.inputFileForSave("输入目标文件名：", scanner);
         }
 
-        //打开目标文件
+        Integer shardCount = ConsoleUtils.inputInteger("输入分片数(直接回车表示不分片)：", scanner);
+        Integer answerBlockSize = ConsoleUtils.inputInteger("输入答句压缩的块大小(字节，直接回车表示不压缩)：", scanner);
+        if (answerBlockSize == null || answerBlockSize < 0) {
+            answerBlockSize = 0;
+        }
+
+        //不分片也不压缩答句时可以在外存中编译，堆内存的占用只取决于每批的问答对数
+        Integer externalBatchPairs = null;
+        if ((shardCount == null || shardCount <= 1) && answerBlockSize == 0) {
+            externalBatchPairs = ConsoleUtils.inputInteger("输入外存编译每批的问答对数(直接回车表示在内存中编译)：", scanner);
+            if (externalBatchPairs != null && externalBatchPairs <= 0) {
+                externalBatchPairs = null;
+            }
+        }
+
+        //近似重复的对话在内存中编译时删除，报告写入“目标文件名.duplicates.txt”
+        DuplicateFilter duplicateFilter = null;
+        if (externalBatchPairs == null) {
+            Integer threshold = ConsoleUtils.inputInteger("输入删除近似重复对话的相似度阈值(1~100，直接回车表示不删除)：", scanner);
+            if (threshold != null && threshold > 0 && threshold <= 100) {
+                duplicateFilter = new DuplicateFilter(threshold / 100.0, new File(outputFile + ".duplicates.txt"));
+            }
+        }
+
+        //中间结果缓存放在“目标文件名.cache”目录中，再次编译时只重新处理改动过的源文件。外存编译不使用缓存
+        CompileCache cache = null;
+        if (externalBatchPairs == null) {
+            try {
+                cache = new CompileCache(new File(outputFile + ".cache"), new File(wordBankFile), new File(synonymBankFile));
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("警告：无法使用编译缓存，将处理所有源文件。");
+            }
+        }
+
+        if (shardCount != null && shardCount > 1) {
+            compileShards(sourceFiles, wordBank, synonymBank, outputFile, shardCount, answerBlockSize, cache, duplicateFilter);
+            return;
+        }
+
+        //打开临时文件。先写入临时文件，完成后再改名替换目标文件，以免破坏正在运行的对话系统映射的旧文件
+        File targetFile = new File(outputFile);
+        File temporaryFile = new File(outputFile + ".tmp");
         FileOutputStream fileOut;
         try {
-            fileOut = new FileOutputStream(outputFile);
+            fileOut = new FileOutputStream(temporaryFile);
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -107,17 +156,148 @@ public final class ChatBankCompiler {
         }
 
         //开始处理
+        boolean succeeded = true;
         try {
-            ChatBank.compileSourceFiles(sourceFiles, wordBank, synonymBank, fileOut);
+            if (externalBatchPairs != null) {
+                //临时文件放在目标文件所在的目录中，语料很大时系统的临时目录可能放不下
+                ChatBank.compileSourceFilesExternally(sourceFiles, wordBank, synonymBank, externalBatchPairs,
+                        targetFile.getAbsoluteFile().getParentFile(), fileOut);
+            }
+            else {
+                ChatBank.compileSourceFiles(sourceFiles, wordBank, synonymBank, answerBlockSize, cache, duplicateFilter, fileOut);
+            }
         }
         catch (IOException e) {
+            //源文件有误时同样作为失败处理，不替换目标文件
             e.printStackTrace();
-            System.out.println("错误：无法写入 " + outputFile + "。");
+            System.out.println("错误：无法编译 " + outputFile + "：" + e.getMessage());
+            succeeded = false;
         }
         try {
             fileOut.close();
         } catch (IOException e) {
             e.printStackTrace();
+            succeeded = false;
+        }
+        if (!succeeded) {
+            temporaryFile.delete();
+            return;
+        }
+        if (moveIntoPlace(temporaryFile, targetFile)) {
+            deleteStaleShards(outputFile);
+        }
+    }
+
+    //编译单个样本库后删除同名的分片清单“目标文件名.shards”及其中的分片。分片清单优先于单个样本库加载，不删除的话新编译的样本库不会被使用。
+    //没有清单或已删除时返回true，无法删除清单时返回false
+    static boolean deleteStaleShards(String outputFile) {
+        File manifestFile = new File(outputFile + ".shards");
+        if (!manifestFile.isFile()) {
+            return true;
+        }
+        File[] oldShardFiles = readShardFiles(manifestFile);
+        if (!manifestFile.delete()) {
+            System.out.println("警告：无法删除旧的分片清单 " + manifestFile + "，对话系统仍将加载其中的分片。");
+            return false;
+        }
+        System.out.println("已删除旧的分片清单 " + manifestFile + "。");
+        deleteFiles(oldShardFiles);
+        return true;
+    }
+
+    //将临时文件改名为目标文件，尽可能原子地替换
+    private static boolean moveIntoPlace(File temporaryFile, File targetFile) {
+        try {
+            try {
+                Files.move(temporaryFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("错误：无法写入 " + targetFile + "，编译结果保存在 " + temporaryFile + "。");
+            return false;
+        }
+    }
+
+    //编译分片的样本库：各分片写入“目标文件名.构建号.序号”，最后写入清单文件“目标文件名.shards”。
+    //每次编译的分片文件名都不同，不会覆盖旧清单中的分片，因此替换清单之前对话系统加载的总是旧的一组分片，之后总是新的一组。清单替换后再删除旧的分片
+    private static void compileShards(File[] sourceFiles, WordBank wordBank, SynonymBank synonymBank, String outputFile, int shardCount, int answerBlockSize, CompileCache cache,
+                                      DuplicateFilter duplicateFilter) {
+        String build = Long.toString(System.currentTimeMillis(), 36);
+        File[] targetFiles = new File[shardCount];
+        String[] shardFileNames = new String[shardCount];
+        FileOutputStream[] fileOuts = new FileOutputStream[shardCount];
+        boolean succeeded = true;
+        try {
+            for (int i = 0; i < shardCount; ++i) {
+                targetFiles[i] = new File(outputFile + "." + build + "." + i);
+                shardFileNames[i] = targetFiles[i].getName();
+                fileOuts[i] = new FileOutputStream(targetFiles[i]);
+            }
+            ChatBank.compileShards(sourceFiles, wordBank, synonymBank, answerBlockSize, cache, duplicateFilter, fileOuts);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("错误：无法编译 " + outputFile + "的分片：" + e.getMessage());
+            succeeded = false;
+        }
+        for (FileOutputStream fileOut : fileOuts) {
+            if (fileOut != null) {
+                try {
+                    fileOut.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    succeeded = false;
+                }
+            }
+        }
+        if (!succeeded) {
+            deleteFiles(targetFiles);
+            return;
+        }
+
+        File manifestFile = new File(outputFile + ".shards");
+        File temporaryFile = new File(outputFile + ".shards.tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(temporaryFile)) {
+            ShardedChatBank.writeManifest(shardFileNames, fileOut);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("错误：无法写入 " + manifestFile + "。");
+            temporaryFile.delete();
+            deleteFiles(targetFiles);
+            return;
+        }
+        //替换前先读出旧清单中的分片
+        File[] oldShardFiles = manifestFile.isFile() ? readShardFiles(manifestFile) : new File[0];
+        if (!moveIntoPlace(temporaryFile, manifestFile)) {
+            deleteFiles(targetFiles);
+            return;
+        }
+        deleteFiles(oldShardFiles);
+    }
+
+    //读取清单中的分片文件，无法读取时返回空数组，旧的分片留待手动删除
+    private static File[] readShardFiles(File manifestFile) {
+        try {
+            return ShardedChatBank.readManifest(manifestFile);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("警告：无法读取分片清单 " + manifestFile + "，其中的分片将不会被删除。");
+            return new File[0];
+        }
+    }
+
+    private static void deleteFiles(File[] files) {
+        for (File file : files) {
+            if (file != null) {
+                file.delete();
+            }
         }
     }
-}
\ No newline at end of file
+}
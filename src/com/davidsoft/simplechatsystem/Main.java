@@ -20,6 +20,7 @@ public final class Main {
                         "打开同义词编译器",
                         "打开对话样本编译器",
                         "打开随机回应编译器",
+                        "构建全部的库",
                         "进入对话系统",
                         "退出"
                 }, scanner);
@@ -50,12 +51,18 @@ public final class Main {
                     System.out.println();
                     break;
                 case 4:
+                    BankBuilder.main(args);
+                    System.out.println();
+                    System.out.println("构建已完成");
+                    System.out.println();
+                    break;
+                case 5:
                     ChartingSystemMain.main(args);
                     System.out.println();
                     System.out.println("对话系统已退出");
                     System.out.println();
                     break;
-                case 5:
+                case 6:
                     System.out.println();
                     return;
             }
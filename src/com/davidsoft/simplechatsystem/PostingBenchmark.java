@@ -0,0 +1,165 @@
+package com.davidsoft.simplechatsystem;
+
+import com.davidsoft.natural.chinese.ChatBank;
+import com.davidsoft.natural.chinese.PairInt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 倒排表解码性能测试主类。运行此类比较压缩倒排表与旧的PairInt数组的遍历吞吐量。
+ *
+ * 测试按生成候选集时的方式访问倒排表：以样本库中的每个问句为一次检索，遍历问句中每个词的倒排表，因此常用词的长倒排表被访问得最多。
+ * 先测试单个样本库；附带的样本库很小，PairInt数组整个放得进CPU的二级缓存，不能代表实际规模的样本库，因此再将样本库加载多份，
+ * 每次检索依次遍历每一份中的倒排表(与{@link com.davidsoft.natural.chinese.ShardedChatBank}检索各个分片的方式相同)，
+ * 相当于一个规模为其若干倍的样本库。两种方式交替运行，各取最快的一轮，两组结果一并输出。
+ *
+ * 参数：[对话样本库文件] [轮数] [份数]，默认为ChineseChats、10轮和16份。份数为1时只测试单个样本库。
+ */
+public final class PostingBenchmark {
+
+    //PairInt对象(对象头12字节+两个int，按8字节对齐)加上数组中的一个引用
+    private static final int PAIR_INT_BYTES = 24 + 4;
+
+    public static void main(String[] args) {
+        System.out.println();
+        String bankFile = args.length >= 1 ? args[0] : "ChineseChats";
+        int rounds = args.length >= 2 ? Integer.parseInt(args[1]) : 10;
+        int copies = args.length >= 3 ? Integer.parseInt(args[2]) : 16;
+
+        System.out.print("加载对话样本库...");
+        ChatBank[] chatBanks = new ChatBank[copies];
+        try {
+            for (int i = 0; i < copies; ++i) {
+                chatBanks[i] = ChatBank.load(new File(bankFile));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("错误：无法加载对话样本库。");
+            return;
+        }
+        System.out.println("完成.");
+
+        //旧的加载方式：所有倒排表在加载时展开为PairInt数组
+        int wordCount = chatBanks[0].getWordCount();
+        PairInt[][][] pairArrays = new PairInt[copies][wordCount][];
+        for (int i = 0; i < copies; ++i) {
+            for (int j = 0; j < wordCount; ++j) {
+                pairArrays[i][j] = chatBanks[i].getChatNumbersContainWord(j);
+            }
+        }
+
+        //每个问句的各个词构成一次检索
+        ChatBank.QuestionMatrix matrix = chatBanks[0].getQuestionMatrix();
+        int[][] queries = new int[matrix.getRowCount()][];
+        for (int i = 0; i < queries.length; ++i) {
+            queries[i] = new int[matrix.getRowEnd(i) - matrix.getRowStart(i)];
+            for (int j = 0; j < queries[i].length; ++j) {
+                queries[i][j] = matrix.getTermId(matrix.getRowStart(i) + j);
+            }
+        }
+        System.out.println("词数：" + wordCount + "，检索数：" + queries.length);
+
+        if (!measure(chatBanks, pairArrays, queries, 1, rounds)) {
+            return;
+        }
+        if (copies > 1) {
+            measure(chatBanks, pairArrays, queries, copies, rounds);
+        }
+    }
+
+    //以前copies份样本库测试并输出结果，遍历的结果不正确时返回false
+    private static boolean measure(ChatBank[] allChatBanks, PairInt[][][] allPairArrays, int[][] queries, int copies, int rounds) {
+        ChatBank[] chatBanks = Arrays.copyOf(allChatBanks, copies);
+        PairInt[][][] pairArrays = Arrays.copyOf(allPairArrays, copies);
+        long postingCount = 0;
+        for (PairInt[][] copy : pairArrays) {
+            for (PairInt[] pairs : copy) {
+                postingCount += pairs.length;
+            }
+        }
+        long visitCount = 0;
+        for (int[] query : queries) {
+            for (int word : query) {
+                visitCount += (long) pairArrays[0][word].length * copies;
+            }
+        }
+
+        //两种方式各自的正确结果
+        long expectedPairChecksum = walkPairArrays(pairArrays, queries);
+        long expectedChecksum = 0;
+        for (int[] query : queries) {
+            for (int word : query) {
+                for (int chatPairNumber : chatBanks[0].getPostings(word)) {
+                    expectedChecksum += chatPairNumber;
+                }
+            }
+        }
+        expectedChecksum *= copies;
+
+        ChatBank.PostingIterator[] iterators = new ChatBank.PostingIterator[copies];
+        for (int i = 0; i < copies; ++i) {
+            iterators[i] = chatBanks[i].newPostingIterator();
+        }
+        int[] buffer = new int[ChatBank.PostingIterator.BLOCK_SIZE];
+        //预热
+        for (int round = 0; round < Math.max(1, rounds / 5); ++round) {
+            walkPairArrays(pairArrays, queries);
+            walkIterators(iterators, buffer, queries);
+        }
+        long pairArrayNanos = Long.MAX_VALUE;
+        long iteratorNanos = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; ++round) {
+            long begin = System.nanoTime();
+            long pairChecksum = walkPairArrays(pairArrays, queries);
+            pairArrayNanos = Math.min(pairArrayNanos, System.nanoTime() - begin);
+            begin = System.nanoTime();
+            long checksum = walkIterators(iterators, buffer, queries);
+            iteratorNanos = Math.min(iteratorNanos, System.nanoTime() - begin);
+            if (pairChecksum != expectedPairChecksum || checksum != expectedChecksum) {
+                System.out.println("错误：遍历的结果不正确。");
+                return false;
+            }
+        }
+
+        System.out.println((copies == 1 ? "单个样本库" : copies + "份样本库") + "，倒排项数：" + postingCount + "，每轮遍历项数：" + visitCount);
+        System.out.println(String.format("  PairInt数组：%8.2f 百万项/秒，约%d字节",
+                (double) visitCount / pairArrayNanos * 1000, postingCount * PAIR_INT_BYTES));
+        System.out.println(String.format("  压缩倒排表：%8.2f 百万项/秒，%d字节",
+                (double) visitCount / iteratorNanos * 1000, (long) chatBanks[0].getPostingSize() * copies));
+        return true;
+    }
+
+    private static long walkPairArrays(PairInt[][][] arrays, int[][] queries) {
+        long sum = 0;
+        for (int[] query : queries) {
+            for (PairInt[][] copy : arrays) {
+                for (int word : query) {
+                    for (PairInt pairInt : copy[word]) {
+                        sum += pairInt.a * 256L + pairInt.b;
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static long walkIterators(ChatBank.PostingIterator[] iterators, int[] buffer, int[][] queries) {
+        long sum = 0;
+        for (int[] query : queries) {
+            for (ChatBank.PostingIterator iterator : iterators) {
+                for (int word : query) {
+                    iterator.reset(word);
+                    int read;
+                    while ((read = iterator.read(buffer, 0)) > 0) {
+                        for (int i = 0; i < read; ++i) {
+                            sum += buffer[i];
+                        }
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+}
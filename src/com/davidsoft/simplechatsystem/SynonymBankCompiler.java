@@ -1,6 +1,7 @@
 package com.davidsoft.simplechatsystem;
 
 import com.davidsoft.console.ConsoleUtils;
+import com.davidsoft.natural.chinese.SegmentationMemo;
 import com.davidsoft.natural.chinese.SynonymBank;
 import com.davidsoft.natural.chinese.WordBank;
 
@@ -67,6 +68,7 @@ public final class SynonymBankCompiler {
 
         FileOutputStream out;
         boolean success = false;
+        SegmentationMemo segmentationMemo = new SegmentationMemo(wordBank);
         try {
             out = new FileOutputStream(outputFile);
         }
@@ -76,7 +78,7 @@ public final class SynonymBankCompiler {
             return;
         }
         try {
-            SynonymBank.compileSourceFile(new File(thesaurusSrcFile), new File(specialSrcFile), wordBank, out);
+            SynonymBank.compileSourceFile(new File(thesaurusSrcFile), new File(specialSrcFile), segmentationMemo, out);
             success = true;
         }
         catch (IOException e) {
@@ -90,6 +92,7 @@ public final class SynonymBankCompiler {
         }
         if (success) {
             System.out.println("完成.");
+            System.out.println("分词缓存：" + segmentationMemo + "。");
             System.out.println();
             System.out.println("全部完成！");
         }